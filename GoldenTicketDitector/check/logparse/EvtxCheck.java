@@ -0,0 +1,91 @@
+package logparse;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Check that an .evtx file is read as the CSV exported from the same events.
+ * The account, address, port, service, process and share of each event are
+ * compared as readRecords and readCSV pass them to the parser, and then the
+ * results detected by DetectorEngine are compared.
+ *
+ * Export both files from the same Windows host, without new events logged in
+ * between: "wevtutil epl Security security.evtx" and Event Viewer "Save All
+ * Events As..." with the CSV type. Dates of the CSV are in the time zone of
+ * the exporting host, so give it if the check runs elsewhere.
+ *
+ * Not part of the detector. Build it with the classes of src on the class
+ * path, e.g. javac -cp bin:lib/* -d check-bin check/logparse/*.java
+ *
+ * @version 1.0
+ */
+public class EvtxCheck {
+
+	private static void printUseage() {
+		System.out.println("Useage");
+		System.out.println(
+				"{evtx file} {CSV file} {suspicious command list file} (time zone of CSV, default: local)");
+	}
+
+	/**
+	 * Detect a file by DetectorEngine
+	 *
+	 * @return result rows
+	 */
+	private static List<String> detect(File input, File commandList) throws IOException {
+		File output = File.createTempFile("evtx-check", ".csv");
+		output.deleteOnExit();
+		DetectorEngine engine = new DetectorEngine.Builder().commandList(commandList).output(output).build();
+		engine.ingest(input.toPath());
+		engine.close();
+
+		List<String> rows = new ArrayList<String>();
+		BufferedReader br = new BufferedReader(new FileReader(output));
+		try {
+			String line;
+			while ((line = br.readLine()) != null) {
+				rows.add(line);
+			}
+		} finally {
+			br.close();
+		}
+		return rows;
+	}
+
+	/**
+	 * Print rows which differ
+	 *
+	 * @return number of rows which differ
+	 */
+	private static int compare(String name, List<String> evtx, List<String> csv) {
+		int errors = 0;
+		for (int i = 0; i < Math.max(evtx.size(), csv.size()); i++) {
+			String e = i < evtx.size() ? evtx.get(i) : "(none)";
+			String c = i < csv.size() ? csv.get(i) : "(none)";
+			if (!e.equals(c)) {
+				System.out.println("NG: " + name + " " + (i + 1) + "\n  evtx: " + e + "\n  csv:  " + c);
+				errors++;
+			}
+		}
+		System.out.println((0 == errors && !csv.isEmpty() ? "OK" : "NG") + ": " + name + " " + csv.size()
+				+ " in CSV, " + evtx.size() + " in evtx, " + errors + " differ");
+		return errors;
+	}
+
+	public static void main(String args[]) throws IOException {
+		if (args.length < 3) {
+			printUseage();
+			return;
+		}
+		if (args.length > 3) {
+			TimeZone.setDefault(TimeZone.getTimeZone(args[3]));
+		}
+		File evtx = new File(args[0]);
+		File csv = new File(args[1]);
+		File commandList = new File(args[2]);
+
+		GoldenTicketDetector detector = new GoldenTicketDetector();
+		compare("events", detector.readFields(evtx), detector.readFields(csv));
+		compare("result rows", detect(evtx, commandList), detect(csv, commandList));
+	}
+}
@@ -0,0 +1,103 @@
+package logparse;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Check that events of a record whose lines are split between detections
+ * are output exactly once. A CSV file exported from event log is passed to
+ * DetectorEngine line by line, detected after every line, and the events of
+ * the result are compared with a run detected once at the end.
+ *
+ * Alert columns are not compared, because detection of a part of the log
+ * can give other alerts. The address of 4688 is not compared either: it is
+ * copied from the preceding 4769, which is not read yet when the newest
+ * first export is detected in parts.
+ *
+ * Not part of the detector. Build it like EvtxCheck.
+ *
+ * @version 1.0
+ */
+public class SplitRecordCheck {
+
+	// date,eventID,account,ip,service,process,sharedname
+	private static final int EVENT_COLUMNS = 7;
+	private static final int ADDRESS_COLUMN = 3;
+	private static final int EVENT_PROCESS = 4688;
+
+	private static void printUseage() {
+		System.out.println("Useage");
+		System.out.println("{CSV file} {suspicious command list file}");
+	}
+
+	/**
+	 * Run DetectorEngine over the lines
+	 *
+	 * @return events of the result and the number of rows of each
+	 */
+	private static Map<String, Integer> run(List<String> lines, File commandList, boolean flushEveryLine)
+			throws IOException {
+		File output = File.createTempFile("split-check", ".csv");
+		output.deleteOnExit();
+		DetectorEngine engine = new DetectorEngine.Builder().commandList(commandList).output(output).build();
+		for (String line : lines) {
+			engine.accept(line);
+			if (flushEveryLine) {
+				engine.flush();
+			}
+		}
+		engine.close();
+
+		Map<String, Integer> events = new TreeMap<String, Integer>();
+		BufferedReader br = new BufferedReader(new FileReader(output));
+		try {
+			// 列名は読み飛ばす
+			String line = br.readLine();
+			while ((line = br.readLine()) != null) {
+				String columns[] = line.split(",", -1);
+				StringBuilder key = new StringBuilder();
+				for (int i = 0; i < EVENT_COLUMNS; i++) {
+					if (ADDRESS_COLUMN == i && String.valueOf(EVENT_PROCESS).equals(columns[1])) {
+						key.append("-,");
+						continue;
+					}
+					key.append(columns[i]).append(',');
+				}
+				Integer count = events.get(key.toString());
+				events.put(key.toString(), null == count ? 1 : count + 1);
+			}
+		} finally {
+			br.close();
+		}
+		return events;
+	}
+
+	public static void main(String args[]) throws IOException {
+		if (args.length < 2) {
+			printUseage();
+			return;
+		}
+		List<String> lines = Files.readAllLines(Paths.get(args[0]), Charset.defaultCharset());
+		File commandList = new File(args[1]);
+		Map<String, Integer> expected = run(lines, commandList, false);
+		Map<String, Integer> split = run(lines, commandList, true);
+
+		int errors = 0;
+		Set<String> keys = new TreeSet<String>(expected.keySet());
+		keys.addAll(split.keySet());
+		for (String key : keys) {
+			Integer count = split.get(key);
+			Integer expectedCount = expected.get(key);
+			if (null == count || !count.equals(expectedCount)) {
+				System.out.println("NG: " + key + " output " + (null == count ? 0 : count) + " times, expected "
+						+ (null == expectedCount ? 0 : expectedCount));
+				errors++;
+			}
+		}
+		System.out.println((0 == errors ? "OK" : "NG") + ": " + expected.size() + " events, " + errors
+				+ " events differ");
+	}
+}
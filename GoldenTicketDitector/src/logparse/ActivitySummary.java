@@ -0,0 +1,195 @@
+package logparse;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.*;
+
+/**
+ * Run summary of account and computer activity, updated while events are
+ * read. Counts are estimated by count-min sketches and distinct computers by
+ * HyperLogLog, so the summary does not keep the events. HyperLogLog of an
+ * account is sparse while it has few computers, and top processes are kept
+ * for at most MAX_PROCESS_ACCOUNTS accounts, so that memory does not grow
+ * by a fixed size per account.
+ *
+ * summary.csv has the following rows(estimated values):
+ * <ul>
+ * <li>tgs-requests,{account},,{number of 4769 events}: top accounts</li>
+ * <li>admin-computers,{account},,{number of distinct computers}: accounts
+ * which used privileges(4672)</li>
+ * <li>top-process,{account},{process},{number of events}: top processes of
+ * the accounts with the most process events</li>
+ * </ul>
+ *
+ * @version 1.0
+ */
+public class ActivitySummary {
+
+	protected static final int DEFAULT_TOP = 10;
+
+	private static final int EVENT_ST = 4769;
+
+	// 誤差は全体の件数の約2/WIDTH
+	private static final int SKETCH_WIDTH = 1 << 14;
+	private static final int SKETCH_DEPTH = 4;
+	private static final int HLL_PRECISION = 10;
+
+	// 上位のプロセスを持つアカウント数の上限
+	protected static final int MAX_PROCESS_ACCOUNTS = 1000;
+
+	/**
+	 * Keys with the largest estimated counts
+	 */
+	private static class HeavyHitters {
+		private final int size;
+		private final Map<String, Long> top = new HashMap<String, Long>();
+		private String minKey = null;
+
+		HeavyHitters(int size) {
+			this.size = size;
+		}
+
+		/**
+		 * @return key removed to make room for the key, or null
+		 */
+		String offer(String key, long estimate) {
+			if (top.containsKey(key) || top.size() < size) {
+				top.put(key, estimate);
+				if (null == minKey || key.equals(minKey) || estimate < top.get(minKey)) {
+					updateMin();
+				}
+			} else if (estimate > top.get(minKey)) {
+				String removed = minKey;
+				top.remove(minKey);
+				top.put(key, estimate);
+				updateMin();
+				return removed;
+			}
+			return null;
+		}
+
+		boolean contains(String key) {
+			return top.containsKey(key);
+		}
+
+		private void updateMin() {
+			minKey = null;
+			for (Map.Entry<String, Long> e : top.entrySet()) {
+				if (null == minKey || e.getValue() < top.get(minKey)) {
+					minKey = e.getKey();
+				}
+			}
+		}
+
+		List<Map.Entry<String, Long>> sorted() {
+			List<Map.Entry<String, Long>> list = new ArrayList<Map.Entry<String, Long>>(top.entrySet());
+			Collections.sort(list, new Comparator<Map.Entry<String, Long>>() {
+				@Override
+				public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+					int cmp = Long.compare(b.getValue(), a.getValue());
+					return 0 != cmp ? cmp : a.getKey().compareTo(b.getKey());
+				}
+			});
+			return list;
+		}
+	}
+
+	private final int topSize;
+
+	private final CountMinSketch tgsRequests = new CountMinSketch(SKETCH_WIDTH, SKETCH_DEPTH);
+	private final HeavyHitters topAccounts;
+
+	// key: account + "\t" + process
+	private final CountMinSketch processes = new CountMinSketch(SKETCH_WIDTH, SKETCH_DEPTH);
+	private final Map<String, HeavyHitters> topProcesses = new HashMap<String, HeavyHitters>();
+	// プロセスのイベントが多いアカウントだけ上位のプロセスを持つ
+	private final CountMinSketch processEvents = new CountMinSketch(SKETCH_WIDTH, SKETCH_DEPTH);
+	private final HeavyHitters processAccounts = new HeavyHitters(MAX_PROCESS_ACCOUNTS);
+
+	private final Map<String, HyperLogLog> computers = new HashMap<String, HyperLogLog>();
+
+	/**
+	 * @param topSize
+	 *            number of accounts and processes per account in the summary
+	 */
+	public ActivitySummary(int topSize) {
+		this.topSize = Math.max(1, topSize);
+		this.topAccounts = new HeavyHitters(this.topSize);
+	}
+
+	/**
+	 * Update the summary with a stored event
+	 *
+	 * @param ev
+	 */
+	public void add(EventLogData ev) {
+		String accountName = ev.getAccountName();
+		if (null == accountName || accountName.isEmpty()) {
+			return;
+		}
+		if (EVENT_ST == ev.getEventID()) {
+			topAccounts.offer(accountName, tgsRequests.add(accountName));
+		}
+		String computer = ev.getClientAddress();
+		if (null != computer && !computer.isEmpty()) {
+			HyperLogLog hll = computers.get(accountName);
+			if (null == hll) {
+				hll = new HyperLogLog(HLL_PRECISION);
+				computers.put(accountName, hll);
+			}
+			hll.add(computer);
+		}
+		String processName = ev.getProcessName();
+		if (null != processName && !processName.isEmpty()) {
+			// 上位にないアカウントの件数も数えておく
+			long estimate = processes.add(accountName + "\t" + processName);
+			String removed = processAccounts.offer(accountName, processEvents.add(accountName));
+			if (null != removed) {
+				topProcesses.remove(removed);
+			}
+			if (!processAccounts.contains(accountName)) {
+				return;
+			}
+			HeavyHitters hh = topProcesses.get(accountName);
+			if (null == hh) {
+				hh = new HeavyHitters(topSize);
+				topProcesses.put(accountName, hh);
+			}
+			hh.offer(processName, estimate);
+		}
+	}
+
+	/**
+	 * Write summary.csv
+	 *
+	 * @param filename
+	 * @param adminAccounts
+	 *            accounts which used privileges
+	 */
+	public void write(String filename, Set<String> adminAccounts) {
+		PrintWriter pw = null;
+		try {
+			pw = new PrintWriter(new FileWriter(filename, false));
+			pw.println("summary,account,item,estimate");
+			for (Map.Entry<String, Long> e : topAccounts.sorted()) {
+				pw.println("tgs-requests," + e.getKey() + ",," + e.getValue());
+			}
+			for (String accountName : new TreeSet<String>(adminAccounts)) {
+				HyperLogLog hll = computers.get(accountName);
+				pw.println("admin-computers," + accountName + ",," + (null == hll ? 0 : hll.cardinality()));
+			}
+			for (String accountName : new TreeSet<String>(topProcesses.keySet())) {
+				for (Map.Entry<String, Long> e : topProcesses.get(accountName).sorted()) {
+					pw.println("top-process," + accountName + "," + e.getKey() + "," + e.getValue());
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			if (null != pw) {
+				pw.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,233 @@
+package logparse;
+
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import logparse.AuthLogUtil.Alert;
+import logparse.GoldenTicketDetector.AlertType;
+
+/**
+ * In-memory index of alerts by account, computer, alert type and time, so
+ * that alerts of an account or a computer can be queried without reading
+ * result.csv.
+ *
+ * The index is bounded: when it holds more than the maximum number of alerts,
+ * or alerts older than the retention, the oldest alerts are evicted.
+ *
+ * @version 1.0
+ */
+public class AlertIndex {
+
+	protected static final int DEFAULT_MAX_SIZE = 100000;
+	protected static final long DEFAULT_RETENTION = 7 * 24 * 60 * 60 * 1000L;
+
+	/**
+	 * Alert of one event
+	 */
+	public static class Entry {
+		final long seq;
+		final long time;
+		final String date;
+		final int eventID;
+		final String accountName;
+		final String computer;
+		final AlertType alertType;
+		final Alert alertLevel;
+		final String serviceName;
+		final String processName;
+		final String sharedName;
+
+		Entry(long seq, long time, EventLogData ev, String accountName) {
+			this.seq = seq;
+			this.time = time;
+			this.date = ev.getDate();
+			this.eventID = ev.getEventID();
+			this.accountName = accountName;
+			this.computer = ev.getClientAddress();
+			this.alertType = null == ev.getAlertType() ? AlertType.NONE : ev.getAlertType();
+			this.alertLevel = null == ev.getAlertLevel() ? Alert.NONE : ev.getAlertLevel();
+			this.serviceName = ev.getServiceName();
+			this.processName = ev.getProcessName();
+			this.sharedName = ev.getSharedName();
+		}
+
+		// Bound of a time range
+		private Entry(long seq, long time) {
+			this.seq = seq;
+			this.time = time;
+			this.date = null;
+			this.eventID = 0;
+			this.accountName = null;
+			this.computer = null;
+			this.alertType = null;
+			this.alertLevel = null;
+			this.serviceName = null;
+			this.processName = null;
+			this.sharedName = null;
+		}
+	}
+
+	// Order by time, and by order of addition for the same time
+	private static final Comparator<Entry> TIME_ORDER = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry a, Entry b) {
+			int cmp = Long.compare(a.time, b.time);
+			return 0 != cmp ? cmp : Long.compare(a.seq, b.seq);
+		}
+	};
+
+	private final int maxSize;
+	private final long retention;
+
+	private final TreeSet<Entry> all = new TreeSet<Entry>(TIME_ORDER);
+	private final Map<String, TreeSet<Entry>> byAccount = new HashMap<String, TreeSet<Entry>>();
+	private final Map<String, TreeSet<Entry>> byComputer = new HashMap<String, TreeSet<Entry>>();
+	private final Map<AlertType, TreeSet<Entry>> byType = new EnumMap<AlertType, TreeSet<Entry>>(AlertType.class);
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private long seq = 0;
+
+	/**
+	 * @param maxSize
+	 *            maximum number of alerts
+	 * @param retention
+	 *            alerts older than this from the newest alert are evicted(msec)
+	 */
+	public AlertIndex(int maxSize, long retention) {
+		this.maxSize = Math.max(1, maxSize);
+		this.retention = retention;
+	}
+
+	/**
+	 * Add alert of an event
+	 *
+	 * @param accountName
+	 * @param ev
+	 * @param time
+	 *            UNIX Time of the event(msec)
+	 */
+	public void add(String accountName, EventLogData ev, long time) {
+		lock.writeLock().lock();
+		try {
+			Entry entry = new Entry(seq++, time, ev, accountName);
+			all.add(entry);
+			index(byAccount, entry.accountName, entry);
+			index(byComputer, entry.computer, entry);
+			index(byType, entry.alertType, entry);
+			evict();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private static <K> void index(Map<K, TreeSet<Entry>> map, K key, Entry entry) {
+		TreeSet<Entry> set = map.get(key);
+		if (null == set) {
+			set = new TreeSet<Entry>(TIME_ORDER);
+			map.put(key, set);
+		}
+		set.add(entry);
+	}
+
+	private static <K> void unindex(Map<K, TreeSet<Entry>> map, K key, Entry entry) {
+		TreeSet<Entry> set = map.get(key);
+		if (null != set) {
+			set.remove(entry);
+			if (set.isEmpty()) {
+				map.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Remove oldest alerts which exceed the size or the retention
+	 */
+	private void evict() {
+		long limit = all.last().time - retention;
+		while (!all.isEmpty() && (all.size() > maxSize || all.first().time < limit)) {
+			Entry entry = all.pollFirst();
+			unindex(byAccount, entry.accountName, entry);
+			unindex(byComputer, entry.computer, entry);
+			unindex(byType, entry.alertType, entry);
+		}
+	}
+
+	/**
+	 * Time of the newest alert
+	 *
+	 * @return UNIX Time(msec), or -1 if empty
+	 */
+	public long getLatestTime() {
+		lock.readLock().lock();
+		try {
+			return all.isEmpty() ? -1 : all.last().time;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return all.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Query alerts. The most selective index is used.
+	 *
+	 * @param accountName
+	 *            null for any account
+	 * @param computer
+	 *            null for any computer
+	 * @param alertType
+	 *            null for any type
+	 * @param minLevel
+	 *            alerts of this level or more severe. null for any level.
+	 * @param from
+	 *            UNIX Time(msec), inclusive
+	 * @param to
+	 *            UNIX Time(msec), inclusive
+	 * @param limit
+	 *            maximum number of alerts
+	 * @return alerts, newest first
+	 */
+	public List<Entry> query(String accountName, String computer, AlertType alertType, Alert minLevel, long from,
+			long to, int limit) {
+		lock.readLock().lock();
+		try {
+			TreeSet<Entry> set;
+			if (null != accountName) {
+				set = byAccount.get(accountName);
+			} else if (null != computer) {
+				set = byComputer.get(computer);
+			} else if (null != alertType) {
+				set = byType.get(alertType);
+			} else {
+				set = all;
+			}
+			List<Entry> result = new ArrayList<Entry>();
+			if (null == set || from > to) {
+				return result;
+			}
+			NavigableSet<Entry> range = set.subSet(new Entry(Long.MIN_VALUE, from), true,
+					new Entry(Long.MAX_VALUE, to), true);
+			for (Entry entry : range.descendingSet()) {
+				if (result.size() >= limit) {
+					break;
+				}
+				if ((null == computer || computer.equals(entry.computer))
+						&& (null == alertType || alertType == entry.alertType)
+						&& (null == minLevel || entry.alertLevel.ordinal() <= minLevel.ordinal())) {
+					result.add(entry);
+				}
+			}
+			return result;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+}
@@ -0,0 +1,235 @@
+package logparse;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import logparse.AuthLogUtil.Alert;
+import logparse.GoldenTicketDetector.AlertType;
+
+/**
+ * Local HTTP API to query AlertIndex.
+ *
+ * GET /alerts?account=X&amp;computer=Y&amp;type=NoTGT&amp;level=SEVERE&amp;hours=24
+ *
+ * All parameters are optional. level returns alerts of the level or more
+ * severe. hours is counted back from the newest alert in the index, and
+ * from/to(UNIX Time in msec) can be used instead. Alerts are returned newest
+ * first as JSON, up to limit(default 1000).
+ *
+ * @version 1.0
+ */
+public class AlertServer implements HttpHandler {
+
+	private static final int DEFAULT_LIMIT = 1000;
+
+	private final AlertIndex index;
+	private HttpServer server;
+
+	public AlertServer(AlertIndex index) {
+		this.index = index;
+	}
+
+	/**
+	 * Start HTTP server on localhost
+	 *
+	 * @param port
+	 * @throws IOException
+	 */
+	public void start(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+		server.createContext("/alerts", this);
+		server.setExecutor(Executors.newFixedThreadPool(2));
+		server.start();
+		System.out.println("Alert query API: http://localhost:" + port + "/alerts");
+	}
+
+	public void stop() {
+		if (null != server) {
+			server.stop(0);
+		}
+	}
+
+	@Override
+	public void handle(HttpExchange exchange) throws IOException {
+		int status = 200;
+		String body;
+		try {
+			if (!"GET".equals(exchange.getRequestMethod())) {
+				status = 405;
+				body = error("GET only");
+			} else {
+				body = query(parseQuery(exchange.getRequestURI()));
+			}
+		} catch (IllegalArgumentException e) {
+			status = 400;
+			body = error(e.getMessage());
+		}
+		byte bytes[] = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream os = exchange.getResponseBody();
+		try {
+			os.write(bytes);
+		} finally {
+			os.close();
+		}
+	}
+
+	private String query(Map<String, String> params) {
+		String accountName = params.get("account");
+		if (null != accountName) {
+			// 取り込み時と同様にドメイン名は取り除き、小文字にする
+			accountName = accountName.split("@")[0].toLowerCase();
+		}
+		AlertType alertType = null;
+		if (null != params.get("type")) {
+			alertType = parseEnum(AlertType.class, params, "type");
+		}
+		Alert minLevel = null;
+		if (null != params.get("level")) {
+			minLevel = parseEnum(Alert.class, params, "level");
+		}
+		long from = Long.MIN_VALUE;
+		long to = Long.MAX_VALUE;
+		if (null != params.get("hours")) {
+			long latest = index.getLatestTime();
+			from = latest - (long) (parseDouble(params, "hours") * 60 * 60 * 1000);
+		}
+		if (null != params.get("from")) {
+			from = parseLong(params, "from");
+		}
+		if (null != params.get("to")) {
+			to = parseLong(params, "to");
+		}
+		int limit = DEFAULT_LIMIT;
+		if (null != params.get("limit")) {
+			limit = (int) parseLong(params, "limit");
+		}
+
+		long start = System.nanoTime();
+		List<AlertIndex.Entry> alerts = index.query(accountName, params.get("computer"), alertType, minLevel, from,
+				to, limit);
+		long elapsed = System.nanoTime() - start;
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"count\":").append(alerts.size());
+		sb.append(",\"indexed\":").append(index.size());
+		sb.append(",\"elapsedMs\":").append(String.format("%.3f", elapsed / 1000000.0));
+		sb.append(",\"alerts\":[");
+		for (int i = 0; i < alerts.size(); i++) {
+			AlertIndex.Entry e = alerts.get(i);
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append('{');
+			sb.append("\"date\":").append(json(e.date));
+			sb.append(",\"time\":").append(e.time);
+			sb.append(",\"eventID\":").append(e.eventID);
+			sb.append(",\"account\":").append(json(e.accountName));
+			sb.append(",\"computer\":").append(json(e.computer));
+			sb.append(",\"type\":").append(json(e.alertType.name()));
+			sb.append(",\"level\":").append(json(e.alertLevel.name()));
+			sb.append(",\"service\":").append(json(e.serviceName));
+			sb.append(",\"process\":").append(json(e.processName));
+			sb.append(",\"sharedname\":").append(json(e.sharedName));
+			sb.append('}');
+		}
+		sb.append("]}");
+		return sb.toString();
+	}
+
+	private static Map<String, String> parseQuery(URI uri) {
+		Map<String, String> params = new HashMap<String, String>();
+		String query = uri.getRawQuery();
+		if (null == query) {
+			return params;
+		}
+		try {
+			for (String param : query.split("&")) {
+				int idx = param.indexOf('=');
+				if (idx > 0) {
+					params.put(URLDecoder.decode(param.substring(0, idx), "UTF-8"),
+							URLDecoder.decode(param.substring(idx + 1), "UTF-8"));
+				}
+			}
+		} catch (java.io.UnsupportedEncodingException e) {
+			e.printStackTrace();
+		}
+		return params;
+	}
+
+	private static <E extends Enum<E>> E parseEnum(Class<E> type, Map<String, String> params, String name) {
+		for (E value : type.getEnumConstants()) {
+			if (value.name().equalsIgnoreCase(params.get(name))) {
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("Invalid " + name + ": " + params.get(name));
+	}
+
+	private static long parseLong(Map<String, String> params, String name) {
+		try {
+			return Long.parseLong(params.get(name));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid " + name + ": " + params.get(name));
+		}
+	}
+
+	private static double parseDouble(Map<String, String> params, String name) {
+		try {
+			return Double.parseDouble(params.get(name));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid " + name + ": " + params.get(name));
+		}
+	}
+
+	private static String error(String message) {
+		return "{\"error\":" + json(message) + "}";
+	}
+
+	private static String json(String value) {
+		if (null == value) {
+			return "null";
+		}
+		StringBuilder sb = new StringBuilder("\"");
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					sb.append(String.format("\\u%04x", (int) c));
+				} else {
+					sb.append(c);
+				}
+			}
+		}
+		return sb.append('"').toString();
+	}
+}
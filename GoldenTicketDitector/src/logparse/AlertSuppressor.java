@@ -0,0 +1,151 @@
+package logparse;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/**
+ * Collapse repeated alerts of the same account, computer and alert type into
+ * one row.
+ *
+ * The first alert of a key opens an entry, and alerts of the key within the
+ * TTL from it are counted in the entry. The entry is emitted with first seen
+ * time, last seen time and count when an alert of the key comes after the
+ * TTL, when it is evicted as the least recently used entry, or when the cache
+ * is flushed.
+ *
+ * @version 1.0
+ */
+public class AlertSuppressor {
+
+	protected static final int DEFAULT_MAX_SIZE = 10000;
+
+	/**
+	 * Receiver of collapsed rows
+	 */
+	public interface Sink {
+		/**
+		 * @param accountName
+		 * @param first
+		 *            first alert of the key
+		 * @param lastDate
+		 *            date of the last alert of the key
+		 * @param count
+		 *            number of alerts collapsed
+		 */
+		void emit(String accountName, EventLogData first, String lastDate, int count);
+	}
+
+	private static class Suppressed {
+		final String accountName;
+		final EventLogData first;
+		final long firstTime;
+		long lastTime;
+		String lastDate;
+		int count = 1;
+
+		Suppressed(String accountName, EventLogData first, long time) {
+			this.accountName = accountName;
+			this.first = first;
+			this.firstTime = time;
+			this.lastTime = time;
+			this.lastDate = first.getDate();
+		}
+	}
+
+	// Not shared with other threads
+	private final SimpleDateFormat sdf = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
+
+	private final long ttl;
+	private final Sink sink;
+	private final LinkedHashMap<String, Suppressed> cache;
+
+	// Time of the latest alert added
+	private long latestTime = Long.MIN_VALUE;
+
+	/**
+	 * @param ttl
+	 *            alerts within this time from the first alert are collapsed(msec)
+	 * @param maxSize
+	 *            maximum number of keys
+	 * @param sink
+	 */
+	public AlertSuppressor(long ttl, final int maxSize, Sink sink) {
+		this.ttl = ttl;
+		this.sink = sink;
+		this.cache = new LinkedHashMap<String, Suppressed>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Suppressed> eldest) {
+				if (size() > maxSize) {
+					emit(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Add an alerted event
+	 *
+	 * @param accountName
+	 * @param ev
+	 */
+	public void add(String accountName, EventLogData ev) {
+		long time = getTime(ev);
+		latestTime = Math.max(latestTime, time);
+		String key = accountName + "\t" + ev.getClientAddress() + "\t" + ev.getAlertType();
+		Suppressed entry = cache.get(key);
+		if (null != entry && Math.abs(time - entry.firstTime) <= ttl) {
+			entry.count++;
+			if (time >= entry.lastTime) {
+				entry.lastTime = time;
+				entry.lastDate = ev.getDate();
+			}
+			return;
+		}
+		if (null != entry) {
+			// TTLを過ぎたので、新しい行にする
+			emit(entry);
+		}
+		cache.put(key, new Suppressed(accountName, ev, time));
+	}
+
+	/**
+	 * Emit entries whose TTL has passed at the time of the latest alert
+	 */
+	public void expire() {
+		for (Iterator<Suppressed> it = cache.values().iterator(); it.hasNext();) {
+			Suppressed entry = it.next();
+			if (latestTime - entry.firstTime > ttl) {
+				emit(entry);
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Emit all entries
+	 */
+	public void flush() {
+		for (Suppressed entry : cache.values()) {
+			emit(entry);
+		}
+		cache.clear();
+	}
+
+	private void emit(Suppressed entry) {
+		sink.emit(entry.accountName, entry.first, entry.lastDate, entry.count);
+	}
+
+	private long getTime(EventLogData ev) {
+		try {
+			return sdf.parse(ev.getDate()).getTime();
+		} catch (ParseException e) {
+			e.printStackTrace();
+			return 0;
+		}
+	}
+}
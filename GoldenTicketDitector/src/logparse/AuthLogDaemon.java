@@ -0,0 +1,255 @@
+package logparse;
+
+import java.io.*;
+import java.nio.file.*;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long running AuthLogParser which runs jobs dropped into a spool directory,
+ * so that the lists, the noise filter and compiled code are kept between
+ * jobs instead of starting a new JVM for each investigation.
+ *
+ * A job is a properties file "name.job" in the spool directory. Write it
+ * with another name and rename it to .job, so that a half written job is not
+ * read.
+ *
+ * <pre>
+ * input=/logs/case1
+ * output=/results/case1
+ * attack-start=2017/08/01 10:00:00
+ * remove-noise=false
+ * </pre>
+ *
+ * A job is renamed to "name.running" while it runs, and its messages are
+ * written to "name.log". When it ends, "name.done" or "name.failed" is
+ * written with the elapsed time. A job which throws an Error, e.g.
+ * OutOfMemoryError, also fails, and the daemon goes on to the next job. Jobs are run one at a time in the order of
+ * their names.
+ *
+ * @version 1.0
+ */
+public class AuthLogDaemon {
+
+	private static final String JOB = ".job";
+	private static final String RUNNING = ".running";
+	private static final String DONE = ".done";
+	private static final String FAILED = ".failed";
+
+	// Interval of scanning the spool directory when no change is notified(msec)
+	private static final long SCAN_INTERVAL = 5000;
+
+	private final File spoolDir;
+	private final AuthLogParser resident;
+	private final Map<String, String> options;
+	private final SimpleDateFormat sdf = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
+	private volatile boolean running = true;
+	private int jobs = 0;
+
+	/**
+	 * @param spoolDir
+	 *            directory of job files and markers
+	 * @param resident
+	 *            parser with the lists and the noise filter loaded
+	 * @param options
+	 *            options applied to every job
+	 */
+	public AuthLogDaemon(File spoolDir, AuthLogParser resident, Map<String, String> options) {
+		this.spoolDir = spoolDir;
+		this.resident = resident;
+		this.options = options;
+	}
+
+	/**
+	 * Run jobs until the process is stopped
+	 *
+	 * @throws IOException
+	 */
+	public void run() throws IOException {
+		final Thread daemon = Thread.currentThread();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				// 実行中のジョブを終えてから終了する
+				running = false;
+				StageQueue.join(daemon);
+			}
+		});
+		WatchService watcher = FileSystems.getDefault().newWatchService();
+		try {
+			spoolDir.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY);
+			System.out.println("Waiting for jobs in " + spoolDir);
+			while (running) {
+				// 通知を取りこぼしても、一定間隔で走査する
+				File job;
+				while (running && null != (job = nextJob())) {
+					runJob(job);
+				}
+				WatchKey key;
+				try {
+					key = watcher.poll(SCAN_INTERVAL, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					break;
+				}
+				if (null != key) {
+					key.pollEvents();
+					key.reset();
+				}
+			}
+		} finally {
+			watcher.close();
+			System.out.println("Stopped after " + jobs + " jobs");
+		}
+	}
+
+	/**
+	 * Claim the first job by renaming it
+	 *
+	 * @return running job file, or null if there is no job
+	 */
+	private File nextJob() {
+		File files[] = spoolDir.listFiles();
+		if (null == files) {
+			return null;
+		}
+		Arrays.sort(files);
+		for (File file : files) {
+			if (!file.getName().endsWith(JOB)) {
+				continue;
+			}
+			File claimed = new File(spoolDir, baseName(file) + RUNNING);
+			try {
+				Files.move(file.toPath(), claimed.toPath(), StandardCopyOption.ATOMIC_MOVE);
+				return claimed;
+			} catch (IOException e) {
+				// 他のデーモンが先に取った
+				continue;
+			}
+		}
+		return null;
+	}
+
+	private static String baseName(File file) {
+		String name = file.getName();
+		return name.substring(0, name.lastIndexOf('.'));
+	}
+
+	private void runJob(File jobFile) {
+		String name = baseName(jobFile);
+		Properties job = new Properties();
+		PrintStream console = System.out;
+		PrintStream err = System.err;
+		PrintStream log = null;
+		long start = System.currentTimeMillis();
+		String error = null;
+		try {
+			log = new PrintStream(new FileOutputStream(new File(spoolDir, name + ".log")), true);
+			Reader reader = new FileReader(jobFile);
+			try {
+				job.load(reader);
+			} finally {
+				reader.close();
+			}
+			String input = job.getProperty("input");
+			String output = job.getProperty("output");
+			if (null == input || null == output) {
+				throw new IOException("input and output are required");
+			}
+			long attackStartTime = 0;
+			if (null != job.getProperty("attack-start")) {
+				attackStartTime = sdf.parse(job.getProperty("attack-start")).getTime();
+			}
+			console.println(name + ": started");
+			System.setOut(log);
+			System.setErr(log);
+			AuthLogParser parser = resident.newJob(output, attackStartTime,
+					Boolean.parseBoolean(job.getProperty("remove-noise", "false")));
+			parser.configure(options);
+			parser.runJob(input);
+		} catch (IOException e) {
+			error = e.toString();
+		} catch (ParseException e) {
+			error = "attack-start shold be specified 'yyyy/MM/dd HH:mm:ss' format.";
+		} catch (Throwable e) {
+			// OutOfMemoryErrorなどでもジョブを失敗にして、次のジョブを待つ
+			e.printStackTrace(null != log ? log : console);
+			error = e.toString();
+		} finally {
+			System.setOut(console);
+			System.setErr(err);
+			if (null != log) {
+				log.close();
+			}
+		}
+		long elapsed = System.currentTimeMillis() - start;
+		jobs++;
+		writeMarker(name, job, error, elapsed);
+		jobFile.delete();
+		console.println(name + ": " + (null == error ? "done" : "failed: " + error) + " in " + elapsed + " msec");
+	}
+
+	/**
+	 * Write the completion marker of a job. It is renamed after written, so
+	 * that a waiting client does not read a half written marker.
+	 */
+	private void writeMarker(String name, Properties job, String error, long elapsed) {
+		Properties marker = new Properties();
+		for (String key : job.stringPropertyNames()) {
+			marker.setProperty(key, job.getProperty(key));
+		}
+		marker.setProperty("elapsed-msec", String.valueOf(elapsed));
+		if (null != error) {
+			marker.setProperty("error", error);
+		}
+		File file = new File(spoolDir, name + (null == error ? DONE : FAILED));
+		File tmp = new File(file.getPath() + ".tmp");
+		try {
+			Writer writer = new FileWriter(tmp);
+			try {
+				marker.store(writer, null == error ? "done" : "failed");
+			} finally {
+				writer.close();
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static void printUseage() {
+		System.out.println("Useage");
+		System.out.println("{spool dir} {suspicious command list file} ({adminlist}) (options)");
+		System.out.println("Run jobs(name.job) dropped into the spool dir. See AuthLogDaemon for the job format.");
+		System.out.println("Options:");
+		System.out.println("  --reload-interval=S    seconds between checks for changed command and admin lists"
+				+ " (default: 10)");
+		System.out.println("  Options of AuthLogParser except --profile are applied to every job.");
+	}
+
+	public static void main(String args[]) throws IOException {
+		Map<String, String> options = AuthLogUtil.parseOptions(args);
+		args = AuthLogUtil.removeOptions(args);
+		if (args.length < 2) {
+			printUseage();
+			return;
+		}
+		File spoolDir = new File(args[0]);
+		if (!spoolDir.isDirectory()) {
+			System.out.println("Spool directory does not exist: " + spoolDir);
+			return;
+		}
+		if (options.containsKey("profile")) {
+			System.out.println("--profile is not supported in daemon mode, ignored");
+		}
+		AuthLogParser resident = new AuthLogParser();
+		resident.setLists(args[1], args.length > 2 ? args[2] : null);
+		if (options.containsKey("noise-filter")) {
+			resident.loadNoiseFilter(new File(options.get("noise-filter")));
+		}
+		resident.watchLists(AuthLogUtil.getIntOption(options, "reload-interval", 10) * 1000L);
+		new AuthLogDaemon(spoolDir, resident, options).run();
+	}
+}
@@ -1,6 +1,7 @@
 package logparse;
 
 import java.io.*;
+import java.nio.charset.Charset;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -9,6 +10,7 @@ import java.text.*;
 import java.util.*;
 
 import logparse.AuthLogUtil.Alert;
+import logparse.AuthLogUtil.Field;
 import logparse.GoldenTicketDetector.AlertType;
 
 /**
@@ -20,8 +22,8 @@ import logparse.GoldenTicketDetector.AlertType;
 public class AuthLogParser {
 
 	// キーはアカウント名、値はEventLogDataオブジェクトのリスト。アカウント毎に分類するため
-	private static Map<String, LinkedHashSet<EventLogData>> log;
-	private static String outputDirName = null;
+	private Map<String, LinkedHashSet<EventLogData>> log = new LinkedHashMap<String, LinkedHashSet<EventLogData>>();
+	private String outputDirName = null;
 
 	// Initial value for timeCnt
 	private static short TIME_CNT = Short.MAX_VALUE;
@@ -36,15 +38,19 @@ public class AuthLogParser {
 	private static int EVENT_TGT = 4768;
 	private static int EVENT_ST = 4769;
 	private static int EVENT_SHARE = 5140;
+
+	// Fields used for the training data. All fields are used: object names
+	// find PSEXESVC, and privileges store 4674 events.
+	private static final Set<Field> FIELDS = EnumSet.allOf(Field.class);
 		
 	private final static String SYSTEM_DIR="c:\\windows";
 	private final static String REMOVE_CMD="c:\\temp\\tools\\backdoor";
 
 	// Suspicious command list
-	private List<String> suspiciousCmd = null;
+	private ReloadableList suspiciousCmd = null;
 
 	// admin account white list
-	private List<String> adminWhiteList = null;
+	private ReloadableList adminWhiteList = null;
 	
 	// account white list
 	private List<String> whiteList = null;
@@ -55,193 +61,140 @@ public class AuthLogParser {
 	// account name for detection(Domain Admin Privilege accounts)
 	private Set<String> adminAccounts = new LinkedHashSet<String>();
 
-	private int detecctTargetcmdCnt = 0;
 
 	private FileWriter filewriter = null;
 	private BufferedWriter bw = null;
 	private PrintWriter pw = null;
 
+	// Write output partitioned by account on separate threads(1: single file)
+	private int outputPartitions = 1;
+	private boolean concatOutput = false;
+	private PartitionedWriter<String> partitionWriter = null;
+
 	// Data format
-	private static SimpleDateFormat sdf = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
+	private SimpleDateFormat sdf = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
 
-	private static long attackStartTime = 0;
+	private long attackStartTime = 0;
 	private int logCnt = 0;
+
+	// Fingerprints of events read so far, null if not deduplicated
+	private EventFingerprintSet seenEvents = null;
 	private int outlierNum = 0;
 	private int trainNum = 0;
 	private int testNum = 0;
 	private int dataNum = 0;
 	private int infectedNum = 0;
 
-	private static boolean removeNoise = false;
+	private boolean removeNoise = false;
+
+	// Behavioral baseline of accounts, null if events are not scored
+	private BehaviorProfile profile = null;
+
+	// Sort events on disk and evaluate one account at a time (null: keep all events in memory)
+	private ExternalEventSorter sorter = null;
+
+	// Read all input files as one stream ordered by time stamp
+	private boolean mergeFiles = false;
+
+	// Drop records of non-target events before decoding CSV files
+	private boolean prefilter = false;
+
+	// Drop noisy events while parsing (null: not filtered)
+	private NoiseFilter noiseFilter = null;
+
+	// Attributes of process paths used by the detection rules
+	private ProcessInfoCache processInfo = new ProcessInfoCache(ProcessInfoCache.DEFAULT_MAX_SIZE);
+
+
+	// Parser state which is carried over lines of an event log
+	private static class ParseState {
+		int eventID = -1;
+		String date = "";
+		LinkedHashSet<EventLogData> evSet = null;
+		String accountName = "";
+		String clientAddress = "";
+		String serviceName = "";
+		String processName = "";
+		String shredName = "";
+		String objectName = "";
+		String privilege = "";
+		int clientPort = 0;
+		boolean isTargetEvent = false;
 
+		// categorize same operations based on time stamp
+		short timeCnt = TIME_CNT;
+		Date baseDate = null;
+		EventLogData ev = null;
+	}
 
 	private void readCSV(String filename) {
+		try {
+			readCSV(openCSV(new File(filename)));
+		} catch (IOException e) {
+			System.out.println(e);
+		}
+	}
+
+	/**
+	 * Open a CSV file. With prefilter, records of non-target events are
+	 * dropped before decoding.
+	 */
+	private Reader openCSV(File file) throws IOException {
+		if (!prefilter) {
+			return new FileReader(file);
+		}
+		return new InputStreamReader(new RecordPrefilter(new FileInputStream(file), EVENT_TGT, EVENT_ST,
+				EVENT_PRIV_OPE, EVENT_PRIV, EVENT_PRIV_SERVICE, EVENT_PROCESS, EVENT_SHARE), Charset.defaultCharset());
+	}
+
+	private void readCSV(Reader reader) {
 
 		try {
-			File f = new File(filename);
-			BufferedReader br = new BufferedReader(new FileReader(f));
+			BufferedReader br = new BufferedReader(reader);
 			String line;
-			int eventID = -1;
-			String date = "";
-			LinkedHashSet<EventLogData> evSet = null;
-			String accountName = "";
-			String clientAddress = "";
-			String serviceName = "";
-			String processName = "";
-			String shredName = "";
-			String objectName = "";
-			String privilege="";
-			boolean isTargetEvent = false;
+			ParseState st = new ParseState();
 
 			// splitする際の上限回数
 			int limit = 0;
 
-			// categorize same operations based on time stamp
-			short timeCnt = TIME_CNT;
-			Date baseDate = null;
-			Date logDate = null;
-			EventLogData ev=null;
 			while ((line = br.readLine()) != null) {
-				int clientPort = 0;
+				st.clientPort = 0;
 				// Remove tab
 				line = line.replaceAll("\\t", "");
 				String[] data = line.split(",", 0);
+				if (line.contains("Microsoft-Windows-Security-Auditing,")) {
+					boolean isTarget = line.contains(String.valueOf(EVENT_TGT))
+							|| line.contains(String.valueOf(EVENT_ST))
+							|| line.contains(String.valueOf(EVENT_PRIV_OPE))
+							|| line.contains(String.valueOf(EVENT_PRIV))
+							|| line.contains(String.valueOf(EVENT_PRIV_SERVICE))
+							|| line.contains(String.valueOf(EVENT_PROCESS))
+							|| line.contains(String.valueOf(EVENT_SHARE));
+					parseHeader(st, data[1], Integer.parseInt(data[3]), isTarget);
+					continue;
+				}
+				if (!st.isTargetEvent) {
+					continue;
+				}
 				for (String elem : data) {
-					if (line.contains("Microsoft-Windows-Security-Auditing,")) {
-						date = data[1];
-						eventID = Integer.parseInt(data[3]);
-						if (line.contains(String.valueOf(EVENT_TGT)) || line.contains(String.valueOf(EVENT_ST))
-								|| line.contains(String.valueOf(EVENT_PRIV_OPE))
-								|| line.contains(String.valueOf(EVENT_PRIV))
-								|| line.contains(String.valueOf(EVENT_PRIV_SERVICE))
-								|| line.contains(String.valueOf(EVENT_PROCESS))
-								|| line.contains(String.valueOf(EVENT_SHARE))) {
-							isTargetEvent = true;
-							try {
-								// Get date
-								logDate = sdf.parse(date);
-								if (EVENT_ST == eventID && null == baseDate) {
-									// this.EVENT_ST を起点として同じ時間帯に出ているログを調べる
-									baseDate = sdf.parse(date);
-									timeCnt--;
-								} else if (null != baseDate) {
-									// ログのタイムスタンプ差を調べる
-									long logTime = logDate.getTime();
-									long baseTime = baseDate.getTime();
-									long timeDiff = (baseTime - logTime) / 1000;
-									if (timeDiff > 1) {
-										// 1秒以上離れているログには異なるtimeCntを割り当てる
-										timeCnt--;
-										baseDate = sdf.parse(date);
-									}
-								}
-
-							} catch (ParseException e) {
-								e.printStackTrace();
-							}
-						} else {
-							isTargetEvent = false;
-						}
-					} else if (isTargetEvent) {
-						if (elem.contains("アカウント名:") || elem.contains("Account Name:")) {
-							accountName = parseElement(elem, ":", limit);
-							if (accountName.isEmpty()) {
-								continue;
-							} else {
-								// ドメイン名は取り除き、全て小文字にする
-								accountName = accountName.split("@")[0].toLowerCase();
-								if (null == log.get(accountName)) {
-									evSet = new LinkedHashSet<EventLogData>();
-								} else {
-									evSet = log.get(accountName);
-								}
-								if (EVENT_PRIV == eventID) {
-									// 4672はこれ以上情報がないので、アカウント名だけ取得し、管理者アカウントリストに入れる
-									accounts.add(accountName);
-									adminAccounts.add(accountName);
-									continue;
-								} else {
-									// extract all users
-									accounts.add(accountName);
-								}
-							}
-
-						} else if (elem.contains("サービス名:") || elem.contains("Service Name:")) {
-							serviceName = parseElement(elem, ":", limit);
-						} else if (elem.contains("クライアント アドレス:") || elem.contains("Client Address:")
-								|| elem.contains("ソース ネットワーク アドレス:") || elem.contains("Source Network Address:")
-								|| elem.contains("送信元アドレス:") || elem.contains("Source Address:")) {
-							elem = elem.replaceAll("::ffff:", "");
-							clientAddress = parseElement(elem, ":", limit);
-
-						} else if ((elem.contains("クライアント ポート:") || elem.contains("Client Port:")
-								|| elem.contains("ソース ポート:")|| elem.contains("Source Port:"))) {
-							try {
-								clientPort = Integer.parseInt(parseElement(elem, ":", limit));
-							} catch (NumberFormatException e) {
-								// nothing
-							}
-							evSet.add(new EventLogData(date, clientAddress, accountName, eventID, clientPort,
-									serviceName, processName, timeCnt));
-							if (EVENT_SHARE != eventID) {
-								// 5140は共有名の情報を取得してから格納する
-								log.put(accountName, evSet);
-							}
-						} else if (elem.contains("オブジェクト名:") || elem.contains("Object Name:")) {
-							objectName = parseElement(elem, ":", 2).toLowerCase();
-						} else if ((elem.contains("プロセス名:") || elem.contains("Process Name:"))) {
-							// プロセス名は":"が含まれることがあることを考慮
-							processName = parseElement(elem, ":", 2).toLowerCase();
-							if (removeNoise) {
-								// Remove noise
-								boolean isNoise = false;
-								if (processName.equals(SYSTEM_DIR+"\\services.exe")) {
-									if (objectName.contains(PSEXESVC)) {
-										processName = objectName;
-									} else {
-										isNoise = true;
-									}
-								} else if (processName.equals(SYSTEM_DIR+"\\lsass.exe")) {
-									isNoise = true;
-								} else if (processName.contains(REMOVE_CMD)) {
-									isNoise = true;
-								}
-								if (isNoise) {
-									// Remove services.exe
-									processName = "";
-									continue;
-								}
-							}
-
-							// 認証要求元は記録されない
-							clientAddress = "";
-							 ev = new EventLogData(date, clientAddress, accountName, eventID, clientPort,
-									serviceName, processName, timeCnt);
-							ev.setObjectName(objectName);
-							if(eventID==EVENT_PROCESS || eventID==EVENT_PRIV_SERVICE){
-								evSet.add(ev);
-								log.put(accountName, evSet);
-							}
-							processName = "";
-							objectName = "";
-						} else if (elem.contains("共有名:")||elem.contains("Share Name:")) {
-							 ev = new EventLogData(date, clientAddress, accountName, eventID, clientPort,
-									serviceName, processName, timeCnt);
-							shredName = parseElement(elem, ":", 2).toLowerCase();
-							ev.setSharedName(shredName);
-							evSet.add(ev);
-							log.put(accountName, evSet);
-							shredName = "";
-						}  else if (eventID==EVENT_PRIV_OPE && (elem.contains("特権:")||elem.contains("Privileges:"))) {
-							privilege = parseElement(elem, ":", 2).toLowerCase();
-							if(ev!=null){
-								ev.setPrivilege(privilege);
-							}
-							evSet.add(ev);
-							log.put(accountName, evSet);
-							privilege = "";
-						}
+					if (!st.isTargetEvent) {
+						break;
 					}
+					Field field = AuthLogUtil.matchField(elem, FIELDS);
+					if (null == field) {
+						continue;
+					}
+					String value;
+					if (Field.ADDRESS == field) {
+						value = parseElement(elem.replaceAll("::ffff:", ""), ":", limit);
+					} else if (Field.OBJECT == field || Field.PROCESS == field || Field.SHARE == field
+							|| Field.PRIVILEGE == field) {
+						// プロセス名は":"が含まれることがあることを考慮
+						value = parseElement(elem, ":", 2);
+					} else {
+						value = parseElement(elem, ":", limit);
+					}
+					parseField(st, field, value);
 				}
 			}
 			br.close();
@@ -251,6 +204,259 @@ public class AuthLogParser {
 
 	}
 
+	/**
+	 * Read event log file which is not CSV(.evtx, XML)
+	 * 
+	 * @param file
+	 */
+	private void readRecords(File file) {
+		EventRecordReader reader = null;
+		try {
+			reader = EventRecordReader.open(file);
+			ParseState st = new ParseState();
+			EventRecord record;
+			while ((record = reader.next()) != null) {
+				readRecord(st, record);
+			}
+		} catch (IOException e) {
+			System.out.println(file + ": " + e);
+		} finally {
+			if (null != reader) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Parse an event record whose fields are keyed by EventData names
+	 */
+	private void readRecord(ParseState st, EventRecord record) {
+		int eventID = record.getEventID();
+		boolean isTarget = EVENT_TGT == eventID || EVENT_ST == eventID || EVENT_PRIV_OPE == eventID
+				|| EVENT_PRIV == eventID || EVENT_PRIV_SERVICE == eventID || EVENT_PROCESS == eventID
+				|| EVENT_SHARE == eventID;
+		parseHeader(st, sdf.format(new Date(record.getTime())), eventID, isTarget);
+		if (!st.isTargetEvent) {
+			return;
+		}
+		for (Map.Entry<Field, String> entry : record.getFields(FIELDS).entrySet()) {
+			if (!st.isTargetEvent) {
+				break;
+			}
+			st.clientPort = 0;
+			parseField(st, entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Parse header of an event and assign timeCnt
+	 */
+	private void parseHeader(ParseState st, String date, int eventID, boolean isTarget) {
+		st.date = date;
+		st.eventID = eventID;
+		st.isTargetEvent = isTarget;
+		if (!isTarget) {
+			return;
+		}
+		try {
+			// Get date
+			Date logDate = sdf.parse(date);
+			if (EVENT_ST == eventID && null == st.baseDate) {
+				// this.EVENT_ST を起点として同じ時間帯に出ているログを調べる
+				st.baseDate = logDate;
+				st.timeCnt--;
+			} else if (null != st.baseDate) {
+				// ログのタイムスタンプ差を調べる
+				long logTime = logDate.getTime();
+				long baseTime = st.baseDate.getTime();
+				long timeDiff = (baseTime - logTime) / 1000;
+				if (timeDiff > 1) {
+					// 1秒以上離れているログには異なるtimeCntを割り当てる
+					st.timeCnt--;
+					st.baseDate = logDate;
+				}
+			}
+		} catch (ParseException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Parse a field of a target event and store events
+	 */
+	private void parseField(ParseState st, Field field, String value) {
+		switch (field) {
+		case ACCOUNT:
+			st.accountName = value;
+			if (st.accountName.isEmpty()) {
+				return;
+			}
+			// ドメイン名は取り除き、全て小文字にする
+			st.accountName = st.accountName.split("@")[0].toLowerCase();
+			if (isNoise(st, Field.ACCOUNT, st.accountName)) {
+				return;
+			}
+			if (null == log.get(st.accountName)) {
+				st.evSet = new LinkedHashSet<EventLogData>();
+			} else {
+				st.evSet = log.get(st.accountName);
+			}
+			if (EVENT_PRIV == st.eventID) {
+				// 4672はこれ以上情報がないので、アカウント名だけ取得し、管理者アカウントリストに入れる
+				accounts.add(st.accountName);
+				adminAccounts.add(st.accountName);
+			} else {
+				// extract all users
+				accounts.add(st.accountName);
+			}
+			break;
+		case SERVICE:
+			if (isNoise(st, Field.SERVICE, value.toLowerCase())) {
+				// 捨てたイベントのサービス名は後のイベントに引き継がない
+				return;
+			}
+			st.serviceName = value;
+			break;
+		case ADDRESS:
+			if (value.startsWith("::ffff:")) {
+				value = value.substring("::ffff:".length());
+			}
+			st.clientAddress = value;
+			break;
+		case PORT:
+			try {
+				st.clientPort = Integer.parseInt(value);
+			} catch (NumberFormatException e) {
+				// nothing
+			}
+			EventLogData portEv = new EventLogData(st.date, st.clientAddress, st.accountName, st.eventID,
+					st.clientPort, st.serviceName, st.processName, st.timeCnt);
+			if (EVENT_SHARE != st.eventID) {
+				storeEvent(st.accountName, st.evSet, portEv);
+			} else if (!isDuplicate(portEv)) {
+				if (null != sorter) {
+					sorter.add(portEv);
+				} else {
+					// 5140は共有名の情報を取得してから格納する
+					st.evSet.add(portEv);
+				}
+			}
+			break;
+		case OBJECT:
+			st.objectName = value.toLowerCase();
+			break;
+		case PROCESS:
+			st.processName = value.toLowerCase();
+			if (isNoise(st, Field.PROCESS, st.processName)) {
+				st.processName = "";
+				return;
+			}
+			if (removeNoise) {
+				// Remove noise
+				boolean isNoise = false;
+				if (st.processName.equals(SYSTEM_DIR + "\\services.exe")) {
+					if (st.objectName.contains(PSEXESVC)) {
+						st.processName = st.objectName;
+					} else {
+						isNoise = true;
+					}
+				} else if (st.processName.equals(SYSTEM_DIR + "\\lsass.exe")) {
+					isNoise = true;
+				} else if (st.processName.contains(REMOVE_CMD)) {
+					isNoise = true;
+				}
+				if (isNoise) {
+					// Remove services.exe
+					st.processName = "";
+					return;
+				}
+			}
+
+			// 認証要求元は記録されない
+			st.clientAddress = "";
+			st.ev = new EventLogData(st.date, st.clientAddress, st.accountName, st.eventID, st.clientPort,
+					st.serviceName, st.processName, st.timeCnt);
+			st.ev.setObjectName(st.objectName);
+			if (EVENT_PROCESS == st.eventID || EVENT_PRIV_SERVICE == st.eventID) {
+				storeEvent(st.accountName, st.evSet, st.ev);
+			}
+			st.processName = "";
+			st.objectName = "";
+			break;
+		case SHARE:
+			st.ev = new EventLogData(st.date, st.clientAddress, st.accountName, st.eventID, st.clientPort,
+					st.serviceName, st.processName, st.timeCnt);
+			st.shredName = value.toLowerCase();
+			st.ev.setSharedName(st.shredName);
+			storeEvent(st.accountName, st.evSet, st.ev);
+			st.shredName = "";
+			break;
+		case PRIVILEGE:
+			if (EVENT_PRIV_OPE != st.eventID) {
+				break;
+			}
+			st.privilege = value.toLowerCase();
+			if (null != st.ev) {
+				st.ev.setPrivilege(st.privilege);
+				storeEvent(st.accountName, st.evSet, st.ev);
+			}
+			st.privilege = "";
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Check a field against the noise filter. If it matches, the rest of the
+	 * event is skipped and no event is created from it.
+	 * 
+	 * @return true if the event is dropped
+	 */
+	private boolean isNoise(ParseState st, Field field, String value) {
+		if (null == noiseFilter || !noiseFilter.isNoise(field, value)) {
+			return false;
+		}
+		st.isTargetEvent = false;
+		return true;
+	}
+
+	/**
+	 * Store event to the account's event set, or to the sort runs
+	 */
+	private void storeEvent(String accountName, LinkedHashSet<EventLogData> evSet, EventLogData ev) {
+		if (isDuplicate(ev)) {
+			return;
+		}
+		if (null != sorter) {
+			sorter.add(ev);
+			return;
+		}
+		evSet.add(ev);
+		log.put(accountName, evSet);
+	}
+
+	/**
+	 * @return true if the same event was already read from an overlapping export
+	 */
+	private boolean isDuplicate(EventLogData ev) {
+		return null != seenEvents && !seenEvents.add(ev);
+	}
+
+	/**
+	 * Drop events which are read twice from overlapping exports
+	 * 
+	 * @param maxSize
+	 *            number of fingerprints kept per generation
+	 */
+	private void enableDedup(int maxSize) {
+		seenEvents = new EventFingerprintSet(maxSize);
+	}
+
 	private String parseElement(String elem, String delimiter, int limit) {
 		String value = "";
 		try {
@@ -271,91 +477,141 @@ public class AuthLogParser {
 
 	private void outputResults(Map map, String outputFileName) {
 		try {
-			// normal result
-			filewriter = new FileWriter(outputFileName, true);
-			bw = new BufferedWriter(filewriter);
-			pw = new PrintWriter(bw);
-			pw.println("date,eventID,account,ip,service,process,objectname,sharedname,target,alertlevel");
+			String header = "date,eventID,account,ip,service,process,objectname,sharedname,target,alertlevel"
+					+ (null != profile ? ",score" : "");
+			if (outputPartitions > 1) {
+				// アカウントごとに分割したファイルへ並行して書き込む
+				partitionWriter = new PartitionedWriter<String>(new File(outputFileName), header, outputPartitions,
+						256, new PartitionedWriter.Formatter<String>() {
+							@Override
+							public void write(String rows, PrintWriter out) {
+								out.print(rows);
+							}
+						});
+			} else {
+				// normal result
+				filewriter = new FileWriter(outputFileName, true);
+				bw = new BufferedWriter(filewriter);
+				pw = new PrintWriter(bw);
+				pw.println(header);
+			}
 
 			System.out.println("Infected accounts and computers:");
 
-			ArrayList<EventLogData> list = null;
-
-			// アカウントごとに処理する
-			for (String accountName : accounts) {
-				LinkedHashSet<EventLogData> evS = log.get(accountName);
-				if (null == evS) {
-					continue;
-				}
-				// ソース IPが出ないイベントに、ソースIPをセットする
-				setClientAddress(evS);
-
-				// クライアントアドレス毎にログを保持するためのリスト(キー：クライアントアドレス)
-				Map<String, LinkedHashSet> kerlog = new LinkedHashMap<String, LinkedHashSet>();
-
-				// 同じ時間帯毎にログを保持するためのリスト(キー：クライアントアドレス)
-				Map<Long, LinkedHashSet> timeBasedlog = new LinkedHashMap<Long, LinkedHashSet>();
-
-				// さらにクライアントアドレスごとに分類し、GTが使われている可能性があるかを判定する
-				for (EventLogData ev : evS) {
-					if(null==ev){
-						continue;
-					}
-					LinkedHashSet<EventLogData> evSet;
-					String clientAddress = ev.getClientAddress();
-					if (null != kerlog.get(clientAddress)) {
-						evSet = kerlog.get(clientAddress);
-					} else {
-						evSet = new LinkedHashSet<EventLogData>();
+			if (null != sorter) {
+				// ソート済みのランをマージし、アカウントごとに処理する
+				for (List<EventLogData> events : sorter) {
+					String accountName = events.get(0).getAccountName();
+					if (accounts.contains(accountName)) {
+						detectAccount(accountName, new LinkedHashSet<EventLogData>(events));
 					}
-					evSet.add(ev);
-					kerlog.put(ev.getClientAddress(), evSet);
 				}
-
-				for (Iterator it = kerlog.entrySet().iterator(); it.hasNext();) {
-					Map.Entry<String, LinkedHashSet> entry = (Map.Entry<String, LinkedHashSet>) it.next();
-					String computer = entry.getKey();
-					if (!accountName.isEmpty() && !computer.isEmpty()) {
-						this.dataNum++;
-					}
-				}
-				// 異常値どうかか判定
-				if (adminAccounts.contains(accountName)) {
-					isOutlier(kerlog, accountName);
-				}
-				// 同じ時間帯のログごとに処理
-				list = new ArrayList<EventLogData>(evS);
-				Collections.reverse(list);
-				for (EventLogData ev : list) {
-					if(null==ev){
+			} else {
+				// アカウントごとに処理する
+				for (String accountName : accounts) {
+					LinkedHashSet<EventLogData> evS = log.get(accountName);
+					if (null == evS) {
 						continue;
 					}
-					LinkedHashSet<EventLogData> evSet;
-					if (null != timeBasedlog.get(ev.getTimeCnt())) {
-						evSet = timeBasedlog.get(ev.getTimeCnt());
-					} else {
-						evSet = new LinkedHashSet<EventLogData>();
-					}
-					evSet.add(ev);
-					timeBasedlog.put(ev.getTimeCnt(), evSet);
+					detectAccount(accountName, evS);
+				}
+			}
+			if (null != partitionWriter) {
+				partitionWriter.close();
+				if (concatOutput) {
+					partitionWriter.concat(new File(outputFileName));
 				}
-
-				// 結果をファイルに出力する
-				outputLogs(timeBasedlog, accountName);
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		} finally {
-			pw.close();
-			try {
-				bw.close();
-			} catch (IOException e) {
-				e.printStackTrace();
+			if (null != pw) {
+				pw.close();
+				try {
+					bw.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
 			}
 		}
 	}
 
+	/**
+	 * Judge outliers for one account and output the result
+	 * 
+	 * @param accountName
+	 * @param evS
+	 *            events of the account in the order of the event log
+	 */
+	private void detectAccount(String accountName, LinkedHashSet<EventLogData> evS) {
+		// ソース IPが出ないイベントに、ソースIPをセットする
+		setClientAddress(evS);
+
+		// クライアントアドレス毎にログを保持するためのリスト(キー：クライアントアドレス)
+		Map<String, LinkedHashSet> kerlog = new LinkedHashMap<String, LinkedHashSet>();
+
+		// 同じ時間帯毎にログを保持するためのリスト(キー：クライアントアドレス)
+		Map<Long, LinkedHashSet> timeBasedlog = new LinkedHashMap<Long, LinkedHashSet>();
+
+		// さらにクライアントアドレスごとに分類し、GTが使われている可能性があるかを判定する
+		for (EventLogData ev : evS) {
+			if(null==ev){
+				continue;
+			}
+			LinkedHashSet<EventLogData> evSet;
+			String clientAddress = ev.getClientAddress();
+			if (null != kerlog.get(clientAddress)) {
+				evSet = kerlog.get(clientAddress);
+			} else {
+				evSet = new LinkedHashSet<EventLogData>();
+			}
+			evSet.add(ev);
+			kerlog.put(ev.getClientAddress(), evSet);
+		}
+
+		for (Iterator it = kerlog.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String, LinkedHashSet> entry = (Map.Entry<String, LinkedHashSet>) it.next();
+			String computer = entry.getKey();
+			if (!accountName.isEmpty() && !computer.isEmpty()) {
+				this.dataNum++;
+			}
+		}
+		// 異常値どうかか判定
+		if (adminAccounts.contains(accountName)) {
+			isOutlier(kerlog, accountName);
+		}
+		// 同じ時間帯のログごとに処理
+		List<EventLogData> list = new ArrayList<EventLogData>(evS);
+		Collections.reverse(list);
+		for (EventLogData ev : list) {
+			if(null==ev){
+				continue;
+			}
+			LinkedHashSet<EventLogData> evSet;
+			if (null != timeBasedlog.get(ev.getTimeCnt())) {
+				evSet = timeBasedlog.get(ev.getTimeCnt());
+			} else {
+				evSet = new LinkedHashSet<EventLogData>();
+			}
+			evSet.add(ev);
+			timeBasedlog.put(ev.getTimeCnt(), evSet);
+		}
+
+		// 結果をファイルに出力する
+		if (null != partitionWriter) {
+			// 行の作成は学習データの集計を伴うのでこのスレッドで行い、書き込みを並行して行う
+			StringWriter rows = new StringWriter();
+			outputLogs(timeBasedlog, accountName, new PrintWriter(rows));
+			partitionWriter.write(accountName, rows.toString());
+		} else {
+			outputLogs(timeBasedlog, accountName, pw);
+		}
+	}
+
 	private void isOutlier(Map<String, LinkedHashSet> kerlog, String accountName) {
+		// 評価中にリストが再読み込みされても、同じ内容で判定する
+		ReloadableList.Snapshot admins = adminWhiteList.get();
+		ReloadableList.Snapshot cmds = suspiciousCmd.get();
 		// kerlogは端末毎に分類されたログ
 		for (Iterator it = kerlog.entrySet().iterator(); it.hasNext();) {
 			boolean isTGTEvent = false;
@@ -391,7 +647,7 @@ public class AuthLogParser {
 			}
 			Set<String> commands = new LinkedHashSet<String>();
 			for (EventLogData ev : evS) {
-				if(ev.getEventID()==EVENT_PRIV_OPE &&!this.adminWhiteList.contains(accountName) 
+				if(ev.getEventID()==EVENT_PRIV_OPE &&!admins.contains(accountName) 
 						&& this.adminAccounts.contains(accountName)){
 					// 管理者リストに含まれていないのに、特権を使っている
 					isGolden = 1;
@@ -400,31 +656,26 @@ public class AuthLogParser {
 				}
 				if (EVENT_PRIV_SERVICE == ev.getEventID() || EVENT_PRIV_OPE == ev.getEventID()
 						|| EVENT_PROCESS == ev.getEventID()) {
+					ProcessInfoCache.ProcessInfo info = processInfo.get(ev.getProcessName(), cmds);
 					// 4673,4674に記録されたプロセスのパスがシステムディレクトリでない
-					if(!ev.getProcessName().contains(SYSTEM_DIR)){
+					if(!info.isSystemDir()){
 						isGolden = 1;
 						ev.setIsGolden(isGolden);
 						ev.setAlertLevel(Alert.SEVERE);
 					}
-					String command[] = ev.getProcessName().split("\\\\");
-					String commandName = "";
-					if (null != command) {
-						commandName = command[command.length - 1];
-					}
 					// 攻撃者がよく実行するコマンドを実行している
-					for (String cmd : suspiciousCmd) {
-						if (commandName.equals(cmd)) {
+					if (info.isSuspicious()) {
+						isGolden = 1;
+						ev.setIsGolden(isGolden);
+						commands.add(ev.getProcessName());
+					}
+					// コマンドリストが空の場合は従来通り判定しない
+					if (cmds.size() > 0 && EVENT_PRIV_OPE == ev.getEventID()) {
+						// psexecが実行されている
+						if (ev.getObjectName().contains(this.PSEXESVC)) {
 							isGolden = 1;
 							ev.setIsGolden(isGolden);
-							commands.add(ev.getProcessName());
-						}
-						if (EVENT_PRIV_OPE == ev.getEventID()) {
-							// psexecが実行されている
-							if (ev.getObjectName().contains(this.PSEXESVC)) {
-								isGolden = 1;
-								ev.setIsGolden(isGolden);
-								ev.setAlertLevel(Alert.SEVERE);
-							}
+							ev.setAlertLevel(Alert.SEVERE);
 						}
 					}
 				} else if (5140 == ev.getEventID()) {
@@ -438,7 +689,7 @@ public class AuthLogParser {
 			}
 			// 実行された不審なコマンドの種類数
 			int detecctcmdCnt = commands.size();
-			double commandExecuterate = (double) detecctcmdCnt / this.detecctTargetcmdCnt;
+			double commandExecuterate = (double) detecctcmdCnt / cmds.size();
 			Alert alertLevel = Alert.NONE;
 			if (commandExecuterate > AuthLogUtil.ALERT_SEVIRE) {
 				alertLevel = Alert.SEVERE;
@@ -525,7 +776,11 @@ public class AuthLogParser {
 
 	}
 
-	private void outputLogs(Map<Long, LinkedHashSet> kerlog, String accountName) {
+	private void outputLogs(Map<Long, LinkedHashSet> kerlog, String accountName, PrintWriter out) {
+		if (null != profile) {
+			// 先にこのアカウントの学習用データでベースラインを更新してから評価する
+			trainProfile(kerlog, accountName);
+		}
 		for (Iterator it = kerlog.entrySet().iterator(); it.hasNext();) {
 			Map.Entry<Long, LinkedHashSet> entry = (Map.Entry<Long, LinkedHashSet>) it.next();
 			LinkedHashSet<EventLogData> evS = (LinkedHashSet<EventLogData>) entry.getValue();
@@ -564,14 +819,84 @@ public class AuthLogParser {
 					} catch (ParseException e) {
 						e.printStackTrace();
 					}
-					pw.println(ev.getDate() + "," + ev.getEventID() + "," + accountName + "," + ev.getClientAddress()
+					out.println(ev.getDate() + "," + ev.getEventID() + "," + accountName + "," + ev.getClientAddress()
 							+ "," + ev.getServiceName() + "," + ev.getProcessName() + "," + ev.getObjectName() + ","
-							+ ev.getSharedName() + "," + target+ "," + ev.getAlertLevel());
+							+ ev.getSharedName() + "," + target+ "," + ev.getAlertLevel()
+							+ (null != profile ? String.format(",%.3f", profile.score(accountName, ev)) : ""));
 				}
 			}
 		}
 
 	}
+
+	/**
+	 * Write output partitioned by account hash into N files concurrently
+	 * 
+	 * @param partitions
+	 *            number of files
+	 * @param concat
+	 *            join the files into one file at the end
+	 */
+	public void setOutputPartitions(int partitions, boolean concat) {
+		this.outputPartitions = partitions;
+		this.concatOutput = concat;
+	}
+
+	/**
+	 * Add training events(before the attack starts, and not outlier) of an
+	 * account to the behavioral baseline
+	 */
+	private void trainProfile(Map<Long, LinkedHashSet> kerlog, String accountName) {
+		if (0 == attackStartTime) {
+			return;
+		}
+		for (Iterator it = kerlog.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<Long, LinkedHashSet> entry = (Map.Entry<Long, LinkedHashSet>) it.next();
+			LinkedHashSet<EventLogData> evS = (LinkedHashSet<EventLogData>) entry.getValue();
+			for (EventLogData ev : evS) {
+				int eventID = ev.getEventID();
+				if ((eventID == EVENT_PRIV_OPE || eventID == EVENT_PRIV_SERVICE || eventID == EVENT_PROCESS
+						|| eventID == EVENT_SHARE) && 1 != ev.isGolden()) {
+					try {
+						if (sdf.parse(ev.getDate()).getTime() < attackStartTime) {
+							profile.train(accountName, ev);
+						}
+					} catch (ParseException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Load behavioral baseline to score events
+	 * 
+	 * @param profileFile
+	 */
+	private void loadProfile(File profileFile) {
+		try {
+			profile = BehaviorProfile.load(profileFile);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Save behavioral baseline updated by this run
+	 * 
+	 * @param profileFile
+	 */
+	private void saveProfile(File profileFile) {
+		if (null == profile) {
+			return;
+		}
+		try {
+			profile.save(profileFile);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
 /*
 	private void outputTimeSeriseLogs(Map<Long, LinkedHashSet> kerlog, String accountName) {
 		long timeCnt = 0;
@@ -615,15 +940,98 @@ public class AuthLogParser {
 		File dir = new File(inputDirname);
 		File[] files = dir.listFiles();
 
-		for (File file : files) {
-			String filename = file.getName();
-			if (filename.endsWith(".csv")) {
-				readCSV(file.getAbsolutePath());
-			} else {
-				continue;
+		if (mergeFiles) {
+			// 全ファイルのログを時刻順にマージして読み込む
+			List<File> csvFiles = new ArrayList<File>();
+			for (File file : files) {
+				if (file.getName().endsWith(".csv")) {
+					csvFiles.add(file);
+				}
+			}
+			// 同時刻のログはファイル名順に並べる
+			Collections.sort(csvFiles);
+			try {
+				readCSV(new TimeOrderedEventReader(csvFiles));
+			} catch (IOException e) {
+				System.out.println(e);
+			}
+			// .evtx, XMLはマージ対象外のためファイルごとに読み込む
+			for (File file : files) {
+				if (EventRecordReader.isSupported(file.getName())) {
+					readRecords(file);
+				}
+			}
+		} else {
+			for (File file : files) {
+				String filename = file.getName();
+				if (filename.endsWith(".csv")) {
+					readCSV(file.getAbsolutePath());
+				} else if (EventRecordReader.isSupported(filename)) {
+					readRecords(file);
+				} else {
+					continue;
+				}
 			}
 		}
 		outputResults(log, this.outputDirName + "/" + "eventlog.csv");
+		if (null != sorter) {
+			try {
+				sorter.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Read all input files as one stream ordered by time stamp
+	 * 
+	 * @param mergeFiles
+	 */
+	public void setMergeFiles(boolean mergeFiles) {
+		this.mergeFiles = mergeFiles;
+	}
+
+	/**
+	 * Drop records of non-target events from CSV files at byte level
+	 * 
+	 * @param prefilter
+	 */
+	public void setPrefilter(boolean prefilter) {
+		if (prefilter && !RecordPrefilter.canFilter(Charset.defaultCharset())) {
+			System.out.println("--prefilter is not supported for " + Charset.defaultCharset() + ", ignored");
+			return;
+		}
+		this.prefilter = prefilter;
+	}
+
+	/**
+	 * Drop events matching the rules of a noise filter file while parsing
+	 * 
+	 * @param filterFile
+	 */
+	public void loadNoiseFilter(File filterFile) {
+		try {
+			this.noiseFilter = NoiseFilter.load(filterFile);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Sort events on disk instead of keeping all accounts in memory
+	 * 
+	 * @param sortDir
+	 *            directory for sort runs
+	 * @param runSize
+	 *            number of events kept in memory before a run is written
+	 */
+	public void enableExternalSort(String sortDir, int runSize) {
+		try {
+			this.sorter = new ExternalEventSorter(sortDir, runSize);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 	}
 
 	private void detelePrevFiles(String outDirname) {
@@ -646,6 +1054,19 @@ public class AuthLogParser {
 						+ "Date shold be specified 'yyyy/MM/dd HH:mm:ss' format.)");
 		System.out.println(
 				"If you specity 'true', remove noise log(service.exe etc) for detection");
+		System.out.println("Options:");
+		System.out.println("  --external-sort        sort events on disk and evaluate one account at a time");
+		System.out.println("  --sort-buffer=N        number of events kept in memory per sort run");
+		System.out.println("  --sort-dir=path        directory for sort runs (default: output directory)");
+		System.out.println("  --merge-files          read all input files in time stamp order");
+		System.out.println("  --prefilter            skip records of non-target events before decoding CSV files");
+		System.out.println("  --noise-filter=file    drop events of process, account and service rules in the file");
+		System.out.println("  --output-partitions=N  write eventlog-0.csv .. eventlog-(N-1).csv by account on N threads");
+		System.out.println("  --concat-output        join the partitions into eventlog.csv at the end");
+		System.out.println("  --profile=file         learn per account baseline from training data and add score column");
+		System.out.println("  --dedup                drop events read twice from overlapping exports");
+		System.out.println("  --dedup-size=N         number of event fingerprints kept for --dedup (default: "
+				+ EventFingerprintSet.DEFAULT_MAX_SIZE + ")");
 	}
 
 	/**
@@ -654,20 +1075,7 @@ public class AuthLogParser {
 	 * @param inputfilename
 	 */
 	private void readSuspiciousCmd(String inputfilename) {
-
-		File f = new File(inputfilename);
-		suspiciousCmd = new ArrayList<String>();
-		try {
-			BufferedReader br = new BufferedReader(new FileReader(f));
-			String line;
-			while ((line = br.readLine()) != null) {
-				suspiciousCmd.add(line);
-			}
-			this.detecctTargetcmdCnt = this.suspiciousCmd.size();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
+		suspiciousCmd = new ReloadableList(inputfilename);
 	}
 
 	/**
@@ -676,25 +1084,7 @@ public class AuthLogParser {
 	 * @param inputfilename
 	 */
 	private void readAdminList(String inputfilename) {
-
-		File f = new File(inputfilename);
-		adminWhiteList = new ArrayList<String>();
-		BufferedReader br = null;
-		try {
-			br = new BufferedReader(new FileReader(f));
-			String line;
-			while ((line = br.readLine()) != null) {
-				adminWhiteList.add(line);
-			}
-		} catch (IOException e) {
-			e.printStackTrace();
-		} finally {
-			try {
-				br.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		}
+		adminWhiteList = new ReloadableList(inputfilename);
 	}
 	
 	private void readWhiteList(String inputfilename) {
@@ -739,8 +1129,98 @@ public class AuthLogParser {
 		}
 	}
 
+	/**
+	 * Apply options of a run. The result files of the previous run in the
+	 * output directory are deleted.
+	 * 
+	 * @param options
+	 *            options parsed by AuthLogUtil.parseOptions
+	 */
+	void configure(Map<String, String> options) {
+		detelePrevFiles(outputDirName);
+		setMergeFiles(options.containsKey("merge-files"));
+		setPrefilter(options.containsKey("prefilter"));
+		if (options.containsKey("dedup")) {
+			enableDedup(AuthLogUtil.getIntOption(options, "dedup-size", EventFingerprintSet.DEFAULT_MAX_SIZE));
+		}
+		setOutputPartitions(AuthLogUtil.getIntOption(options, "output-partitions", 1),
+				options.containsKey("concat-output"));
+		if (options.containsKey("external-sort")) {
+			String sortDir = options.containsKey("sort-dir") ? options.get("sort-dir") : outputDirName;
+			enableExternalSort(sortDir,
+					AuthLogUtil.getIntOption(options, "sort-buffer", ExternalEventSorter.DEFAULT_RUN_SIZE));
+		}
+	}
+
+	/**
+	 * Create a parser for a job of the daemon. The lists, the noise filter and
+	 * the process cache loaded by this parser are shared, so they are not
+	 * read and compiled again. Jobs must be run one at a time.
+	 * 
+	 * @param outputDirName
+	 * @param attackStartTime
+	 *            logs recorded after this are test data(UNIX Time, msec)
+	 * @param removeNoise
+	 * @return AuthLogParser
+	 */
+	AuthLogParser newJob(String outputDirName, long attackStartTime, boolean removeNoise) {
+		AuthLogParser job = new AuthLogParser();
+		job.suspiciousCmd = suspiciousCmd;
+		job.adminWhiteList = adminWhiteList;
+		job.processInfo = processInfo;
+		job.noiseFilter = noiseFilter;
+		if (null != noiseFilter) {
+			noiseFilter.resetDrops();
+		}
+		job.outputDirName = outputDirName;
+		job.attackStartTime = attackStartTime;
+		job.removeNoise = removeNoise;
+		return job;
+	}
+
+	/**
+	 * Read suspicious command list and admin list
+	 * 
+	 * @param commandFile
+	 * @param adminlist
+	 *            admin list, or null if not given
+	 */
+	void setLists(String commandFile, String adminlist) {
+		readSuspiciousCmd(commandFile);
+		if (null != adminlist) {
+			readAdminList(adminlist);
+		} else {
+			adminWhiteList = ReloadableList.empty();
+		}
+	}
+
+	/**
+	 * Reload the lists when they are changed on disk
+	 * 
+	 * @param intervalMsec
+	 */
+	void watchLists(long intervalMsec) {
+		ReloadableList.watch(intervalMsec, suspiciousCmd, adminWhiteList);
+	}
+
+	/**
+	 * Parse input files of a job and output the detection rate
+	 * 
+	 * @param inputDirname
+	 */
+	void runJob(String inputDirname) {
+		detectGolden(inputDirname);
+		outputDetectionRate();
+	}
+
 	private void outputDetectionRate() {
 		System.out.println();
+		if (null != noiseFilter) {
+			noiseFilter.printDrops();
+		}
+		if (null != seenEvents) {
+			System.out.println("Duplicated events dropped: " + seenEvents.getDuplicates());
+		}
 		System.out.println("Total amount of events: " + this.logCnt);
 		System.out.println("Total amount of accounts & computers: " + this.dataNum);
 		System.out.println("outlier: " + this.outlierNum);
@@ -752,6 +1232,8 @@ public class AuthLogParser {
 
 	public static void main(String args[]) throws ParseException {
 		AuthLogParser authLogParser = new AuthLogParser();
+		Map<String, String> options = AuthLogUtil.parseOptions(args);
+		args = AuthLogUtil.removeOptions(args);
 		String inputdirname = "";
 		String commandFile = "";
 		String adminlist = "";
@@ -760,11 +1242,12 @@ public class AuthLogParser {
 			printUseage();
 		} else
 			inputdirname = args[0];
-		outputDirName = args[1];
+		String outputDirName = args[1];
+		authLogParser.outputDirName = outputDirName;
 		commandFile = args[2];
 		if (args.length > 3) {
 			try{
-			attackStartTime = sdf.parse(args[3]).getTime();
+			authLogParser.attackStartTime = authLogParser.sdf.parse(args[3]).getTime();
 			} catch (ParseException e) {
 				System.out.println("Date shold be specified 'yyyy/MM/dd HH:mm:ss' format.");
 				throw(e);
@@ -774,14 +1257,23 @@ public class AuthLogParser {
 			adminlist = args[4];
 		}
 		if (args.length > 5) {
-			removeNoise = Boolean.parseBoolean(args[5]);
+			authLogParser.removeNoise = Boolean.parseBoolean(args[5]);
 		}
-		log = new LinkedHashMap<String, LinkedHashSet<EventLogData>>();
 		authLogParser.readSuspiciousCmd(commandFile);
 		authLogParser.readAdminList(adminlist);
 		//authLogParser.readWhiteList(whitelist);
-		authLogParser.detelePrevFiles(outputDirName);
+		if (options.containsKey("noise-filter")) {
+			authLogParser.loadNoiseFilter(new File(options.get("noise-filter")));
+		}
+		File profileFile = null;
+		if (options.containsKey("profile")) {
+			// プロファイルが出力ディレクトリにあっても消す前に読み込む
+			profileFile = new File(options.get("profile"));
+			authLogParser.loadProfile(profileFile);
+		}
+		authLogParser.configure(options);
 		authLogParser.detectGolden(inputdirname);
+		authLogParser.saveProfile(profileFile);
 		authLogParser.outputDetectionRate();
 	}
 
@@ -1,13 +1,160 @@
 package logparse;
 
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 public class AuthLogUtil {
 	// Alert Level
 	protected enum Alert {
 		SEVERE, WARNING, NOTICE, NONE
 	}
-	
+
 	// Command execution rate for alert
 	protected static double ALERT_SEVIRE = 0.85;
 	protected static double ALERT_WARNING = 0.15;
-	
+
+	// Fields of Security event, in the order they appear in the event description
+	protected enum Field {
+		ACCOUNT, SERVICE, OBJECT, ADDRESS, PORT, PROCESS, SHARE, PRIVILEGE
+	}
+
+	protected static final Set<Field> ALL_FIELDS = EnumSet.allOf(Field.class);
+
+	// Fields in the order they are matched, and their labels in CSV lines
+	private static final Field MATCH_ORDER[] = { Field.ACCOUNT, Field.SERVICE, Field.ADDRESS, Field.PORT,
+			Field.OBJECT, Field.PROCESS, Field.SHARE, Field.PRIVILEGE };
+	private static final String LABELS[][] = { { "アカウント名:", "Account Name:" },
+			{ "サービス名:", "Service Name:" },
+			{ "クライアント アドレス:", "Client Address:", "ソース ネットワーク アドレス:", "Source Network Address:", "送信元アドレス:",
+					"Source Address:" },
+			{ "クライアント ポート:", "Client Port:", "ソース ポート:", "Source Port:" },
+			{ "オブジェクト名:", "Object Name:" },
+			{ "プロセス名:", "Process Name:" },
+			{ "共有名:", "Share Name:" },
+			{ "特権:", "Privileges:" } };
+
+	/**
+	 * Find the field of a labeled element in a CSV line exported from event log
+	 *
+	 * @param elem
+	 *            element of a CSV line
+	 * @return field, or null if the element is not a target field
+	 */
+	protected static Field matchField(String elem) {
+		return matchField(elem, ALL_FIELDS);
+	}
+
+	/**
+	 * Find the field of a labeled element, trying only the labels of fields
+	 * the detector uses
+	 *
+	 * @param elem
+	 *            element of a CSV line
+	 * @param fields
+	 *            fields the detector uses
+	 * @return field, or null if the element is not one of the fields
+	 */
+	protected static Field matchField(String elem, Set<Field> fields) {
+		for (int i = 0; i < MATCH_ORDER.length; i++) {
+			if (!fields.contains(MATCH_ORDER[i])) {
+				// 使わないフィールドのラベルは探さない
+				continue;
+			}
+			for (String label : LABELS[i]) {
+				if (elem.contains(label)) {
+					return MATCH_ORDER[i];
+				}
+			}
+		}
+		return null;
+	}
+
+	// Prefix of optional arguments
+	private static final String OPTION_PREFIX = "--";
+
+	/**
+	 * Extract optional arguments given as "--name" or "--name=value"
+	 *
+	 * @param args
+	 * @return option name and value("true" when value is omitted)
+	 */
+	protected static Map<String, String> parseOptions(String args[]) {
+		Map<String, String> options = new LinkedHashMap<String, String>();
+		for (String arg : args) {
+			if (!arg.startsWith(OPTION_PREFIX)) {
+				continue;
+			}
+			String option = arg.substring(OPTION_PREFIX.length());
+			int idx = option.indexOf('=');
+			if (idx < 0) {
+				options.put(option, "true");
+			} else {
+				options.put(option.substring(0, idx), option.substring(idx + 1));
+			}
+		}
+		return options;
+	}
+
+	/**
+	 * Remove optional arguments and return positional arguments only
+	 *
+	 * @param args
+	 * @return positional arguments
+	 */
+	protected static String[] removeOptions(String args[]) {
+		List<String> positional = new ArrayList<String>();
+		for (String arg : args) {
+			if (!arg.startsWith(OPTION_PREFIX)) {
+				positional.add(arg);
+			}
+		}
+		return positional.toArray(new String[positional.size()]);
+	}
+
+	/**
+	 * Get integer option value
+	 *
+	 * @param options
+	 * @param name
+	 * @param defaultValue
+	 * @return option value or defaultValue when not specified
+	 */
+	protected static int getIntOption(Map<String, String> options, String name, int defaultValue) {
+		String value = options.get(name);
+		if (null == value) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			System.out.println("Invalid value for --" + name + ": " + value);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * 64 bit hash of a string for sketches
+	 *
+	 * @param value
+	 * @return hash
+	 */
+	protected static long hash64(String value) {
+		// FNV-1a
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < value.length(); i++) {
+			h = (h ^ value.charAt(i)) * 0x100000001b3L;
+		}
+		// 下位ビットも全ビットの影響を受けるようにする
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
 }
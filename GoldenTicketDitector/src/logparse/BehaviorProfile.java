@@ -0,0 +1,203 @@
+package logparse;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Behavioral baseline of accounts: how often each account used each process,
+ * service and client computer in training data.
+ *
+ * An event is scored by looking up its process, service and computer in the
+ * account's tables. The score of a value is 1 - (count of the value / total
+ * count of the table), so a value never seen is 1.0 and a value the account
+ * always uses is 0.0. The score of an event is the average over the values the
+ * event has.
+ *
+ * The profile is saved in a binary file and updated by each run. Names are
+ * written once in a name table and the tables refer to them by index.
+ *
+ * @version 1.0
+ */
+public class BehaviorProfile {
+
+	private static final int MAGIC = 0x47544250; // "GTBP"
+	private static final int VERSION = 1;
+
+	// Tables of an account
+	private static final int PROCESS = 0;
+	private static final int SERVICE = 1;
+	private static final int COMPUTER = 2;
+	private static final int TABLES = 3;
+
+	/**
+	 * Frequency tables of one account
+	 */
+	private static class AccountProfile {
+		final List<Map<String, int[]>> counts = new ArrayList<Map<String, int[]>>(TABLES);
+		final long totals[] = new long[TABLES];
+
+		AccountProfile() {
+			for (int i = 0; i < TABLES; i++) {
+				counts.add(new HashMap<String, int[]>());
+			}
+		}
+
+		void add(int table, String value, int count) {
+			int c[] = counts.get(table).get(value);
+			if (null == c) {
+				c = new int[1];
+				counts.get(table).put(value, c);
+			}
+			c[0] += count;
+			totals[table] += count;
+		}
+
+		double score(int table, String value) {
+			if (0 == totals[table]) {
+				return 1.0;
+			}
+			int c[] = counts.get(table).get(value);
+			return null == c ? 1.0 : 1.0 - (double) c[0] / totals[table];
+		}
+	}
+
+	private final Map<String, AccountProfile> profiles = new HashMap<String, AccountProfile>();
+
+	private static String[] values(EventLogData ev) {
+		String values[] = new String[TABLES];
+		values[PROCESS] = ev.getProcessName();
+		values[SERVICE] = ev.getServiceName();
+		values[COMPUTER] = ev.getClientAddress();
+		return values;
+	}
+
+	/**
+	 * Add a training event to the account's baseline
+	 *
+	 * @param accountName
+	 * @param ev
+	 */
+	public void train(String accountName, EventLogData ev) {
+		AccountProfile profile = profiles.get(accountName);
+		if (null == profile) {
+			profile = new AccountProfile();
+			profiles.put(accountName, profile);
+		}
+		String values[] = values(ev);
+		for (int i = 0; i < TABLES; i++) {
+			if (null != values[i] && !values[i].isEmpty()) {
+				profile.add(i, values[i], 1);
+			}
+		}
+	}
+
+	/**
+	 * Score an event against the account's baseline
+	 *
+	 * @param accountName
+	 * @param ev
+	 * @return 0.0(usual) - 1.0(never seen)
+	 */
+	public double score(String accountName, EventLogData ev) {
+		AccountProfile profile = profiles.get(accountName);
+		String values[] = values(ev);
+		double sum = 0;
+		int n = 0;
+		for (int i = 0; i < TABLES; i++) {
+			if (null != values[i] && !values[i].isEmpty()) {
+				sum += null == profile ? 1.0 : profile.score(i, values[i]);
+				n++;
+			}
+		}
+		return 0 == n ? 0 : sum / n;
+	}
+
+	/**
+	 * Load profile. Empty profile is returned if the file does not exist.
+	 *
+	 * @param profileFile
+	 * @return BehaviorProfile
+	 * @throws IOException
+	 */
+	public static BehaviorProfile load(File profileFile) throws IOException {
+		BehaviorProfile bp = new BehaviorProfile();
+		if (!profileFile.exists()) {
+			return bp;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(profileFile)));
+		try {
+			if (MAGIC != in.readInt() || VERSION != in.readInt()) {
+				throw new IOException("Unknown profile file format: " + profileFile);
+			}
+			String names[] = new String[in.readInt()];
+			for (int i = 0; i < names.length; i++) {
+				names[i] = in.readUTF();
+			}
+			int n = in.readInt();
+			for (int i = 0; i < n; i++) {
+				AccountProfile profile = new AccountProfile();
+				bp.profiles.put(names[in.readInt()], profile);
+				for (int t = 0; t < TABLES; t++) {
+					int m = in.readInt();
+					for (int j = 0; j < m; j++) {
+						profile.add(t, names[in.readInt()], in.readInt());
+					}
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return bp;
+	}
+
+	/**
+	 * Save profile. The file is replaced after the whole profile is written.
+	 *
+	 * @param profileFile
+	 * @throws IOException
+	 */
+	public void save(File profileFile) throws IOException {
+		// 名前の表
+		Map<String, Integer> index = new LinkedHashMap<String, Integer>();
+		for (Map.Entry<String, AccountProfile> entry : profiles.entrySet()) {
+			addName(index, entry.getKey());
+			for (Map<String, int[]> table : entry.getValue().counts) {
+				for (String value : table.keySet()) {
+					addName(index, value);
+				}
+			}
+		}
+		File tmp = new File(profileFile.getAbsolutePath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(index.size());
+			for (String name : index.keySet()) {
+				out.writeUTF(name);
+			}
+			out.writeInt(profiles.size());
+			for (Map.Entry<String, AccountProfile> entry : profiles.entrySet()) {
+				out.writeInt(index.get(entry.getKey()));
+				for (Map<String, int[]> table : entry.getValue().counts) {
+					out.writeInt(table.size());
+					for (Map.Entry<String, int[]> value : table.entrySet()) {
+						out.writeInt(index.get(value.getKey()));
+						out.writeInt(value.getValue()[0]);
+					}
+				}
+			}
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), profileFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static void addName(Map<String, Integer> index, String name) {
+		if (!index.containsKey(name)) {
+			index.put(name, index.size());
+		}
+	}
+}
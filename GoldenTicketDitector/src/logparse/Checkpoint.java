@@ -0,0 +1,235 @@
+package logparse;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Checkpoint of a long batch run of GoldenTicketDetector: input files fully
+ * read, and events and accounts read from them. A run started with --resume
+ * loads the checkpoint and reads only the remaining files.
+ *
+ * Strings are written once in a string table and events refer to them by
+ * index. Numbers are written as variable length integers, so a checkpoint is
+ * much smaller than the input CSV files.
+ *
+ * Files are added by the thread which parses them, while the reading thread
+ * checks files to skip, so the file list is synchronized.
+ *
+ * @version 1.0
+ */
+public class Checkpoint {
+
+	private static final int MAGIC = 0x47544350; // "GTCP"
+	private static final int VERSION = 1;
+
+	// Default interval of checkpoints(sec)
+	public static final int DEFAULT_INTERVAL = 300;
+
+	// file name -> {file length, last modified}
+	private final Map<String, long[]> files = new LinkedHashMap<String, long[]>();
+
+	private final Map<String, LinkedHashSet<EventLogData>> log = new LinkedHashMap<String, LinkedHashSet<EventLogData>>();
+	private final Set<String> accounts = new LinkedHashSet<String>();
+	private final Set<String> adminAccounts = new LinkedHashSet<String>();
+
+	public synchronized boolean isProcessed(File file) {
+		long[] stat = files.get(file.getName());
+		return null != stat && stat[0] == file.length() && stat[1] == file.lastModified();
+	}
+
+	public synchronized void addProcessed(File file) {
+		files.put(file.getName(), new long[] { file.length(), file.lastModified() });
+	}
+
+	public synchronized int getProcessedCount() {
+		return files.size();
+	}
+
+	/**
+	 * @return events per account read before the checkpoint
+	 */
+	public Map<String, LinkedHashSet<EventLogData>> getLog() {
+		return log;
+	}
+
+	public Set<String> getAccounts() {
+		return accounts;
+	}
+
+	public Set<String> getAdminAccounts() {
+		return adminAccounts;
+	}
+
+	/**
+	 * Save the files processed so far with the events read from them. The
+	 * file is replaced after the whole checkpoint is written, so a crash while
+	 * saving leaves the previous checkpoint.
+	 *
+	 * @param checkpointFile
+	 * @param log
+	 *            events per account
+	 * @param accounts
+	 * @param adminAccounts
+	 * @throws IOException
+	 */
+	public synchronized void save(File checkpointFile, Map<String, LinkedHashSet<EventLogData>> log, Set<String> accounts,
+			Set<String> adminAccounts) throws IOException {
+		// 文字列の表
+		Map<String, Integer> index = new LinkedHashMap<String, Integer>();
+		for (String accountName : accounts) {
+			addString(index, accountName);
+		}
+		for (String accountName : adminAccounts) {
+			addString(index, accountName);
+		}
+		for (Map.Entry<String, LinkedHashSet<EventLogData>> entry : log.entrySet()) {
+			addString(index, entry.getKey());
+			for (EventLogData ev : entry.getValue()) {
+				addString(index, ev.getDate());
+				addString(index, ev.getAccountName());
+				addString(index, ev.getClientAddress());
+				addString(index, ev.getServiceName());
+				addString(index, ev.getProcessName());
+				addString(index, ev.getSharedName());
+				addString(index, ev.getObjectName());
+				addString(index, ev.getPrivilege());
+			}
+		}
+		File tmp = new File(checkpointFile.getAbsolutePath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			writeVarInt(out, files.size());
+			for (Map.Entry<String, long[]> entry : files.entrySet()) {
+				out.writeUTF(entry.getKey());
+				out.writeLong(entry.getValue()[0]);
+				out.writeLong(entry.getValue()[1]);
+			}
+			writeVarInt(out, index.size());
+			for (String s : index.keySet()) {
+				out.writeUTF(s);
+			}
+			writeVarInt(out, accounts.size());
+			for (String accountName : accounts) {
+				writeVarInt(out, index.get(accountName));
+			}
+			writeVarInt(out, adminAccounts.size());
+			for (String accountName : adminAccounts) {
+				writeVarInt(out, index.get(accountName));
+			}
+			writeVarInt(out, log.size());
+			for (Map.Entry<String, LinkedHashSet<EventLogData>> entry : log.entrySet()) {
+				writeVarInt(out, index.get(entry.getKey()));
+				writeVarInt(out, entry.getValue().size());
+				for (EventLogData ev : entry.getValue()) {
+					writeVarInt(out, index.get(ev.getDate()));
+					writeVarInt(out, index.get(ev.getAccountName()));
+					writeVarInt(out, index.get(ev.getClientAddress()));
+					writeVarInt(out, ev.getEventID());
+					writeVarInt(out, ev.getClientPort());
+					writeVarInt(out, index.get(ev.getServiceName()));
+					writeVarInt(out, index.get(ev.getProcessName()));
+					writeVarInt(out, index.get(ev.getSharedName()));
+					writeVarInt(out, index.get(ev.getObjectName()));
+					writeVarInt(out, index.get(ev.getPrivilege()));
+					// timeCntは読み込み時にShort.MAX_VALUEから減らした値
+					writeVarInt(out, (int) (Short.MAX_VALUE - ev.getTimeCnt()));
+				}
+			}
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Load a checkpoint
+	 *
+	 * @param checkpointFile
+	 * @return Checkpoint, empty if the file does not exist
+	 * @throws IOException
+	 */
+	public static Checkpoint load(File checkpointFile) throws IOException {
+		Checkpoint cp = new Checkpoint();
+		if (!checkpointFile.exists()) {
+			return cp;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(checkpointFile)));
+		try {
+			if (MAGIC != in.readInt() || VERSION != in.readInt()) {
+				throw new IOException("Unknown checkpoint file format: " + checkpointFile);
+			}
+			int n = readVarInt(in);
+			for (int i = 0; i < n; i++) {
+				cp.files.put(in.readUTF(), new long[] { in.readLong(), in.readLong() });
+			}
+			String strings[] = new String[readVarInt(in)];
+			for (int i = 0; i < strings.length; i++) {
+				strings[i] = in.readUTF();
+			}
+			n = readVarInt(in);
+			for (int i = 0; i < n; i++) {
+				cp.accounts.add(strings[readVarInt(in)]);
+			}
+			n = readVarInt(in);
+			for (int i = 0; i < n; i++) {
+				cp.adminAccounts.add(strings[readVarInt(in)]);
+			}
+			n = readVarInt(in);
+			for (int i = 0; i < n; i++) {
+				String accountName = strings[readVarInt(in)];
+				LinkedHashSet<EventLogData> evSet = new LinkedHashSet<EventLogData>();
+				int m = readVarInt(in);
+				for (int j = 0; j < m; j++) {
+					String date = strings[readVarInt(in)];
+					String account = strings[readVarInt(in)];
+					String clientAddress = strings[readVarInt(in)];
+					int eventID = readVarInt(in);
+					int clientPort = readVarInt(in);
+					String serviceName = strings[readVarInt(in)];
+					String processName = strings[readVarInt(in)];
+					EventLogData ev = new EventLogData(date, clientAddress, account, eventID, clientPort, serviceName,
+							processName, 0);
+					ev.setSharedName(strings[readVarInt(in)]);
+					ev.setObjectName(strings[readVarInt(in)]);
+					ev.setPrivilege(strings[readVarInt(in)]);
+					ev.settimeCnt(Short.MAX_VALUE - readVarInt(in));
+					evSet.add(ev);
+				}
+				cp.log.put(accountName, evSet);
+			}
+		} finally {
+			in.close();
+		}
+		return cp;
+	}
+
+	private static void addString(Map<String, Integer> index, String s) {
+		if (!index.containsKey(s)) {
+			index.put(s, index.size());
+		}
+	}
+
+	private static void writeVarInt(DataOutput out, int value) throws IOException {
+		// 7ビットずつ、続きがあれば最上位ビットを立てる
+		while ((value & ~0x7f) != 0) {
+			out.writeByte((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	private static int readVarInt(DataInput in) throws IOException {
+		int value = 0;
+		for (int shift = 0; ; shift += 7) {
+			int b = in.readByte();
+			value |= (b & 0x7f) << shift;
+			if (0 == (b & 0x80)) {
+				return value;
+			}
+		}
+	}
+}
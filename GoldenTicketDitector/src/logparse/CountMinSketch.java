@@ -0,0 +1,59 @@
+package logparse;
+
+/**
+ * Count-min sketch: approximate counts of keys in fixed memory. An estimate
+ * is never less than the true count.
+ *
+ * @version 1.0
+ */
+public class CountMinSketch {
+
+	private final int width;
+	private final int depth;
+	private final long counts[];
+
+	/**
+	 * @param width
+	 *            counters per row, rounded up to a power of 2
+	 * @param depth
+	 *            number of rows
+	 */
+	public CountMinSketch(int width, int depth) {
+		this.width = Integer.highestOneBit(Math.max(2, width - 1)) << 1;
+		this.depth = Math.max(1, depth);
+		this.counts = new long[this.width * this.depth];
+	}
+
+	/**
+	 * Count a key
+	 *
+	 * @param key
+	 * @return estimated count of the key after adding
+	 */
+	public long add(String key) {
+		long h = AuthLogUtil.hash64(key);
+		int h1 = (int) h;
+		int h2 = (int) (h >>> 32) | 1;
+		long min = Long.MAX_VALUE;
+		for (int i = 0; i < depth; i++) {
+			int idx = i * width + ((h1 + i * h2) & (width - 1));
+			min = Math.min(min, ++counts[idx]);
+		}
+		return min;
+	}
+
+	/**
+	 * @param key
+	 * @return estimated count of the key
+	 */
+	public long estimate(String key) {
+		long h = AuthLogUtil.hash64(key);
+		int h1 = (int) h;
+		int h2 = (int) (h >>> 32) | 1;
+		long min = Long.MAX_VALUE;
+		for (int i = 0; i < depth; i++) {
+			min = Math.min(min, counts[i * width + ((h1 + i * h2) & (width - 1))]);
+		}
+		return min;
+	}
+}
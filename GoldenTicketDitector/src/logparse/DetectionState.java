@@ -0,0 +1,337 @@
+package logparse;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+import logparse.AuthLogUtil.Alert;
+
+/**
+ * Detection state carried over between runs, so that a daily run only has to
+ * read new files.
+ *
+ * The state has files already processed, admin accounts found by 4672, time
+ * of the last TGT request(4768) per account and computer, suspicious commands
+ * executed per account and computer, the last time window per account and
+ * computer, and the client address of the last service ticket request(4769)
+ * per account, which later 4688 events inherit.
+ *
+ * @version 1.0
+ */
+public class DetectionState {
+
+	private static final int MAGIC = 0x47544453; // "GTDS"
+	private static final int VERSION = 2;
+
+	// Time window width used by readCSV(msec)
+	protected static final long WINDOW_MSEC = 1000;
+
+	// Default lifetime of TGT(msec). Same as the default Kerberos policy.
+	protected static final long DEFAULT_TGT_LIFETIME = 10 * 60 * 60 * 1000L;
+
+	// Default retention of suspicious commands and windows(msec)
+	protected static final long DEFAULT_RETENTION = 30 * 24 * 60 * 60 * 1000L;
+
+	// Time window of one account and computer
+	protected static class Window {
+		final long time;
+		final boolean isGolden;
+		final Alert alertLevel;
+
+		Window(long time, boolean isGolden, Alert alertLevel) {
+			this.time = time;
+			this.isGolden = isGolden;
+			this.alertLevel = alertLevel;
+		}
+	}
+
+	// file name -> {file length, last modified}
+	private Map<String, long[]> files = new LinkedHashMap<String, long[]>();
+
+	private Set<String> adminAccounts = new LinkedHashSet<String>();
+
+	// account and computer -> time of the last TGT request
+	private Map<String, Long> lastTGT = new HashMap<String, Long>();
+
+	// account and computer -> suspicious command -> last time executed
+	private Map<String, Map<String, Long>> commands = new HashMap<String, Map<String, Long>>();
+
+	// account and computer -> last time window
+	private Map<String, Window> windows = new HashMap<String, Window>();
+
+	// account -> client address of the last 4769
+	private Map<String, String> lastAddress = new HashMap<String, String>();
+	// account -> time of the last 4769
+	private Map<String, Long> lastAddressTime = new HashMap<String, Long>();
+
+	private long tgtLifetime = DEFAULT_TGT_LIFETIME;
+	private long retention = DEFAULT_RETENTION;
+
+	// Latest event time seen
+	private long latestTime = 0;
+
+	protected static String key(String accountName, String computer) {
+		return accountName + "\t" + computer;
+	}
+
+	public void setTgtLifetime(long tgtLifetime) {
+		this.tgtLifetime = tgtLifetime;
+	}
+
+	public void setRetention(long retention) {
+		this.retention = retention;
+	}
+
+	public boolean isProcessed(File file) {
+		long[] stat = files.get(file.getName());
+		return null != stat && stat[0] == file.length() && stat[1] == file.lastModified();
+	}
+
+	public void addProcessed(File file) {
+		files.put(file.getName(), new long[] { file.length(), file.lastModified() });
+	}
+
+	public Set<String> getAdminAccounts() {
+		return adminAccounts;
+	}
+
+	public void addTGT(String accountName, String computer, long time) {
+		String key = key(accountName, computer);
+		Long last = lastTGT.get(key);
+		if (null == last || last < time) {
+			lastTGT.put(key, time);
+		}
+		updateLatest(time);
+	}
+
+	/**
+	 * Whether a TGT requested in a previous run is still valid
+	 *
+	 * @param accountName
+	 * @param computer
+	 * @param time
+	 *            time of the service ticket request
+	 * @return true if a valid TGT was requested before time
+	 */
+	public boolean hasValidTGT(String accountName, String computer, long time) {
+		Long last = lastTGT.get(key(accountName, computer));
+		return null != last && last <= time && time - last <= tgtLifetime;
+	}
+
+	public void addCommand(String accountName, String computer, String command, long time) {
+		String key = key(accountName, computer);
+		Map<String, Long> cmds = commands.get(key);
+		if (null == cmds) {
+			cmds = new HashMap<String, Long>();
+			commands.put(key, cmds);
+		}
+		Long last = cmds.get(command);
+		if (null == last || last < time) {
+			cmds.put(command, time);
+		}
+		updateLatest(time);
+	}
+
+	public Set<String> getCommands(String accountName, String computer) {
+		Map<String, Long> cmds = commands.get(key(accountName, computer));
+		if (null == cmds) {
+			return Collections.emptySet();
+		}
+		return cmds.keySet();
+	}
+
+	public Window getWindow(String accountName, String computer) {
+		return windows.get(key(accountName, computer));
+	}
+
+	public void setWindow(String accountName, String computer, Window window) {
+		String key = key(accountName, computer);
+		Window last = windows.get(key);
+		if (null == last || last.time <= window.time) {
+			windows.put(key, window);
+		}
+		updateLatest(window.time);
+	}
+
+	/**
+	 * @param accountName
+	 * @return client address of the last 4769 of the account, or ""
+	 */
+	public String getLastAddress(String accountName) {
+		String address = lastAddress.get(accountName);
+		return null == address ? "" : address;
+	}
+
+	public void setLastAddress(String accountName, String address, long time) {
+		Long last = lastAddressTime.get(accountName);
+		if (null == last || last <= time) {
+			lastAddress.put(accountName, address);
+			lastAddressTime.put(accountName, time);
+		}
+		updateLatest(time);
+	}
+
+	private void updateLatest(long time) {
+		if (time > latestTime) {
+			latestTime = time;
+		}
+	}
+
+	/**
+	 * Remove entries which are no longer needed for detection
+	 */
+	private void expire() {
+		long tgtLimit = latestTime - tgtLifetime;
+		for (Iterator<Long> it = lastTGT.values().iterator(); it.hasNext();) {
+			if (it.next() < tgtLimit) {
+				it.remove();
+			}
+		}
+		long limit = latestTime - retention;
+		for (Iterator<Map<String, Long>> it = commands.values().iterator(); it.hasNext();) {
+			Map<String, Long> cmds = it.next();
+			for (Iterator<Long> cmdIt = cmds.values().iterator(); cmdIt.hasNext();) {
+				if (cmdIt.next() < limit) {
+					cmdIt.remove();
+				}
+			}
+			if (cmds.isEmpty()) {
+				it.remove();
+			}
+		}
+		for (Iterator<Window> it = windows.values().iterator(); it.hasNext();) {
+			if (it.next().time < limit) {
+				it.remove();
+			}
+		}
+		for (Iterator<Map.Entry<String, Long>> it = lastAddressTime.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String, Long> entry = it.next();
+			if (entry.getValue() < limit) {
+				lastAddress.remove(entry.getKey());
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Load state. Empty state is returned if the file does not exist.
+	 *
+	 * @param stateFile
+	 * @return DetectionState
+	 * @throws IOException
+	 */
+	public static DetectionState load(File stateFile) throws IOException {
+		DetectionState state = new DetectionState();
+		if (!stateFile.exists()) {
+			return state;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)));
+		try {
+			int version = MAGIC == in.readInt() ? in.readInt() : -1;
+			if (1 != version && VERSION != version) {
+				throw new IOException("Unknown state file format: " + stateFile);
+			}
+			state.latestTime = in.readLong();
+			int n = in.readInt();
+			for (int i = 0; i < n; i++) {
+				state.files.put(in.readUTF(), new long[] { in.readLong(), in.readLong() });
+			}
+			n = in.readInt();
+			for (int i = 0; i < n; i++) {
+				state.adminAccounts.add(in.readUTF());
+			}
+			n = in.readInt();
+			for (int i = 0; i < n; i++) {
+				state.lastTGT.put(in.readUTF(), in.readLong());
+			}
+			n = in.readInt();
+			for (int i = 0; i < n; i++) {
+				String key = in.readUTF();
+				int m = in.readInt();
+				Map<String, Long> cmds = new HashMap<String, Long>();
+				for (int j = 0; j < m; j++) {
+					cmds.put(in.readUTF(), in.readLong());
+				}
+				state.commands.put(key, cmds);
+			}
+			n = in.readInt();
+			for (int i = 0; i < n; i++) {
+				String key = in.readUTF();
+				long time = in.readLong();
+				boolean isGolden = in.readBoolean();
+				Alert alertLevel = Alert.values()[in.readByte()];
+				state.windows.put(key, new Window(time, isGolden, alertLevel));
+			}
+			if (version >= 2) {
+				n = in.readInt();
+				for (int i = 0; i < n; i++) {
+					String accountName = in.readUTF();
+					state.lastAddress.put(accountName, in.readUTF());
+					state.lastAddressTime.put(accountName, in.readLong());
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return state;
+	}
+
+	/**
+	 * Save state. The file is replaced after the whole state is written.
+	 *
+	 * @param stateFile
+	 * @throws IOException
+	 */
+	public void save(File stateFile) throws IOException {
+		expire();
+		File tmp = new File(stateFile.getAbsolutePath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(latestTime);
+			out.writeInt(files.size());
+			for (Map.Entry<String, long[]> entry : files.entrySet()) {
+				out.writeUTF(entry.getKey());
+				out.writeLong(entry.getValue()[0]);
+				out.writeLong(entry.getValue()[1]);
+			}
+			out.writeInt(adminAccounts.size());
+			for (String accountName : adminAccounts) {
+				out.writeUTF(accountName);
+			}
+			out.writeInt(lastTGT.size());
+			for (Map.Entry<String, Long> entry : lastTGT.entrySet()) {
+				out.writeUTF(entry.getKey());
+				out.writeLong(entry.getValue());
+			}
+			out.writeInt(commands.size());
+			for (Map.Entry<String, Map<String, Long>> entry : commands.entrySet()) {
+				out.writeUTF(entry.getKey());
+				out.writeInt(entry.getValue().size());
+				for (Map.Entry<String, Long> cmd : entry.getValue().entrySet()) {
+					out.writeUTF(cmd.getKey());
+					out.writeLong(cmd.getValue());
+				}
+			}
+			out.writeInt(windows.size());
+			for (Map.Entry<String, Window> entry : windows.entrySet()) {
+				Window window = entry.getValue();
+				out.writeUTF(entry.getKey());
+				out.writeLong(window.time);
+				out.writeBoolean(window.isGolden);
+				out.writeByte(window.alertLevel.ordinal());
+			}
+			out.writeInt(lastAddress.size());
+			for (Map.Entry<String, String> entry : lastAddress.entrySet()) {
+				out.writeUTF(entry.getKey());
+				out.writeUTF(entry.getValue());
+				out.writeLong(lastAddressTime.get(entry.getKey()));
+			}
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+}
@@ -0,0 +1,283 @@
+package logparse;
+
+import java.io.*;
+import java.nio.file.Path;
+
+/**
+ * GoldenTicketDetector embedded in a Java program. Events are passed by the
+ * caller one at a time or as files, and alerts are notified to a listener
+ * instead of only being written to result.csv.
+ *
+ * <pre>
+ * DetectorEngine engine = new DetectorEngine.Builder()
+ * 		.commandList(new File("command.txt"))
+ * 		.adminList(new File("admin.txt"))
+ * 		.alertListener(listener)
+ * 		.build();
+ * engine.accept(record);
+ * engine.ingest(Paths.get("security.evtx"));
+ * engine.flush();
+ * engine.close();
+ * </pre>
+ *
+ * Accepted events are kept until flush(), which detects them and notifies
+ * alerts. As in --listen mode, TGT requests and time windows are carried over
+ * to the next flush, so events may be flushed in small batches. A flush
+ * between the lines of an event is allowed: the rest of the event is
+ * detected by the next flush. Each engine
+ * has its own state, and the methods are synchronized, so an engine can be
+ * shared by threads. The listener is called by the thread which flushes.
+ *
+ * @version 1.0
+ */
+public class DetectorEngine implements Closeable {
+
+	/**
+	 * Receiver of alerts
+	 */
+	public interface AlertListener {
+		/**
+		 * @param accountName
+		 * @param ev
+		 *            alerted event. getAlertType() and getAlertLevel() tell
+		 *            the rule and the level.
+		 */
+		void onAlert(String accountName, EventLogData ev);
+	}
+
+	/**
+	 * Configuration of an engine
+	 */
+	public static class Builder {
+		private File commandList = null;
+		private File adminList = null;
+		private File noiseFilter = null;
+		private File stateFile = null;
+		private int tgtLifetimeHours = 10;
+		private File output = null;
+		private AlertListener alertListener = null;
+		private long suppressTtl = 0;
+		private int dedupSize = 0;
+		private int flushEvents = 0;
+
+		/**
+		 * @param commandList
+		 *            suspicious command list(required)
+		 */
+		public Builder commandList(File commandList) {
+			this.commandList = commandList;
+			return this;
+		}
+
+		public Builder adminList(File adminList) {
+			this.adminList = adminList;
+			return this;
+		}
+
+		public Builder noiseFilter(File noiseFilter) {
+			this.noiseFilter = noiseFilter;
+			return this;
+		}
+
+		/**
+		 * Load detection state from the file and save it on close
+		 *
+		 * @param stateFile
+		 * @param tgtLifetimeHours
+		 *            time a TGT of the previous run is valid(hours)
+		 */
+		public Builder state(File stateFile, int tgtLifetimeHours) {
+			this.stateFile = stateFile;
+			this.tgtLifetimeHours = tgtLifetimeHours;
+			return this;
+		}
+
+		/**
+		 * @param output
+		 *            file to write result rows as result.csv, or null not to
+		 *            write them
+		 */
+		public Builder output(File output) {
+			this.output = output;
+			return this;
+		}
+
+		public Builder alertListener(AlertListener alertListener) {
+			this.alertListener = alertListener;
+			return this;
+		}
+
+		/**
+		 * @param ttlMinutes
+		 *            collapse repeated alerts of an account, computer and type
+		 *            within this time
+		 */
+		public Builder suppress(int ttlMinutes) {
+			this.suppressTtl = ttlMinutes * 60 * 1000L;
+			return this;
+		}
+
+		/**
+		 * @param size
+		 *            number of event fingerprints kept to drop duplicates
+		 */
+		public Builder dedup(int size) {
+			this.dedupSize = size;
+			return this;
+		}
+
+		/**
+		 * @param events
+		 *            flush automatically after this number of accepted events
+		 *            (0: only when flush() is called)
+		 */
+		public Builder flushEvery(int events) {
+			this.flushEvents = events;
+			return this;
+		}
+
+		/**
+		 * @return DetectorEngine
+		 * @throws IOException
+		 *             if the output or the noise filter cannot be opened
+		 */
+		public DetectorEngine build() throws IOException {
+			if (null == commandList) {
+				throw new IllegalStateException("commandList is required");
+			}
+			return new DetectorEngine(this);
+		}
+	}
+
+	private final GoldenTicketDetector detector = new GoldenTicketDetector();
+	private final File stateFile;
+	private final int flushEvents;
+	private int pending = 0;
+	private boolean closed = false;
+
+	private DetectorEngine(Builder builder) throws IOException {
+		this.stateFile = builder.stateFile;
+		this.flushEvents = builder.flushEvents;
+		// 管理者リストが無い場合は読み込まない
+		detector.setLists(builder.commandList.getPath(),
+				null != builder.adminList ? builder.adminList.getPath() : null);
+		if (null != builder.noiseFilter) {
+			detector.loadNoiseFilter(builder.noiseFilter);
+		}
+		if (null != stateFile) {
+			detector.loadState(stateFile, builder.tgtLifetimeHours * 60 * 60 * 1000L);
+		}
+		if (builder.suppressTtl > 0) {
+			detector.enableSuppression(builder.suppressTtl, AlertSuppressor.DEFAULT_MAX_SIZE);
+		}
+		if (builder.dedupSize > 0) {
+			detector.enableDedup(builder.dedupSize);
+		}
+		Writer out;
+		if (null != builder.output) {
+			out = new BufferedWriter(new FileWriter(builder.output));
+		} else {
+			out = new Writer() {
+				@Override
+				public void write(char cbuf[], int off, int len) {
+					// 出力しない
+				}
+
+				@Override
+				public void flush() {
+				}
+
+				@Override
+				public void close() {
+				}
+			};
+		}
+		detector.openStream(out, builder.alertListener);
+	}
+
+	/**
+	 * Accept an event read from event log(.evtx, XML) or built by the caller
+	 *
+	 * @param record
+	 */
+	public synchronized void accept(EventRecord record) {
+		checkOpen();
+		detector.acceptRecord(record);
+		accepted();
+	}
+
+	/**
+	 * Accept a line of CSV exported from event log. Lines of an event are
+	 * passed in order, starting with the "Microsoft-Windows-Security-Auditing,"
+	 * header line.
+	 *
+	 * @param line
+	 */
+	public synchronized void accept(String line) {
+		checkOpen();
+		if (line.contains("Microsoft-Windows-Security-Auditing,")) {
+			// 自動の検知は前のイベントの行が揃ってから行う
+			accepted();
+		}
+		detector.acceptLine(line);
+	}
+
+	/**
+	 * End a log whose lines or events were accepted, e.g. an exported file or
+	 * a connection. Events are grouped by time within a log, so lines of the
+	 * next log are not grouped with the events of this one.
+	 */
+	public synchronized void endLog() {
+		checkOpen();
+		detector.endLog();
+	}
+
+	/**
+	 * Read an event log file(.csv, .evtx, .xml). Files which are not event
+	 * logs, or already read by this engine or the loaded state, are skipped.
+	 *
+	 * @param file
+	 */
+	public synchronized void ingest(Path file) {
+		checkOpen();
+		detector.readInputFile(file.toFile());
+	}
+
+	/**
+	 * Detect the accepted events, notify alerts and write result rows
+	 */
+	public synchronized void flush() {
+		checkOpen();
+		detector.detectStream();
+		pending = 0;
+	}
+
+	/**
+	 * Flush the remaining events, save the state and close the output
+	 */
+	@Override
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		detector.detectStream();
+		detector.closeStream();
+		if (null != stateFile) {
+			detector.saveState(stateFile);
+		}
+		closed = true;
+	}
+
+	private void accepted() {
+		pending++;
+		if (flushEvents > 0 && pending >= flushEvents) {
+			flush();
+		}
+	}
+
+	private void checkOpen() {
+		if (closed) {
+			throw new IllegalStateException("DetectorEngine is closed");
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package logparse;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Set of 64 bit content fingerprints of events, to drop events which are read
+ * twice from overlapping exports.
+ *
+ * Fingerprints are kept in open addressing tables of primitive longs instead
+ * of the events themselves. The set is bounded: when the current table holds
+ * maxSize fingerprints, it becomes the previous generation and a new table is
+ * started, so duplicates are found within at least the last maxSize events.
+ *
+ * @version 1.0
+ */
+public class EventFingerprintSet {
+
+	protected static final int DEFAULT_MAX_SIZE = 1 << 22;
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	// 0 is used for empty slots
+	private static final long EMPTY = 0;
+
+	private final int maxSize;
+	private long current[];
+	private int currentSize = 0;
+	private long previous[] = null;
+
+	private long duplicates = 0;
+
+	/**
+	 * @param maxSize
+	 *            number of fingerprints kept per generation
+	 */
+	public EventFingerprintSet(int maxSize) {
+		this.maxSize = Math.max(16, maxSize);
+		this.current = new long[64];
+	}
+
+	/**
+	 * Content fingerprint of an event. Alert results are not included.
+	 *
+	 * @param ev
+	 * @return fingerprint
+	 */
+	public static long fingerprint(EventLogData ev) {
+		long h = FNV_OFFSET;
+		h = hash(h, ev.getDate());
+		h = hash(h, ev.getEventID());
+		h = hash(h, ev.getAccountName());
+		h = hash(h, ev.getClientAddress());
+		h = hash(h, ev.getClientPort());
+		h = hash(h, ev.getServiceName());
+		h = hash(h, ev.getProcessName());
+		h = hash(h, ev.getObjectName());
+		h = hash(h, ev.getSharedName());
+		h = hash(h, ev.getPrivilege());
+		// 下位ビットも全ビットの影響を受けるようにする
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return EMPTY == h ? 1 : h;
+	}
+
+	private static long hash(long h, String value) {
+		if (null != value) {
+			for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+				h = (h ^ (b & 0xff)) * FNV_PRIME;
+			}
+		}
+		// 区切り
+		return (h ^ 0xff) * FNV_PRIME;
+	}
+
+	private static long hash(long h, int value) {
+		for (int i = 0; i < 4; i++) {
+			h = (h ^ ((value >>> (i * 8)) & 0xff)) * FNV_PRIME;
+		}
+		return h;
+	}
+
+	/**
+	 * Add the fingerprint of an event
+	 *
+	 * @param ev
+	 * @return false if the same event was already added
+	 */
+	public boolean add(EventLogData ev) {
+		long fp = fingerprint(ev);
+		if ((null != previous && contains(previous, fp)) || contains(current, fp)) {
+			duplicates++;
+			return false;
+		}
+		if (currentSize >= maxSize) {
+			previous = current;
+			current = new long[64];
+			currentSize = 0;
+		} else if ((currentSize + 1) * 2 > current.length) {
+			current = grow(current);
+		}
+		insert(current, fp);
+		currentSize++;
+		return true;
+	}
+
+	/**
+	 * @return number of events dropped as duplicates
+	 */
+	public long getDuplicates() {
+		return duplicates;
+	}
+
+	private static boolean contains(long table[], long fp) {
+		int mask = table.length - 1;
+		for (int i = (int) fp & mask;; i = (i + 1) & mask) {
+			if (EMPTY == table[i]) {
+				return false;
+			}
+			if (fp == table[i]) {
+				return true;
+			}
+		}
+	}
+
+	private static void insert(long table[], long fp) {
+		int mask = table.length - 1;
+		int i = (int) fp & mask;
+		while (EMPTY != table[i]) {
+			i = (i + 1) & mask;
+		}
+		table[i] = fp;
+	}
+
+	private static long[] grow(long table[]) {
+		long grown[] = new long[table.length * 2];
+		for (long fp : table) {
+			if (EMPTY != fp) {
+				insert(grown, fp);
+			}
+		}
+		return grown;
+	}
+}
@@ -0,0 +1,270 @@
+package logparse;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Receive Security events from network, in the same layout as CSV exported
+ * from event log: a "Microsoft-Windows-Security-Auditing," header line and
+ * continuation lines of labeled fields, separated by newline.
+ *
+ * TCP and UDP are served on the same port by one thread with a Selector.
+ * Complete lines are passed to the detection stage through a bounded queue.
+ * When the queue is full, the listener stops reading the sockets, so that TCP
+ * senders are blocked by flow control. UDP datagrams which arrive while
+ * reading is stopped may be dropped by the OS. Complete lines received before
+ * stop() are still passed to the queue.
+ *
+ * @version 1.0
+ */
+public class EventListener implements Runnable {
+
+	private static final Charset CHARSET = StandardCharsets.UTF_8;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	// Longer lines are dropped
+	private static final int MAX_LINE = 1024 * 1024;
+
+	/**
+	 * Lines received from one source
+	 */
+	public static class Lines {
+		// Sender of the lines. Parser state is kept per source.
+		final String source;
+		final List<String> lines;
+		// The source is closed after these lines
+		final boolean end;
+
+		Lines(String source, List<String> lines, boolean end) {
+			this.source = source;
+			this.lines = lines;
+			this.end = end;
+		}
+	}
+
+	// TCP connection
+	private static class Connection {
+		final String source;
+		ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+
+		Connection(String source) {
+			this.source = source;
+		}
+	}
+
+	private final int port;
+	private final StageQueue<Lines> queue;
+
+	// Lines waiting for space in the queue
+	private final Deque<Lines> pending = new ArrayDeque<Lines>();
+	private boolean reading = true;
+
+	private volatile boolean running = true;
+	private volatile long recordCnt = 0;
+	private Selector selector;
+
+	/**
+	 * @param port
+	 *            TCP and UDP port
+	 * @param queue
+	 *            queue to the detection stage
+	 */
+	public EventListener(int port, StageQueue<Lines> queue) {
+		this.port = port;
+		this.queue = queue;
+	}
+
+	/**
+	 * @return number of records(header lines) received
+	 */
+	public long getRecordCount() {
+		return recordCnt;
+	}
+
+	/**
+	 * Stop listening
+	 */
+	public void stop() {
+		running = false;
+		if (null != selector) {
+			selector.wakeup();
+		}
+	}
+
+	@Override
+	public void run() {
+		ServerSocketChannel server = null;
+		DatagramChannel udp = null;
+		try {
+			selector = Selector.open();
+			server = ServerSocketChannel.open();
+			server.bind(new InetSocketAddress(port));
+			server.configureBlocking(false);
+			server.register(selector, SelectionKey.OP_ACCEPT);
+			udp = DatagramChannel.open();
+			udp.bind(new InetSocketAddress(port));
+			udp.configureBlocking(false);
+			udp.register(selector, SelectionKey.OP_READ);
+			System.out.println("Listening on TCP/UDP port " + port);
+
+			ByteBuffer datagram = ByteBuffer.allocate(BUFFER_SIZE);
+			while (running) {
+				drainPending();
+				selector.select(pending.isEmpty() ? 1000 : 10);
+				for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept(server);
+					} else if (key.isReadable() && key.channel() == udp) {
+						receive(udp, datagram);
+					} else if (key.isReadable()) {
+						read(key);
+					}
+				}
+			}
+			// 停止までに受信した行は検知側が受け取るまで待って渡す
+			while (!pending.isEmpty()) {
+				queue.put(pending.poll());
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			try {
+				if (null != selector) {
+					for (SelectionKey key : selector.keys()) {
+						key.channel().close();
+					}
+					selector.close();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void accept(ServerSocketChannel server) throws IOException {
+		SocketChannel ch = server.accept();
+		if (null == ch) {
+			return;
+		}
+		ch.configureBlocking(false);
+		ch.register(selector, reading ? SelectionKey.OP_READ : 0, new Connection("tcp:" + ch.getRemoteAddress()));
+	}
+
+	private void read(SelectionKey key) {
+		SocketChannel ch = (SocketChannel) key.channel();
+		Connection conn = (Connection) key.attachment();
+		int n;
+		try {
+			if (!conn.buf.hasRemaining()) {
+				if (conn.buf.capacity() >= MAX_LINE) {
+					System.out.println(conn.source + ": line too long, dropped");
+					conn.buf.clear();
+				} else {
+					ByteBuffer larger = ByteBuffer.allocate(conn.buf.capacity() * 2);
+					conn.buf.flip();
+					larger.put(conn.buf);
+					conn.buf = larger;
+				}
+			}
+			n = ch.read(conn.buf);
+		} catch (IOException e) {
+			n = -1;
+		}
+		List<String> lines = new ArrayList<String>();
+		conn.buf.flip();
+		splitLines(conn.buf, lines);
+		if (n < 0) {
+			// 最後の行は改行がなくても処理する
+			if (conn.buf.hasRemaining()) {
+				lines.add(decode(conn.buf, conn.buf.remaining()));
+			}
+			key.cancel();
+			try {
+				ch.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			pending.add(new Lines(conn.source, lines, true));
+			return;
+		}
+		conn.buf.compact();
+		if (!lines.isEmpty()) {
+			pending.add(new Lines(conn.source, lines, false));
+		}
+	}
+
+	private void receive(DatagramChannel udp, ByteBuffer datagram) throws IOException {
+		datagram.clear();
+		SocketAddress sender = udp.receive(datagram);
+		if (null == sender) {
+			return;
+		}
+		datagram.flip();
+		List<String> lines = new ArrayList<String>();
+		splitLines(datagram, lines);
+		// データグラムの終わりは行の終わりとする
+		if (datagram.hasRemaining()) {
+			lines.add(decode(datagram, datagram.remaining()));
+		}
+		if (!lines.isEmpty()) {
+			pending.add(new Lines("udp:" + sender, lines, false));
+		}
+	}
+
+	/**
+	 * Take complete lines from the buffer. The position is moved to the start
+	 * of the incomplete line.
+	 */
+	private void splitLines(ByteBuffer buf, List<String> lines) {
+		int start = buf.position();
+		for (int i = start; i < buf.limit(); i++) {
+			if ('\n' == buf.get(i)) {
+				lines.add(decode(buf, i - buf.position()));
+				// skip '\n'
+				buf.get();
+			}
+		}
+	}
+
+	private String decode(ByteBuffer buf, int len) {
+		byte line[] = new byte[len];
+		buf.get(line);
+		if (len > 0 && '\r' == line[len - 1]) {
+			len--;
+		}
+		String text = new String(line, 0, len, CHARSET);
+		if (TimeOrderedEventReader.isHeader(text)) {
+			recordCnt++;
+		}
+		return text;
+	}
+
+	/**
+	 * Pass received lines to the queue. Stop reading while the queue is full.
+	 */
+	private void drainPending() {
+		while (!pending.isEmpty() && queue.tryPut(pending.peek())) {
+			pending.poll();
+		}
+		boolean canRead = pending.isEmpty();
+		if (canRead == reading) {
+			return;
+		}
+		reading = canRead;
+		for (SelectionKey key : selector.keys()) {
+			if (key.isValid() && !(key.channel() instanceof ServerSocketChannel)) {
+				key.interestOps(reading ? SelectionKey.OP_READ : 0);
+			}
+		}
+	}
+}
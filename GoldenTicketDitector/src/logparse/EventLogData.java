@@ -1,5 +1,9 @@
 package logparse;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 import logparse.AuthLogUtil.Alert;
 import logparse.GoldenTicketDetector.AlertType;
 
@@ -12,13 +16,18 @@ public class EventLogData {
 	private int clientPort;
 	private String serviceName = "";
 	private String processName = "";
-	private String shredName = "";
-	private String objectName = "";
-	private String privilege="";
+	// Fields only some events have, allocated when one of them is set
+	private Details details=null;
 	private long timeCnt;
 	private short isGolden=0;
 	private Alert alertLevel=Alert.NONE;
 	private AlertType alertType=AlertType.NONE;
+
+	private static class Details {
+		String shredName = "";
+		String objectName = "";
+		String privilege = "";
+	}
 	
 	EventLogData(String date, String clientAddress, String accountName, int eventID, int clientPort, String serviceName, 
 			String processName,long timeCnt){
@@ -90,21 +99,85 @@ public class EventLogData {
 		this.alertType=alertType;
 	}
 	public void setSharedName(String shredName){
-		this.shredName=shredName;
+		if (null != details || !shredName.isEmpty()) {
+			details().shredName = shredName;
+		}
 	}
 	public String getSharedName(){
-		return this.shredName;
+		return null == details ? "" : details.shredName;
 	}
 	public void setObjectName(String objectName){
-		this.objectName=objectName;
+		if (null != details || !objectName.isEmpty()) {
+			details().objectName = objectName;
+		}
 	}
 	public String getObjectName(){
-		return this.objectName;
+		return null == details ? "" : details.objectName;
 	}
 	public void setPrivilege(String privilege){
-		this.privilege=privilege;
+		if (null != details || !privilege.isEmpty()) {
+			details().privilege = privilege;
+		}
 	}
 	public String getPrivilege(){
-		return this.privilege;
+		return null == details ? "" : details.privilege;
+	}
+
+	private Details details(){
+		if (null == details) {
+			details = new Details();
+		}
+		return details;
+	}
+
+	
+	/**
+	 * Write all fields in binary form (used for sort runs on disk)
+	 * 
+	 * @param out
+	 * @throws IOException
+	 */
+	public void write(DataOutput out) throws IOException {
+		out.writeUTF(this.date);
+		out.writeUTF(this.accountName);
+		out.writeUTF(this.clientAddress);
+		out.writeInt(this.eventID);
+		out.writeInt(this.clientPort);
+		out.writeUTF(this.serviceName);
+		out.writeUTF(this.processName);
+		out.writeUTF(getSharedName());
+		out.writeUTF(getObjectName());
+		out.writeUTF(getPrivilege());
+		out.writeLong(this.timeCnt);
+		out.writeShort(this.isGolden);
+		out.writeByte(this.alertLevel.ordinal());
+		out.writeByte(this.alertType.ordinal());
+	}
+
+	/**
+	 * Read fields written by {@link #write(DataOutput)}
+	 * 
+	 * @param in
+	 * @return EventLogData
+	 * @throws IOException
+	 */
+	public static EventLogData read(DataInput in) throws IOException {
+		String date = in.readUTF();
+		String accountName = in.readUTF();
+		String clientAddress = in.readUTF();
+		int eventID = in.readInt();
+		int clientPort = in.readInt();
+		String serviceName = in.readUTF();
+		String processName = in.readUTF();
+		EventLogData ev = new EventLogData(date, clientAddress, accountName, eventID, clientPort, serviceName,
+				processName, 0);
+		ev.setSharedName(in.readUTF());
+		ev.setObjectName(in.readUTF());
+		ev.setPrivilege(in.readUTF());
+		ev.settimeCnt(in.readLong());
+		ev.setIsGolden(in.readShort());
+		ev.setAlertLevel(Alert.values()[in.readByte()]);
+		ev.setAlertType(AlertType.values()[in.readByte()]);
+		return ev;
 	}
 }
@@ -0,0 +1,135 @@
+package logparse;
+
+import java.time.Instant;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import logparse.AuthLogUtil.Field;
+
+/**
+ * Event read from an event log which is not exported as CSV(.evtx, XML).
+ * Fields are keyed by EventData names instead of localized labels.
+ *
+ * @version 1.0
+ */
+public class EventRecord {
+
+	private int eventID = -1;
+	private long recordID = 0;
+	// UNIX Time(msec)
+	private long time = 0;
+	// EventData name and value
+	private Map<String, String> data = new HashMap<String, String>();
+
+	public int getEventID() {
+		return this.eventID;
+	}
+
+	public void setEventID(int eventID) {
+		this.eventID = eventID;
+	}
+
+	public long getRecordID() {
+		return this.recordID;
+	}
+
+	public void setRecordID(long recordID) {
+		this.recordID = recordID;
+	}
+
+	public long getTime() {
+		return this.time;
+	}
+
+	public void setTime(long time) {
+		this.time = time;
+	}
+
+	public String getData(String name) {
+		return this.data.get(name);
+	}
+
+	public void putData(String name, String value) {
+		this.data.put(name, value);
+	}
+
+	/**
+	 * Fields used for detection, in the order they appear in the event
+	 * description
+	 *
+	 * @return field and value
+	 */
+	public Map<Field, String> getFields() {
+		return getFields(AuthLogUtil.ALL_FIELDS);
+	}
+
+	/**
+	 * Fields used for detection, only the ones the detector uses
+	 *
+	 * @param used
+	 *            fields the detector uses
+	 * @return field and value
+	 */
+	public Map<Field, String> getFields(Set<Field> used) {
+		Map<Field, String> fields = new EnumMap<Field, String>(Field.class);
+		if (used.contains(Field.ACCOUNT)) {
+			String accountName;
+			if (4768 == eventID || 4769 == eventID) {
+				accountName = firstOf("TargetUserName", "SubjectUserName");
+			} else {
+				accountName = firstOf("SubjectUserName", "TargetUserName");
+			}
+			put(fields, Field.ACCOUNT, accountName);
+		}
+		if (used.contains(Field.SERVICE)) {
+			put(fields, Field.SERVICE, firstOf("ServiceName", "Service"));
+		}
+		if (used.contains(Field.OBJECT)) {
+			put(fields, Field.OBJECT, data.get("ObjectName"));
+		}
+		if (used.contains(Field.ADDRESS)) {
+			put(fields, Field.ADDRESS, data.get("IpAddress"));
+		}
+		if (used.contains(Field.PORT)) {
+			put(fields, Field.PORT, data.get("IpPort"));
+		}
+		if (used.contains(Field.PROCESS)) {
+			put(fields, Field.PROCESS, firstOf("NewProcessName", "ProcessName"));
+		}
+		if (used.contains(Field.SHARE)) {
+			put(fields, Field.SHARE, data.get("ShareName"));
+		}
+		if (used.contains(Field.PRIVILEGE)) {
+			put(fields, Field.PRIVILEGE, data.get("PrivilegeList"));
+		}
+		return fields;
+	}
+
+	private String firstOf(String name1, String name2) {
+		String value = data.get(name1);
+		return null != value ? value : data.get(name2);
+	}
+
+	private static void put(Map<Field, String> fields, Field field, String value) {
+		if (null != value) {
+			fields.put(field, value.trim());
+		}
+	}
+
+	/**
+	 * Parse SystemTime of TimeCreated("2017-08-01T10:00:00.1234567Z")
+	 *
+	 * @param systemTime
+	 * @return UNIX Time(msec), or -1 if the format is unknown
+	 */
+	public static long parseSystemTime(String systemTime) {
+		try {
+			// Fraction of second is longer than SimpleDateFormat can handle
+			return Instant.parse(systemTime.trim()).toEpochMilli();
+		} catch (RuntimeException e) {
+			return -1;
+		}
+	}
+}
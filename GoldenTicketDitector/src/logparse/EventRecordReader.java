@@ -0,0 +1,47 @@
+package logparse;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Reader of event logs which are not exported as CSV. Records are returned
+ * one by one, newest first.
+ *
+ * @version 1.0
+ */
+public interface EventRecordReader extends Closeable {
+
+	/**
+	 * Read next record
+	 *
+	 * @return EventRecord, or null if no more records
+	 * @throws IOException
+	 */
+	EventRecord next() throws IOException;
+
+	/**
+	 * Whether the file can be read by EventRecordReader
+	 *
+	 * @param filename
+	 * @return true for .evtx and .xml
+	 */
+	static boolean isSupported(String filename) {
+		return filename.endsWith(".evtx") || filename.endsWith(".xml");
+	}
+
+	/**
+	 * Open reader by file extension
+	 *
+	 * @param file
+	 *            .evtx or .xml file
+	 * @return EventRecordReader
+	 * @throws IOException
+	 */
+	static EventRecordReader open(File file) throws IOException {
+		if (file.getName().endsWith(".evtx")) {
+			return new EvtxReader(file);
+		}
+		return new XmlEventReader(file);
+	}
+}
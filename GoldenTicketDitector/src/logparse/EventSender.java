@@ -0,0 +1,108 @@
+package logparse;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stand-in sender for the --listen mode of GoldenTicketDetector. Sends
+ * records of a CSV file exported from event log repeatedly, and reports
+ * throughput.
+ *
+ * @version 1.0
+ */
+public class EventSender {
+
+	private static void printUseage() {
+		System.out.println("Useage");
+		System.out.println("{host} {port} {CSV file} ({number of events}) (--udp)");
+	}
+
+	/**
+	 * Read records of a CSV file. Lines before the first record are skipped.
+	 */
+	private static List<byte[]> readRecords(String filename) throws IOException {
+		List<byte[]> records = new ArrayList<byte[]>();
+		BufferedReader br = new BufferedReader(new FileReader(filename));
+		try {
+			StringBuilder sb = null;
+			String line;
+			while ((line = br.readLine()) != null) {
+				if (TimeOrderedEventReader.isHeader(line)) {
+					if (null != sb) {
+						records.add(sb.toString().getBytes(StandardCharsets.UTF_8));
+					}
+					sb = new StringBuilder();
+				}
+				if (null != sb) {
+					sb.append(line).append('\n');
+				}
+			}
+			if (null != sb) {
+				records.add(sb.toString().getBytes(StandardCharsets.UTF_8));
+			}
+		} finally {
+			br.close();
+		}
+		return records;
+	}
+
+	public static void main(String args[]) throws IOException {
+		boolean udp = AuthLogUtil.parseOptions(args).containsKey("udp");
+		args = AuthLogUtil.removeOptions(args);
+		if (args.length < 3) {
+			printUseage();
+			return;
+		}
+		InetSocketAddress address = new InetSocketAddress(args[0], Integer.parseInt(args[1]));
+		List<byte[]> records = readRecords(args[2]);
+		if (records.isEmpty()) {
+			System.out.println("No records in " + args[2]);
+			return;
+		}
+		long total = args.length > 3 ? Long.parseLong(args[3]) : records.size();
+
+		long start = System.currentTimeMillis();
+		long lastReport = start;
+		long lastSent = 0;
+		long sent = 0;
+		if (udp) {
+			DatagramChannel ch = DatagramChannel.open();
+			try {
+				for (; sent < total; sent++) {
+					// 1データグラムに1レコード
+					ch.send(ByteBuffer.wrap(records.get((int) (sent % records.size()))), address);
+				}
+			} finally {
+				ch.close();
+			}
+		} else {
+			SocketChannel ch = SocketChannel.open(address);
+			try {
+				for (; sent < total; sent++) {
+					ByteBuffer buf = ByteBuffer.wrap(records.get((int) (sent % records.size())));
+					while (buf.hasRemaining()) {
+						// 受信側が遅れている間はブロックされる
+						ch.write(buf);
+					}
+					long now = System.currentTimeMillis();
+					if (now - lastReport >= 1000) {
+						System.out.println(String.format("%d events/s", (sent - lastSent) * 1000 / (now - lastReport)));
+						lastReport = now;
+						lastSent = sent;
+					}
+				}
+			} finally {
+				ch.close();
+			}
+		}
+		long elapsed = Math.max(1, System.currentTimeMillis() - start);
+		System.out.println(String.format("Sent %d events in %d ms (%.1f events/s)", sent, elapsed,
+				sent * 1000.0 / elapsed));
+	}
+}
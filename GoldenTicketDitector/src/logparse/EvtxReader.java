@@ -0,0 +1,664 @@
+package logparse;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.*;
+
+/**
+ * Read Windows event log(.evtx) file directly, without exporting it as CSV
+ * from Event Viewer.
+ *
+ * An .evtx file is a file header followed by 64KB chunks. Each chunk has event
+ * records in binary XML(BinXML), and a record is usually an instance of a
+ * template defined in the chunk with substitution values. Templates are
+ * compiled once and cached by their GUID, so each record only needs its
+ * substitution values to be decoded.
+ *
+ * Records are returned newest first, which is the order of CSV exported from
+ * Event Viewer.
+ *
+ * @version 1.0
+ */
+public class EvtxReader implements EventRecordReader {
+
+	private static final byte[] FILE_MAGIC = "ElfFile\0".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] CHUNK_MAGIC = "ElfChnk\0".getBytes(StandardCharsets.US_ASCII);
+	private static final int FILE_HEADER_SIZE = 4096;
+	private static final int CHUNK_SIZE = 65536;
+	private static final int CHUNK_HEADER_SIZE = 512;
+	private static final int RECORD_MAGIC = 0x00002a2a;
+
+	// Difference between FILETIME(1601/01/01) and UNIX Time(1970/01/01) in 100ns
+	private static final long FILETIME_EPOCH = 116444736000000000L;
+
+	// BinXML tokens
+	private static final int TOKEN_EOF = 0x00;
+	private static final int TOKEN_OPEN_START_ELEMENT = 0x01;
+	private static final int TOKEN_CLOSE_START_ELEMENT = 0x02;
+	private static final int TOKEN_CLOSE_EMPTY_ELEMENT = 0x03;
+	private static final int TOKEN_END_ELEMENT = 0x04;
+	private static final int TOKEN_VALUE = 0x05;
+	private static final int TOKEN_ATTRIBUTE = 0x06;
+	private static final int TOKEN_CDATA = 0x07;
+	private static final int TOKEN_CHAR_REF = 0x08;
+	private static final int TOKEN_ENTITY_REF = 0x09;
+	private static final int TOKEN_PI_TARGET = 0x0a;
+	private static final int TOKEN_PI_DATA = 0x0b;
+	private static final int TOKEN_TEMPLATE_INSTANCE = 0x0c;
+	private static final int TOKEN_NORMAL_SUBSTITUTION = 0x0d;
+	private static final int TOKEN_OPTIONAL_SUBSTITUTION = 0x0e;
+	private static final int TOKEN_FRAGMENT_HEADER = 0x0f;
+	private static final int FLAG_MORE = 0x40;
+
+	// Value types
+	private static final int TYPE_NULL = 0x00;
+	private static final int TYPE_WSTRING = 0x01;
+	private static final int TYPE_STRING = 0x02;
+	private static final int TYPE_INT8 = 0x03;
+	private static final int TYPE_UINT8 = 0x04;
+	private static final int TYPE_INT16 = 0x05;
+	private static final int TYPE_UINT16 = 0x06;
+	private static final int TYPE_INT32 = 0x07;
+	private static final int TYPE_UINT32 = 0x08;
+	private static final int TYPE_INT64 = 0x09;
+	private static final int TYPE_UINT64 = 0x0a;
+	private static final int TYPE_REAL32 = 0x0b;
+	private static final int TYPE_REAL64 = 0x0c;
+	private static final int TYPE_BOOL = 0x0d;
+	private static final int TYPE_BINARY = 0x0e;
+	private static final int TYPE_GUID = 0x0f;
+	private static final int TYPE_SIZET = 0x10;
+	private static final int TYPE_FILETIME = 0x11;
+	private static final int TYPE_SYSTIME = 0x12;
+	private static final int TYPE_SID = 0x13;
+	private static final int TYPE_HEXINT32 = 0x14;
+	private static final int TYPE_HEXINT64 = 0x15;
+	private static final int TYPE_BINXML = 0x21;
+	private static final int TYPE_WSTRING_ARRAY = 0x81;
+
+	private final RandomAccessFile raf;
+
+	// Offsets of chunks, newest first
+	private final List<Long> chunkOffsets = new ArrayList<Long>();
+	private int chunkIdx = 0;
+
+	private List<EventRecord> records = Collections.emptyList();
+	private int recordIdx = 0;
+
+	// Compiled templates(key: template GUID)
+	private final Map<String, Template> templates = new HashMap<String, Template>();
+
+	private abstract static class Node {
+	}
+
+	private static class Element extends Node {
+		String name;
+		List<Attribute> attributes = new ArrayList<Attribute>();
+		List<Node> children = new ArrayList<Node>();
+	}
+
+	private static class Attribute {
+		String name;
+		List<Node> value = new ArrayList<Node>();
+	}
+
+	private static class Text extends Node {
+		final String text;
+
+		Text(String text) {
+			this.text = text;
+		}
+	}
+
+	private static class Substitution extends Node {
+		final int index;
+
+		Substitution(int index) {
+			this.index = index;
+		}
+	}
+
+	private static class Template {
+		final List<Node> nodes;
+
+		Template(List<Node> nodes) {
+			this.nodes = nodes;
+		}
+	}
+
+	private static class TemplateInstance extends Node {
+		final Template template;
+		// String, or List<Node> for BinXML value
+		final Object[] values;
+
+		TemplateInstance(Template template, Object[] values) {
+			this.template = template;
+			this.values = values;
+		}
+	}
+
+	/**
+	 * @param file
+	 *            .evtx file
+	 * @throws IOException
+	 */
+	public EvtxReader(File file) throws IOException {
+		this.raf = new RandomAccessFile(file, "r");
+		byte[] magic = new byte[FILE_MAGIC.length];
+		raf.readFully(magic);
+		if (!Arrays.equals(FILE_MAGIC, magic)) {
+			raf.close();
+			throw new IOException("Not a Windows event log file: " + file);
+		}
+		// Chunks are used as a ring buffer, so sort them by the first record number
+		final Map<Long, Long> firstRecord = new HashMap<Long, Long>();
+		long chunkNum = (raf.length() - FILE_HEADER_SIZE) / CHUNK_SIZE;
+		byte[] header = new byte[16];
+		for (long i = 0; i < chunkNum; i++) {
+			long offset = FILE_HEADER_SIZE + i * CHUNK_SIZE;
+			raf.seek(offset);
+			raf.readFully(header);
+			if (!Arrays.equals(CHUNK_MAGIC, Arrays.copyOf(header, CHUNK_MAGIC.length))) {
+				continue;
+			}
+			chunkOffsets.add(offset);
+			firstRecord.put(offset, ByteBuffer.wrap(header, 8, 8).order(ByteOrder.LITTLE_ENDIAN).getLong());
+		}
+		Collections.sort(chunkOffsets, new Comparator<Long>() {
+			@Override
+			public int compare(Long a, Long b) {
+				return Long.compare(firstRecord.get(b), firstRecord.get(a));
+			}
+		});
+	}
+
+	/**
+	 * Read next record
+	 *
+	 * @return EventRecord, or null if no more records
+	 * @throws IOException
+	 */
+	@Override
+	public EventRecord next() throws IOException {
+		while (recordIdx >= records.size()) {
+			if (chunkIdx >= chunkOffsets.size()) {
+				return null;
+			}
+			records = readChunk(chunkOffsets.get(chunkIdx++));
+			Collections.reverse(records);
+			recordIdx = 0;
+		}
+		return records.get(recordIdx++);
+	}
+
+	@Override
+	public void close() throws IOException {
+		raf.close();
+	}
+
+	private List<EventRecord> readChunk(long offset) throws IOException {
+		byte[] chunk = new byte[CHUNK_SIZE];
+		raf.seek(offset);
+		raf.readFully(chunk);
+		ByteBuffer buf = ByteBuffer.wrap(chunk).order(ByteOrder.LITTLE_ENDIAN);
+		ChunkParser parser = new ChunkParser(buf);
+		int freeSpace = Math.min(buf.getInt(48), CHUNK_SIZE);
+
+		List<EventRecord> list = new ArrayList<EventRecord>();
+		int pos = CHUNK_HEADER_SIZE;
+		while (pos + 24 <= freeSpace && RECORD_MAGIC == buf.getInt(pos)) {
+			int size = buf.getInt(pos + 4);
+			if (size < 24 || pos + size > CHUNK_SIZE) {
+				break;
+			}
+			EventRecord record = new EventRecord();
+			record.setRecordID(buf.getLong(pos + 8));
+			record.setTime(filetimeToMillis(buf.getLong(pos + 16)));
+			try {
+				List<Node> nodes = parser.parse(pos + 24, pos + size - 4);
+				extract(nodes, null, record, false);
+				list.add(record);
+			} catch (RuntimeException e) {
+				System.out.println("Skip broken record " + record.getRecordID() + ": " + e);
+			}
+			pos += size;
+		}
+		return list;
+	}
+
+	/**
+	 * Parser of BinXML in one chunk. Offsets of names and templates are
+	 * relative to the chunk.
+	 */
+	private class ChunkParser {
+		private final ByteBuffer buf;
+		private final Map<Integer, String> names = new HashMap<Integer, String>();
+		private int pos;
+
+		ChunkParser(ByteBuffer buf) {
+			this.buf = buf;
+		}
+
+		List<Node> parse(int start, int end) {
+			List<Node> nodes = new ArrayList<Node>();
+			int saved = pos;
+			pos = start;
+			parseNodes(nodes, end);
+			pos = saved;
+			return nodes;
+		}
+
+		private int u8(int offset) {
+			return buf.get(offset) & 0xff;
+		}
+
+		private int u16(int offset) {
+			return buf.getShort(offset) & 0xffff;
+		}
+
+		private String utf16(int offset, int chars) {
+			return new String(buf.array(), offset, chars * 2, StandardCharsets.UTF_16LE);
+		}
+
+		/**
+		 * Parse nodes until end of element, end of stream, or template
+		 * instance which is the whole fragment.
+		 */
+		private void parseNodes(List<Node> nodes, int end) {
+			while (pos < end) {
+				int token = u8(pos) & 0x0f;
+				switch (token) {
+				case TOKEN_EOF:
+					pos++;
+					return;
+				case TOKEN_END_ELEMENT:
+					pos++;
+					return;
+				case TOKEN_FRAGMENT_HEADER:
+					pos += 4;
+					break;
+				case TOKEN_TEMPLATE_INSTANCE:
+					nodes.add(parseTemplateInstance());
+					return;
+				case TOKEN_OPEN_START_ELEMENT:
+					nodes.add(parseElement(end));
+					break;
+				case TOKEN_PI_TARGET: {
+					int start = pos;
+					int nameOffset = buf.getInt(pos + 1);
+					pos += 5;
+					readName(nameOffset, start);
+					break;
+				}
+				case TOKEN_PI_DATA:
+					pos++;
+					pos += 2 + u16(pos) * 2;
+					break;
+				default:
+					nodes.add(parseValueNode());
+					break;
+				}
+			}
+		}
+
+		private Node parseValueNode() {
+			int start = pos;
+			int token = u8(pos) & 0x0f;
+			pos++;
+			switch (token) {
+			case TOKEN_VALUE: {
+				int type = u8(pos);
+				pos++;
+				if (TYPE_WSTRING != type) {
+					throw new IllegalStateException("Unsupported value type " + type + " at " + start);
+				}
+				int chars = u16(pos);
+				pos += 2;
+				String text = utf16(pos, chars);
+				pos += chars * 2;
+				return new Text(text);
+			}
+			case TOKEN_NORMAL_SUBSTITUTION:
+			case TOKEN_OPTIONAL_SUBSTITUTION: {
+				int index = u16(pos);
+				pos += 3;
+				return new Substitution(index);
+			}
+			case TOKEN_CDATA: {
+				int chars = u16(pos);
+				pos += 2;
+				String text = utf16(pos, chars);
+				pos += chars * 2;
+				return new Text(text);
+			}
+			case TOKEN_CHAR_REF: {
+				char c = (char) u16(pos);
+				pos += 2;
+				return new Text(String.valueOf(c));
+			}
+			case TOKEN_ENTITY_REF: {
+				int nameOffset = buf.getInt(pos);
+				pos += 4;
+				return new Text(entity(readName(nameOffset, start)));
+			}
+			default:
+				throw new IllegalStateException("Unknown BinXML token " + token + " at " + start);
+			}
+		}
+
+		private Element parseElement(int end) {
+			int start = pos;
+			int token = u8(pos);
+			// token, dependency identifier, data size
+			pos += 7;
+			int nameOffset = buf.getInt(pos);
+			pos += 4;
+			if (0 != (token & FLAG_MORE)) {
+				// size of attribute list
+				pos += 4;
+			}
+			Element element = new Element();
+			element.name = readName(nameOffset, start);
+
+			while (TOKEN_ATTRIBUTE == (u8(pos) & 0x0f)) {
+				int attrStart = pos;
+				int attrNameOffset = buf.getInt(pos + 1);
+				pos += 5;
+				Attribute attribute = new Attribute();
+				attribute.name = readName(attrNameOffset, attrStart);
+				while (isValueToken(u8(pos) & 0x0f)) {
+					attribute.value.add(parseValueNode());
+				}
+				element.attributes.add(attribute);
+			}
+			int close = u8(pos) & 0x0f;
+			pos++;
+			if (TOKEN_CLOSE_START_ELEMENT == close) {
+				parseNodes(element.children, end);
+			} else if (TOKEN_CLOSE_EMPTY_ELEMENT != close) {
+				throw new IllegalStateException("Unexpected BinXML token " + close + " at " + (pos - 1));
+			}
+			return element;
+		}
+
+		private boolean isValueToken(int token) {
+			return TOKEN_VALUE == token || TOKEN_NORMAL_SUBSTITUTION == token
+					|| TOKEN_OPTIONAL_SUBSTITUTION == token || TOKEN_CHAR_REF == token
+					|| TOKEN_ENTITY_REF == token || TOKEN_CDATA == token;
+		}
+
+		/**
+		 * Read name at offset. pos is just after the fixed fields of the token
+		 * when called, and it is moved after the name if the name is defined
+		 * there.
+		 *
+		 * @param offset
+		 *            offset of the name
+		 * @param tokenStart
+		 *            offset of the token which refers to the name
+		 * @return name
+		 */
+		private String readName(int offset, int tokenStart) {
+			int chars = u16(offset + 6);
+			String name = names.get(offset);
+			if (null == name) {
+				name = utf16(offset + 8, chars);
+				names.put(offset, name);
+			}
+			if (offset > tokenStart) {
+				// The name is defined here: next offset, hash, number of chars, chars, null
+				pos += 10 + chars * 2;
+			}
+			return name;
+		}
+
+		private TemplateInstance parseTemplateInstance() {
+			int start = pos;
+			// token, unknown, template identifier
+			pos += 6;
+			int defOffset = buf.getInt(pos);
+			pos += 4;
+			int dataSize = buf.getInt(defOffset + 20);
+			Template template = getTemplate(defOffset, dataSize);
+			if (defOffset > start) {
+				// The template is defined here: next offset, GUID, data size, data
+				pos = defOffset + 24 + dataSize;
+			}
+
+			int count = buf.getInt(pos);
+			pos += 4;
+			int sizes[] = new int[count];
+			int types[] = new int[count];
+			for (int i = 0; i < count; i++) {
+				sizes[i] = u16(pos);
+				types[i] = u8(pos + 2);
+				pos += 4;
+			}
+			Object values[] = new Object[count];
+			for (int i = 0; i < count; i++) {
+				values[i] = parseValue(types[i], pos, sizes[i]);
+				pos += sizes[i];
+			}
+			return new TemplateInstance(template, values);
+		}
+
+		private Template getTemplate(int defOffset, int dataSize) {
+			StringBuilder guid = new StringBuilder();
+			for (int i = 0; i < 16; i++) {
+				guid.append(String.format("%02x", u8(defOffset + 4 + i)));
+			}
+			String key = guid.append(':').append(dataSize).toString();
+			Template template = templates.get(key);
+			if (null == template) {
+				template = new Template(parse(defOffset + 24, defOffset + 24 + dataSize));
+				templates.put(key, template);
+			}
+			return template;
+		}
+
+		private Object parseValue(int type, int offset, int size) {
+			switch (type) {
+			case TYPE_NULL:
+				return "";
+			case TYPE_WSTRING:
+				return trimNull(utf16(offset, size / 2));
+			case TYPE_STRING:
+				return trimNull(new String(buf.array(), offset, size, StandardCharsets.ISO_8859_1));
+			case TYPE_INT8:
+				return String.valueOf(buf.get(offset));
+			case TYPE_UINT8:
+				return String.valueOf(u8(offset));
+			case TYPE_INT16:
+				return String.valueOf(buf.getShort(offset));
+			case TYPE_UINT16:
+				return String.valueOf(u16(offset));
+			case TYPE_INT32:
+				return String.valueOf(buf.getInt(offset));
+			case TYPE_UINT32:
+				return String.valueOf(buf.getInt(offset) & 0xffffffffL);
+			case TYPE_INT64:
+				return String.valueOf(buf.getLong(offset));
+			case TYPE_UINT64:
+				return Long.toUnsignedString(buf.getLong(offset));
+			case TYPE_REAL32:
+				return String.valueOf(buf.getFloat(offset));
+			case TYPE_REAL64:
+				return String.valueOf(buf.getDouble(offset));
+			case TYPE_BOOL:
+				return String.valueOf(0 != buf.getInt(offset));
+			case TYPE_GUID:
+				return guid(offset);
+			case TYPE_SIZET:
+				return 8 == size ? "0x" + Long.toHexString(buf.getLong(offset))
+						: "0x" + Integer.toHexString(buf.getInt(offset));
+			case TYPE_FILETIME: {
+				long filetime = buf.getLong(offset) - FILETIME_EPOCH;
+				return Instant.ofEpochSecond(Math.floorDiv(filetime, 10000000L),
+						Math.floorMod(filetime, 10000000L) * 100).toString();
+			}
+			case TYPE_SYSTIME:
+				return String.format("%04d-%02d-%02dT%02d:%02d:%02d.%03dZ", u16(offset), u16(offset + 2),
+						u16(offset + 6), u16(offset + 8), u16(offset + 10), u16(offset + 12), u16(offset + 14));
+			case TYPE_SID:
+				return sid(offset);
+			case TYPE_HEXINT32:
+				return "0x" + Integer.toHexString(buf.getInt(offset));
+			case TYPE_HEXINT64:
+				return "0x" + Long.toHexString(buf.getLong(offset));
+			case TYPE_BINXML:
+				return parse(offset, offset + size);
+			case TYPE_WSTRING_ARRAY:
+				return trimNull(utf16(offset, size / 2)).replace('\0', ' ');
+			case TYPE_BINARY:
+			default:
+				StringBuilder sb = new StringBuilder();
+				for (int i = 0; i < size; i++) {
+					sb.append(String.format("%02X", u8(offset + i)));
+				}
+				return sb.toString();
+			}
+		}
+
+		private String guid(int offset) {
+			return String.format("{%08X-%04X-%04X-%02X%02X-%02X%02X%02X%02X%02X%02X}", buf.getInt(offset),
+					u16(offset + 4), u16(offset + 6), u8(offset + 8), u8(offset + 9), u8(offset + 10),
+					u8(offset + 11), u8(offset + 12), u8(offset + 13), u8(offset + 14), u8(offset + 15));
+		}
+
+		private String sid(int offset) {
+			int subCount = u8(offset + 1);
+			long authority = 0;
+			for (int i = 2; i < 8; i++) {
+				authority = (authority << 8) | u8(offset + i);
+			}
+			StringBuilder sb = new StringBuilder("S-").append(u8(offset)).append('-').append(authority);
+			for (int i = 0; i < subCount; i++) {
+				sb.append('-').append(buf.getInt(offset + 8 + i * 4) & 0xffffffffL);
+			}
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * Extract EventID, EventRecordID, TimeCreated and EventData from nodes
+	 */
+	@SuppressWarnings("unchecked")
+	private static void extract(List<Node> nodes, Object values[], EventRecord record, boolean inEventData) {
+		for (Node node : nodes) {
+			if (node instanceof TemplateInstance) {
+				TemplateInstance instance = (TemplateInstance) node;
+				extract(instance.template.nodes, instance.values, record, inEventData);
+			} else if (node instanceof Substitution) {
+				Object value = value(values, ((Substitution) node).index);
+				if (value instanceof List) {
+					extract((List<Node>) value, null, record, inEventData);
+				}
+			} else if (node instanceof Element) {
+				Element element = (Element) node;
+				if ("EventID".equals(element.name)) {
+					try {
+						record.setEventID(Integer.parseInt(text(element.children, values).trim()));
+					} catch (NumberFormatException e) {
+						// nothing
+					}
+				} else if ("EventRecordID".equals(element.name)) {
+					try {
+						record.setRecordID(Long.parseLong(text(element.children, values).trim()));
+					} catch (NumberFormatException e) {
+						// nothing
+					}
+				} else if ("TimeCreated".equals(element.name)) {
+					String systemTime = attribute(element, "SystemTime", values);
+					long time = null == systemTime ? -1 : EventRecord.parseSystemTime(systemTime);
+					if (time >= 0) {
+						record.setTime(time);
+					}
+				} else if ("Data".equals(element.name)) {
+					String name = attribute(element, "Name", values);
+					if (null != name) {
+						record.putData(name, text(element.children, values));
+					}
+				} else if ("EventData".equals(element.name) || "UserData".equals(element.name)) {
+					extract(element.children, values, record, true);
+				} else if (inEventData && !hasElement(element.children, values)) {
+					record.putData(element.name, text(element.children, values));
+				} else {
+					extract(element.children, values, record, inEventData);
+				}
+			}
+		}
+	}
+
+	private static Object value(Object values[], int index) {
+		if (null == values || index < 0 || index >= values.length) {
+			return null;
+		}
+		return values[index];
+	}
+
+	private static boolean hasElement(List<Node> nodes, Object values[]) {
+		for (Node node : nodes) {
+			if (node instanceof Element || node instanceof TemplateInstance) {
+				return true;
+			}
+			if (node instanceof Substitution && value(values, ((Substitution) node).index) instanceof List) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String text(List<Node> nodes, Object values[]) {
+		StringBuilder sb = new StringBuilder();
+		for (Node node : nodes) {
+			if (node instanceof Text) {
+				sb.append(((Text) node).text);
+			} else if (node instanceof Substitution) {
+				Object value = value(values, ((Substitution) node).index);
+				if (value instanceof String) {
+					sb.append((String) value);
+				}
+			}
+		}
+		return sb.toString();
+	}
+
+	private static String attribute(Element element, String name, Object values[]) {
+		for (Attribute attribute : element.attributes) {
+			if (name.equals(attribute.name)) {
+				return text(attribute.value, values);
+			}
+		}
+		return null;
+	}
+
+	private static String entity(String name) {
+		if ("amp".equals(name)) {
+			return "&";
+		} else if ("lt".equals(name)) {
+			return "<";
+		} else if ("gt".equals(name)) {
+			return ">";
+		} else if ("quot".equals(name)) {
+			return "\"";
+		} else if ("apos".equals(name)) {
+			return "'";
+		}
+		return "&" + name + ";";
+	}
+
+	private static String trimNull(String s) {
+		int end = s.length();
+		while (end > 0 && '\0' == s.charAt(end - 1)) {
+			end--;
+		}
+		return s.substring(0, end);
+	}
+
+	private static long filetimeToMillis(long filetime) {
+		return (filetime - FILETIME_EPOCH) / 10000;
+	}
+}
@@ -0,0 +1,242 @@
+package logparse;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/**
+ * Sort events by account and time using sorted runs on disk, so that events
+ * can be evaluated one account at a time without keeping all accounts in
+ * memory.
+ *
+ * Events are ordered by (account name, time descending, arrival order), which
+ * is the order of an exported event log. Client address is not part of the
+ * key, because the client address of 4688 etc. is filled in from the
+ * preceding 4769 of the same account.
+ *
+ * @version 1.0
+ */
+public class ExternalEventSorter implements Iterable<List<EventLogData>>, Closeable {
+
+	// Default number of events kept in memory before writing a run
+	protected static final int DEFAULT_RUN_SIZE = 500000;
+
+	private final Path workDir;
+	private final int runSize;
+	private final SimpleDateFormat sdf = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
+
+	private List<SortEntry> buffer = new ArrayList<SortEntry>();
+	private List<File> runs = new ArrayList<File>();
+	private long seq = 0;
+
+	private static class SortEntry {
+		final long time;
+		final long seq;
+		final EventLogData ev;
+
+		SortEntry(long time, long seq, EventLogData ev) {
+			this.time = time;
+			this.seq = seq;
+			this.ev = ev;
+		}
+	}
+
+	private static final Comparator<SortEntry> ORDER = new Comparator<SortEntry>() {
+		@Override
+		public int compare(SortEntry a, SortEntry b) {
+			int cmp = a.ev.getAccountName().compareTo(b.ev.getAccountName());
+			if (0 != cmp) {
+				return cmp;
+			}
+			// 新しいログから順に並べる
+			cmp = Long.compare(b.time, a.time);
+			if (0 != cmp) {
+				return cmp;
+			}
+			return Long.compare(a.seq, b.seq);
+		}
+	};
+
+	/**
+	 * @param sortDir
+	 *            directory where sort runs are written
+	 * @param runSize
+	 *            number of events in one run
+	 * @throws IOException
+	 */
+	public ExternalEventSorter(String sortDir, int runSize) throws IOException {
+		this.workDir = Files.createTempDirectory(new File(sortDir).toPath(), "sortrun");
+		this.runSize = runSize;
+	}
+
+	/**
+	 * Add event. A run is written to disk when the buffer is full.
+	 *
+	 * @param ev
+	 */
+	public void add(EventLogData ev) {
+		if (null == ev) {
+			return;
+		}
+		long time = 0;
+		try {
+			time = sdf.parse(ev.getDate()).getTime();
+		} catch (ParseException e) {
+			e.printStackTrace();
+		}
+		buffer.add(new SortEntry(time, seq++, ev));
+		if (buffer.size() >= runSize) {
+			try {
+				writeRun();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	private void writeRun() throws IOException {
+		Collections.sort(buffer, ORDER);
+		File run = new File(workDir.toFile(), "run" + runs.size() + ".bin");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16));
+		try {
+			out.writeInt(buffer.size());
+			for (SortEntry entry : buffer) {
+				out.writeLong(entry.time);
+				out.writeLong(entry.seq);
+				entry.ev.write(out);
+			}
+		} finally {
+			out.close();
+		}
+		runs.add(run);
+		buffer = new ArrayList<SortEntry>();
+	}
+
+	/**
+	 * Number of runs written to disk
+	 *
+	 * @return number of runs
+	 */
+	public int getRunCount() {
+		return runs.size();
+	}
+
+	/**
+	 * Merge all runs and return events grouped by account. Each list is in
+	 * the order of an exported event log (newest first).
+	 */
+	@Override
+	public Iterator<List<EventLogData>> iterator() {
+		final PriorityQueue<RunCursor> heap = new PriorityQueue<RunCursor>(Math.max(1, runs.size() + 1),
+				new Comparator<RunCursor>() {
+					@Override
+					public int compare(RunCursor a, RunCursor b) {
+						return ORDER.compare(a.current, b.current);
+					}
+				});
+		try {
+			for (File run : runs) {
+				RunCursor cursor = new FileRunCursor(run);
+				if (cursor.next()) {
+					heap.add(cursor);
+				}
+			}
+			// メモリ上に残っているイベントも1つのランとして扱う
+			Collections.sort(buffer, ORDER);
+			RunCursor memCursor = new MemoryRunCursor(buffer);
+			if (memCursor.next()) {
+				heap.add(memCursor);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		return new Iterator<List<EventLogData>>() {
+			@Override
+			public boolean hasNext() {
+				return !heap.isEmpty();
+			}
+
+			@Override
+			public List<EventLogData> next() {
+				if (heap.isEmpty()) {
+					throw new NoSuchElementException();
+				}
+				String accountName = heap.peek().current.ev.getAccountName();
+				List<EventLogData> events = new ArrayList<EventLogData>();
+				try {
+					while (!heap.isEmpty() && heap.peek().current.ev.getAccountName().equals(accountName)) {
+						RunCursor cursor = heap.poll();
+						events.add(cursor.current.ev);
+						if (cursor.next()) {
+							heap.add(cursor);
+						}
+					}
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				return events;
+			}
+		};
+	}
+
+	/**
+	 * Delete runs
+	 */
+	@Override
+	public void close() throws IOException {
+		for (File run : runs) {
+			Files.deleteIfExists(run.toPath());
+		}
+		Files.deleteIfExists(workDir);
+		runs.clear();
+		buffer.clear();
+	}
+
+	private abstract static class RunCursor {
+		SortEntry current;
+
+		abstract boolean next() throws IOException;
+	}
+
+	private static class MemoryRunCursor extends RunCursor {
+		private final Iterator<SortEntry> it;
+
+		MemoryRunCursor(List<SortEntry> entries) {
+			this.it = entries.iterator();
+		}
+
+		@Override
+		boolean next() {
+			current = it.hasNext() ? it.next() : null;
+			return null != current;
+		}
+	}
+
+	private static class FileRunCursor extends RunCursor {
+		private final DataInputStream in;
+		private int remaining;
+
+		FileRunCursor(File run) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 1 << 16));
+			this.remaining = in.readInt();
+		}
+
+		@Override
+		boolean next() throws IOException {
+			if (0 == remaining) {
+				current = null;
+				in.close();
+				return false;
+			}
+			remaining--;
+			long time = in.readLong();
+			long seq = in.readLong();
+			current = new SortEntry(time, seq, EventLogData.read(in));
+			return true;
+		}
+	}
+}
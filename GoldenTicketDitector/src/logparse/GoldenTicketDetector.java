@@ -1,13 +1,16 @@
 package logparse;
 
 import java.io.*;
+import java.nio.charset.Charset;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import logparse.AuthLogUtil.Alert;
+import logparse.AuthLogUtil.Field;
 
 /**
  * Golden Ticket detection using Windows Event log.
@@ -18,8 +21,8 @@ import logparse.AuthLogUtil.Alert;
 public class GoldenTicketDetector {
 
 	// キーはアカウント名、値はEventLogDataオブジェクトのリスト。アカウント毎に分類するため
-	private static Map<String, LinkedHashSet<EventLogData>> log;
-	private static String outputDirName = null;
+	private Map<String, LinkedHashSet<EventLogData>> log = new LinkedHashMap<String, LinkedHashSet<EventLogData>>();
+	private String outputDirName = null;
 
 	// Initial value for timeCnt
 	private static short TIME_CNT = Short.MAX_VALUE;
@@ -30,6 +33,12 @@ public class GoldenTicketDetector {
 	private static int EVENT_ST = 4769;
 	private static int EVENT_SHARE = 5140;
 
+	// Fields used by the detection rules. Object names and privileges are
+	// not used, so their labels are not searched and their values are not
+	// extracted.
+	private static final Set<Field> FIELDS = EnumSet.of(Field.ACCOUNT, Field.SERVICE, Field.ADDRESS, Field.PORT,
+			Field.PROCESS, Field.SHARE);
+
 	// Alert type
 	protected enum AlertType {
 		NoTGT, MALCMD, ADMINSHARE, PSEXEC,NoADMIN, NoSystemCMD,NONE
@@ -39,10 +48,10 @@ public class GoldenTicketDetector {
 	private Map<AlertType, String> alert = null;
 	
 	// admin account white list
-	private List<String> adminWhiteList = null;
+	private ReloadableList adminWhiteList = null;
 
 	// Suspicious command list
-	private List<String> suspiciousCmd = null;
+	private ReloadableList suspiciousCmd = null;
 
 	// account name for detection
 	private Set<String> accounts = new LinkedHashSet<String>();
@@ -50,165 +59,775 @@ public class GoldenTicketDetector {
 	// account name for detection(Domain Admin Privilege accounts)
 	private Set<String> adminAccounts = new LinkedHashSet<String>();
 
-	private int detecctTargetcmdCnt = 0;
-
 	private FileWriter filewriter = null;
 	private BufferedWriter bw = null;
 	private PrintWriter pw = null;
 
+	// Write output partitioned by account on separate threads(1: single file)
+	private int outputPartitions = 1;
+	private boolean concatOutput = false;
+	private PartitionedWriter<AccountLogs> partitionWriter = null;
+
 	// Data format
-	private static SimpleDateFormat sdf = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
+	private SimpleDateFormat sdf = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
 
 	private int logCnt = 0;
+
+	// Fingerprints of events read so far, null if not deduplicated
+	private EventFingerprintSet seenEvents = null;
+
+	// Activity summary updated while reading, null if not summarized
+	private ActivitySummary summary = null;
 	private int detectedEventNum = 0;
 	private int dataNum=0;
 	private int infectedNum=0;
 
+	// Sort events on disk and evaluate one account at a time (null: keep all events in memory)
+	private ExternalEventSorter sorter = null;
+
+	// Read all input files as one stream ordered by time stamp
+	private boolean mergeFiles = false;
+
+	// Drop records of non-target events before decoding CSV files
+	private boolean prefilter = false;
+
+	// Drop noisy events while parsing (null: not filtered)
+	private NoiseFilter noiseFilter = null;
+
+	// Attributes of process paths used by the detection rules
+	private ProcessInfoCache processInfo = new ProcessInfoCache(ProcessInfoCache.DEFAULT_MAX_SIZE);
+
+	// State carried over from the previous run (null: not used)
+	private DetectionState state = null;
+	private File stateFile = null;
+
+	// Checkpoint of a batch run (null: no checkpoint)
+	private Checkpoint checkpoint = null;
+	private File checkpointFile = null;
+	private long checkpointInterval = Checkpoint.DEFAULT_INTERVAL * 1000L;
+	private long lastCheckpoint = 0;
+	// Events and accounts of the checkpoint to resume from (null: not resumed)
+	private Checkpoint resumeFrom = null;
+
+	// Number of lines or records passed from reading stage to parsing stage at once
+	private static final int BATCH_SIZE = 1000;
+
+	// Accounts waiting to be output
+	private static final int DEFAULT_OUTPUT_QUEUE = 256;
+
+	// Emit JFR events per file and per account
+	private boolean profiling = false;
+
+	// JFR event of the file being parsed (null: not profiled)
+	private Object fileEvent = null;
+	private String filePath = null;
+	private long fileBytes = 0;
+	private long fileRecords = 0;
+	private long fileTargetRecords = 0;
+
+	// File being read by reading stage
+	private String readingPath = null;
+	private long readingBytes = 0;
+
+	// Queue from reading stage to parsing stage (null: read and parse on one thread)
+	private StageQueue<RawBatch> rawQueue = null;
+
+	// Queue from detection stage to output stage (null: output on one thread)
+	private StageQueue<AccountLogs> outputQueue = null;
+
+	// Alerts kept for queries (null: not indexed)
+	private AlertIndex alertIndex = null;
+
+	// Receiver of alerts of the embedded detector (null: not notified)
+	private DetectorEngine.AlertListener alertListener = null;
+
+	// Parser state of events accepted one at a time by the embedded detector
+	private ParseState streamState = null;
+
+	// Collapse repeated alerts before output (null: output all rows)
+	private AlertSuppressor suppressor = null;
+
+	// Number of threads which tokenize one CSV file (1: serial)
+	private int parseThreads = 1;
+
+	// Size of a range of a CSV file tokenized by one thread(byte)
+	private long parseRangeSize = ParallelCSVReader.DEFAULT_RANGE_KB * 1024L;
+
+	// Line of CSV tokenized without parser state
+	private static class LineTokens {
+		// Continuation line of an event which is not a target
+		static final LineTokens SKIP = new LineTokens();
+
+		// Header line
+		boolean isHeader = false;
+		String date;
+		int eventID;
+		boolean isTarget;
+
+		// Continuation line
+		List<Field> fields = new ArrayList<Field>(2);
+		List<String> values = new ArrayList<String>(2);
+	}
+
+	// Lines or records of one input file read by reading stage
+	private static class RawBatch {
+		// Parser state is reset before this batch
+		final boolean newFile;
+		final List<String> lines = new ArrayList<String>(BATCH_SIZE);
+		final List<EventRecord> records = new ArrayList<EventRecord>(BATCH_SIZE);
+		// Lines tokenized by ParallelCSVReader
+		final List<LineTokens> tokens = new ArrayList<LineTokens>();
+		// Input file of the first batch of a file, for profiling
+		String path = null;
+		long bytes = 0;
+		// Input file fully read, checkpointed after this batch is parsed
+		File parsedFile = null;
+
+		RawBatch(boolean newFile) {
+			this.newFile = newFile;
+		}
+
+		int size() {
+			return lines.size() + records.size() + tokens.size();
+		}
+	}
+
+	// Detection result of one account passed to output stage
+	private static class AccountLogs {
+		final String accountName;
+		final Map<Long, LinkedHashSet<EventLogData>> timeBasedlog;
+		// Row already formatted(collapsed alert), or null
+		final String row;
+
+		AccountLogs(String accountName, Map<Long, LinkedHashSet<EventLogData>> timeBasedlog) {
+			this.accountName = accountName;
+			this.timeBasedlog = timeBasedlog;
+			this.row = null;
+		}
+
+		AccountLogs(String accountName, String row) {
+			this.accountName = accountName;
+			this.timeBasedlog = null;
+			this.row = row;
+		}
+	}
+
+	// Parser state which is carried over lines of an event log
+	private static class ParseState {
+		int eventID = -1;
+		String date = "";
+		String accountName = "";
+		String clientAddress = "";
+		String serviceName = "";
+		String processName = "";
+		String shredName = "";
+		int clientPort = 0;
+		boolean isTargetEvent = false;
+
+		// categorize same operations based on time stamp
+		short timeCnt = TIME_CNT;
+		Date baseDate = null;
+	}
+
 	private void readCSV(String filename) {
+		File file = new File(filename);
+		if (parseThreads > 1 && file.length() > parseRangeSize
+				&& ParallelCSVReader.canSplit(Charset.defaultCharset())) {
+			readCSVParallel(file);
+			return;
+		}
+		try {
+			readCSV(openCSV(new File(filename)));
+		} catch (IOException e) {
+			System.out.println(e);
+		}
+	}
+
+	/**
+	 * Open a CSV file. With prefilter, records of non-target events are
+	 * dropped before decoding.
+	 */
+	private Reader openCSV(File file) throws IOException {
+		if (!prefilter) {
+			return new FileReader(file);
+		}
+		return new InputStreamReader(new RecordPrefilter(new FileInputStream(file), EVENT_TGT, EVENT_ST,
+				EVENT_PRIV, EVENT_PROCESS, EVENT_SHARE), Charset.defaultCharset());
+	}
+
+	private void readCSV(Reader reader) {
 
 		try {
-			File f = new File(filename);
-			BufferedReader br = new BufferedReader(new FileReader(f));
+			BufferedReader br = new BufferedReader(reader);
 			String line;
-			int eventID = -1;
-			String date = "";
-			LinkedHashSet<EventLogData> evSet = null;
-			String accountName = "";
-			String clientAddress = "";
-			String serviceName = "";
-			String processName = "";
-			String shredName = "";
-			String objectName = "";
-			boolean isTargetEvent = false;
-
-			// splitする際の上限回数
-			int limit = 0;
-
-			// categorize same operations based on time stamp
-			short timeCnt = TIME_CNT;
-			Date baseDate = null;
-			Date logDate = null;
-
+			if (null != rawQueue) {
+				// 解析は別スレッドで行う
+				RawBatch batch = newBatch(true);
+				while ((line = br.readLine()) != null) {
+					batch.lines.add(line);
+					if (batch.size() >= BATCH_SIZE) {
+						rawQueue.put(batch);
+						batch = new RawBatch(false);
+					}
+				}
+				rawQueue.put(batch);
+				br.close();
+				return;
+			}
+			ParseState st = new ParseState();
 			while ((line = br.readLine()) != null) {
-				int clientPort = 0;
-				// Remove tab
-				line = line.replaceAll("\\t", "");
-				String[] data = line.split(",", 0);
-				for (String elem : data) {
-					if (line.contains("Microsoft-Windows-Security-Auditing,")) {
-						date = data[1];
-						eventID = Integer.parseInt(data[3]);
-						if (line.contains(String.valueOf(EVENT_TGT)) || line.contains(String.valueOf(EVENT_ST))
-								|| line.contains(String.valueOf(EVENT_PRIV))
-								|| line.contains(String.valueOf(EVENT_PROCESS))
-								|| line.contains(String.valueOf(EVENT_SHARE))) {
-							isTargetEvent = true;
-							
-							try {
-								// Get date
-								logDate = sdf.parse(date);
-								if (EVENT_ST == eventID && null == baseDate) {
-									// this.EVENT_ST を起点として同じ時間帯に出ているログを調べる
-									baseDate = sdf.parse(date);
-									timeCnt--;
-								} else if (null != baseDate) {
-									// ログのタイムスタンプ差を調べる
-									long logTime = logDate.getTime();
-									long baseTime = baseDate.getTime();
-									long timeDiff = (baseTime - logTime) / 1000;
-									if (timeDiff > 1) {
-										// 1秒以上離れているログには異なるtimeCntを割り当てる
-										timeCnt--;
-										baseDate = sdf.parse(date);
-									}
-								}
-
-							} catch (ParseException e) {
-								e.printStackTrace();
-							}
-						} else {
-							isTargetEvent = false;
-						}
-					} else if (isTargetEvent) {
-						if (elem.contains("アカウント名:") || elem.contains("Account Name:")) {
-							accountName = parseElement(elem, ":", limit);
-							if (accountName.isEmpty()) {
-								continue;
-							} else {
-								// ドメイン名は取り除き、全て小文字にする
-								accountName = accountName.split("@")[0].toLowerCase();
-								if (null == log.get(accountName)) {
-									evSet = new LinkedHashSet<EventLogData>();
-								} else {
-									evSet = log.get(accountName);
-								}
-									if (EVENT_PRIV == eventID) {
-										// 4672はこれ以上情報がないので、アカウント名だけ取得し、管理者アカウントリストに入れる
-										accounts.add(accountName);
-										adminAccounts.add(accountName);
-										evSet.add(new EventLogData(date, "", accountName, eventID, 0,
-												"", "", timeCnt));
-										log.put(accountName, evSet);
-										continue;
-									}else {
-									// extract all users
-									accounts.add(accountName);
-								}
-							}
+				parseLine(st, line);
+			}
+			br.close();
+		} catch (IOException e) {
+			System.out.println(e);
+		}
 
-						} else if (elem.contains("サービス名:") || elem.contains("Service Name:")) {
-							serviceName = parseElement(elem, ":", limit);
-						} else if (elem.contains("クライアント アドレス:") || elem.contains("Client Address:")
-								|| elem.contains("ソース ネットワーク アドレス:") || elem.contains("Source Network Address:")
-								|| elem.contains("送信元アドレス:")|| elem.contains("Source Address:")) {
-							elem = elem.replaceAll("::ffff:", "");
-							clientAddress = parseElement(elem, ":", limit);
-
-						} else if ((elem.contains("クライアント ポート:") || elem.contains("Client Port:")
-								|| elem.contains("ソース ポート:"))|| elem.contains("Source Port:")) {
-							try {
-								clientPort = Integer.parseInt(parseElement(elem, ":", limit));
-							} catch (NumberFormatException e) {
-								// nothing
-							}
-							evSet.add(new EventLogData(date, clientAddress, accountName, eventID, clientPort,
-									serviceName, processName, timeCnt));
-							if (EVENT_SHARE != eventID) {
-								// 5140は共有名の情報を取得してから格納する
-								log.put(accountName, evSet);
+	}
+
+	/**
+	 * Parse a line of CSV exported from event log
+	 */
+	private void parseLine(ParseState st, String line) {
+		applyTokens(st, tokenizeLine(line, st.isTargetEvent));
+	}
+
+	/**
+	 * Split a line of CSV into fields. Parser state is not used, so that lines
+	 * can be tokenized on several threads.
+	 * 
+	 * @param line
+	 * @param isTargetEvent
+	 *            whether the line belongs to a target event
+	 * @return tokens
+	 */
+	private LineTokens tokenizeLine(String line, boolean isTargetEvent) {
+		// splitする際の上限回数
+		int limit = 0;
+
+		// Remove tab
+		line = line.replaceAll("\\t", "");
+		if (line.contains("Microsoft-Windows-Security-Auditing,")) {
+			String[] data = line.split(",", 0);
+			LineTokens tokens = new LineTokens();
+			tokens.isHeader = true;
+			tokens.isTarget = line.contains(String.valueOf(EVENT_TGT))
+					|| line.contains(String.valueOf(EVENT_ST))
+					|| line.contains(String.valueOf(EVENT_PRIV))
+					|| line.contains(String.valueOf(EVENT_PROCESS))
+					|| line.contains(String.valueOf(EVENT_SHARE));
+			tokens.date = data[1];
+			tokens.eventID = Integer.parseInt(data[3]);
+			return tokens;
+		}
+		if (!isTargetEvent) {
+			return LineTokens.SKIP;
+		}
+		LineTokens tokens = new LineTokens();
+		for (String elem : line.split(",", 0)) {
+			Field field = AuthLogUtil.matchField(elem, FIELDS);
+			if (null == field) {
+				continue;
+			}
+			String value;
+			if (Field.ADDRESS == field) {
+				value = parseElement(elem.replaceAll("::ffff:", ""), ":", limit);
+			} else if (Field.PROCESS == field || Field.SHARE == field) {
+				// プロセス名は":"が含まれることがあることを考慮
+				value = parseElement(elem, ":", 2);
+			} else {
+				value = parseElement(elem, ":", limit);
+			}
+			tokens.fields.add(field);
+			tokens.values.add(value);
+		}
+		return tokens;
+	}
+
+	/**
+	 * Apply tokens of a line to parser state and store events
+	 */
+	private void applyTokens(ParseState st, LineTokens tokens) {
+		st.clientPort = 0;
+		if (tokens.isHeader) {
+			parseHeader(st, tokens.date, tokens.eventID, tokens.isTarget);
+			return;
+		}
+		if (!st.isTargetEvent) {
+			return;
+		}
+		for (int i = 0; i < tokens.fields.size() && st.isTargetEvent; i++) {
+			parseField(st, tokens.fields.get(i), tokens.values.get(i));
+		}
+	}
+
+	/**
+	 * Tokenize a large CSV file on several threads, and apply tokens in the
+	 * order of the file
+	 * 
+	 * @param file
+	 */
+	private void readCSVParallel(File file) {
+		ParallelCSVReader<LineTokens> reader = new ParallelCSVReader<LineTokens>(file, Charset.defaultCharset(),
+				parseThreads, parseRangeSize);
+		final ParseState st = new ParseState();
+		final boolean first[] = { true };
+		try {
+			reader.read(new ParallelCSVReader.TokenizerFactory<LineTokens>() {
+				@Override
+				public ParallelCSVReader.Tokenizer<LineTokens> newTokenizer() {
+					return new ParallelCSVReader.Tokenizer<LineTokens>() {
+						// レンジはレコードの先頭から始まる
+						private boolean isTargetEvent = false;
+
+						@Override
+						public LineTokens tokenize(String line) {
+							LineTokens tokens = tokenizeLine(line, isTargetEvent);
+							if (tokens.isHeader) {
+								isTargetEvent = tokens.isTarget;
 							}
-						} else if (elem.contains("オブジェクト名:")|| elem.contains("Object Name:")) {
-							objectName = parseElement(elem, ":", 2).toLowerCase();
-						} else if ((elem.contains("プロセス名:") || elem.contains("Process Name:"))) {
-							// プロセス名は":"が含まれることがあることを考慮
-							processName = parseElement(elem, ":", 2).toLowerCase();
-							
-							// 認証要求元は記録されない
-							clientAddress = "";
-							EventLogData ev = new EventLogData(date, clientAddress, accountName, eventID, clientPort,
-									serviceName, processName, timeCnt);
-							ev.setObjectName(objectName);
-							evSet.add(ev);
-							log.put(accountName, evSet);
-							processName = "";
-							objectName = "";
-						} else if (elem.contains("共有名:")||elem.contains("Share Name:")) {
-							EventLogData ev = new EventLogData(date, clientAddress, accountName, eventID, clientPort,
-									serviceName, processName, timeCnt);
-							shredName = parseElement(elem, ":", 2).toLowerCase();
-							ev.setSharedName(shredName);
-							evSet.add(ev);
-							log.put(accountName, evSet);
-							shredName = "";
+							return tokens;
+						}
+					};
+				}
+			}, new ParallelCSVReader.RangeConsumer<LineTokens>() {
+				@Override
+				public void accept(List<LineTokens> tokens) {
+					if (null != rawQueue) {
+						// 解析は別スレッドで行う
+						RawBatch batch = newBatch(first[0]);
+						batch.tokens.addAll(tokens);
+						rawQueue.put(batch);
+					} else {
+						// レンジをまたがる状態はファイルの順に引き継ぐ
+						for (LineTokens line : tokens) {
+							applyTokens(st, line);
 						}
 					}
+					first[0] = false;
 				}
-			}
-			br.close();
+			});
 		} catch (IOException e) {
 			System.out.println(e);
 		}
+	}
+
+	/**
+	 * Parsing stage: parse lines and records read by reading stage
+	 */
+	private void parseBatches() {
+		ParseState st = new ParseState();
+		RawBatch batch;
+		while ((batch = rawQueue.take()) != null) {
+			if (batch.newFile) {
+				st = new ParseState();
+				beginFile(batch.path, batch.bytes);
+			}
+			for (String line : batch.lines) {
+				parseLine(st, line);
+			}
+			for (EventRecord record : batch.records) {
+				readRecord(st, record);
+			}
+			for (LineTokens tokens : batch.tokens) {
+				applyTokens(st, tokens);
+			}
+			if (null != batch.parsedFile) {
+				fileParsed(batch.parsedFile);
+			}
+		}
+		endFile();
+	}
+
+	/**
+	 * Create a batch for parsing stage. The first batch of a file carries the
+	 * file being read.
+	 */
+	private RawBatch newBatch(boolean newFile) {
+		RawBatch batch = new RawBatch(newFile);
+		if (newFile) {
+			batch.path = readingPath;
+			batch.bytes = readingBytes;
+		}
+		return batch;
+	}
+
+	/**
+	 * Start profiling an input file. Called by the thread which parses the
+	 * file.
+	 * 
+	 * @param path
+	 * @param bytes
+	 */
+	private void beginFile(String path, long bytes) {
+		if (!profiling) {
+			return;
+		}
+		endFile();
+		fileEvent = ProfilingEvents.beginFile();
+		filePath = path;
+		fileBytes = bytes;
+		fileRecords = 0;
+		fileTargetRecords = 0;
+	}
+
+	private void endFile() {
+		if (null == fileEvent) {
+			return;
+		}
+		ProfilingEvents.endFile(fileEvent, filePath, fileBytes, fileRecords, fileTargetRecords);
+		fileEvent = null;
+	}
+
+	/**
+	 * Input file being read. With pipeline, it is passed to parsing stage with
+	 * the first batch of the file.
+	 */
+	private void readingFile(String path, long bytes) {
+		if (null == rawQueue) {
+			beginFile(path, bytes);
+		} else {
+			readingPath = path;
+			readingBytes = bytes;
+		}
+	}
+
+	/**
+	 * Read event log file which is not CSV(.evtx, XML)
+	 * 
+	 * @param file
+	 */
+	private void readRecords(File file) {
+		EventRecordReader reader = null;
+		try {
+			reader = EventRecordReader.open(file);
+			ParseState st = new ParseState();
+			RawBatch batch = newBatch(true);
+			EventRecord record;
+			while ((record = reader.next()) != null) {
+				if (null == rawQueue) {
+					readRecord(st, record);
+					continue;
+				}
+				// 解析は別スレッドで行う
+				batch.records.add(record);
+				if (batch.size() >= BATCH_SIZE) {
+					rawQueue.put(batch);
+					batch = new RawBatch(false);
+				}
+			}
+			if (null != rawQueue) {
+				rawQueue.put(batch);
+			}
+		} catch (IOException e) {
+			System.out.println(file + ": " + e);
+		} finally {
+			if (null != reader) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Parse an event record whose fields are keyed by EventData names
+	 */
+	private void readRecord(ParseState st, EventRecord record) {
+		int eventID = record.getEventID();
+		boolean isTarget = EVENT_TGT == eventID || EVENT_ST == eventID || EVENT_PRIV == eventID
+				|| EVENT_PROCESS == eventID || EVENT_SHARE == eventID;
+		parseHeader(st, sdf.format(new Date(record.getTime())), eventID, isTarget);
+		if (!st.isTargetEvent) {
+			return;
+		}
+		for (Map.Entry<Field, String> entry : record.getFields(FIELDS).entrySet()) {
+			if (!st.isTargetEvent) {
+				break;
+			}
+			st.clientPort = 0;
+			parseField(st, entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Fields of the target events of a file, as readCSV or readRecords passes
+	 * them to parseField. Used by EvtxCheck to compare the two readers.
+	 *
+	 * @param file
+	 *            .csv, .evtx or XML file
+	 * @return "date,eventID" followed by ",FIELD=value" of each field, per
+	 *         event
+	 * @throws IOException
+	 */
+	List<String> readFields(File file) throws IOException {
+		List<String> events = new ArrayList<String>();
+		if (EventRecordReader.isSupported(file.getName())) {
+			EventRecordReader reader = EventRecordReader.open(file);
+			try {
+				EventRecord record;
+				while ((record = reader.next()) != null) {
+					int eventID = record.getEventID();
+					if (EVENT_TGT != eventID && EVENT_ST != eventID && EVENT_PRIV != eventID
+							&& EVENT_PROCESS != eventID && EVENT_SHARE != eventID) {
+						continue;
+					}
+					StringBuilder ev = new StringBuilder(sdf.format(new Date(record.getTime())));
+					ev.append(',').append(eventID);
+					for (Map.Entry<Field, String> entry : record.getFields(FIELDS).entrySet()) {
+						appendField(ev, entry.getKey(), entry.getValue());
+					}
+					events.add(ev.toString());
+				}
+			} finally {
+				reader.close();
+			}
+			return events;
+		}
+		BufferedReader br = new BufferedReader(new FileReader(file));
+		try {
+			StringBuilder ev = null;
+			String line;
+			while ((line = br.readLine()) != null) {
+				LineTokens tokens = tokenizeLine(line, null != ev);
+				if (tokens.isHeader) {
+					if (null != ev) {
+						events.add(ev.toString());
+					}
+					ev = tokens.isTarget ? new StringBuilder(tokens.date).append(',').append(tokens.eventID) : null;
+					continue;
+				}
+				for (int i = 0; i < tokens.fields.size(); i++) {
+					appendField(ev, tokens.fields.get(i), tokens.values.get(i));
+				}
+			}
+			if (null != ev) {
+				events.add(ev.toString());
+			}
+		} finally {
+			br.close();
+		}
+		return events;
+	}
+
+	private static void appendField(StringBuilder ev, Field field, String value) {
+		// CSVは分割時、EventRecordはparseFieldで取り除く
+		if (Field.ADDRESS == field && value.startsWith("::ffff:")) {
+			value = value.substring("::ffff:".length());
+		}
+		ev.append(',').append(field).append('=').append(value);
+	}
+
+	/**
+	 * Parse header of an event and assign timeCnt
+	 */
+	private void parseHeader(ParseState st, String date, int eventID, boolean isTarget) {
+		if (null != fileEvent) {
+			fileRecords++;
+			if (isTarget) {
+				fileTargetRecords++;
+			}
+		}
+		st.date = date;
+		st.eventID = eventID;
+		st.isTargetEvent = isTarget;
+		if (!isTarget) {
+			return;
+		}
+		try {
+			// Get date
+			Date logDate = sdf.parse(date);
+			if (EVENT_ST == eventID && null == st.baseDate) {
+				// this.EVENT_ST を起点として同じ時間帯に出ているログを調べる
+				st.baseDate = logDate;
+				st.timeCnt--;
+			} else if (null != st.baseDate) {
+				// ログのタイムスタンプ差を調べる
+				long logTime = logDate.getTime();
+				long baseTime = st.baseDate.getTime();
+				long timeDiff = (baseTime - logTime) / 1000;
+				if (timeDiff > 1) {
+					// 1秒以上離れているログには異なるtimeCntを割り当てる
+					st.timeCnt--;
+					st.baseDate = logDate;
+				}
+			}
+		} catch (ParseException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Parse a field of a target event and store events
+	 */
+	private void parseField(ParseState st, Field field, String value) {
+		switch (field) {
+		case ACCOUNT:
+			st.accountName = value;
+			if (st.accountName.isEmpty()) {
+				return;
+			}
+			// ドメイン名は取り除き、全て小文字にする
+			st.accountName = st.accountName.split("@")[0].toLowerCase();
+			if (isNoise(st, Field.ACCOUNT, st.accountName)) {
+				return;
+			}
+			if (EVENT_PRIV == st.eventID) {
+				// 4672はこれ以上情報がないので、アカウント名だけ取得し、管理者アカウントリストに入れる
+				accounts.add(st.accountName);
+				adminAccounts.add(st.accountName);
+				storeEvent(st.accountName,
+						new EventLogData(st.date, "", st.accountName, st.eventID, 0, "", "", st.timeCnt));
+			} else {
+				// extract all users
+				accounts.add(st.accountName);
+			}
+			break;
+		case SERVICE:
+			if (isNoise(st, Field.SERVICE, value.toLowerCase())) {
+				// 捨てたイベントのサービス名は後のイベントに引き継がない
+				return;
+			}
+			st.serviceName = value;
+			break;
+		case ADDRESS:
+			if (value.startsWith("::ffff:")) {
+				value = value.substring("::ffff:".length());
+			}
+			st.clientAddress = value;
+			break;
+		case PORT:
+			try {
+				st.clientPort = Integer.parseInt(value);
+			} catch (NumberFormatException e) {
+				// nothing
+			}
+			EventLogData portEv = new EventLogData(st.date, st.clientAddress, st.accountName, st.eventID,
+					st.clientPort, st.serviceName, st.processName, st.timeCnt);
+			if (EVENT_SHARE != st.eventID) {
+				storeEvent(st.accountName, portEv);
+			} else if (accept(portEv)) {
+				if (null != sorter) {
+					sorter.add(portEv);
+				} else {
+					// 5140は共有名の情報を取得してから格納する
+					eventSet(st.accountName).add(portEv);
+				}
+			}
+			break;
+		case PROCESS:
+			st.processName = value.toLowerCase();
+			if (isNoise(st, Field.PROCESS, st.processName)) {
+				st.processName = "";
+				return;
+			}
+
+			// 認証要求元は記録されない
+			st.clientAddress = "";
+			EventLogData processEv = new EventLogData(st.date, st.clientAddress, st.accountName, st.eventID,
+					st.clientPort, st.serviceName, st.processName, st.timeCnt);
+			storeEvent(st.accountName, processEv);
+			st.processName = "";
+			break;
+		case SHARE:
+			EventLogData shareEv = new EventLogData(st.date, st.clientAddress, st.accountName, st.eventID,
+					st.clientPort, st.serviceName, st.processName, st.timeCnt);
+			st.shredName = value.toLowerCase();
+			shareEv.setSharedName(st.shredName);
+			storeEvent(st.accountName, shareEv);
+			st.shredName = "";
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Check a field against the noise filter. If it matches, the rest of the
+	 * event is skipped and no event is created from it.
+	 * 
+	 * @return true if the event is dropped
+	 */
+	private boolean isNoise(ParseState st, Field field, String value) {
+		if (null == noiseFilter || !noiseFilter.isNoise(field, value)) {
+			return false;
+		}
+		st.isTargetEvent = false;
+		return true;
+	}
+
+	/**
+	 * Store event to the account's event set, or to the sort runs
+	 */
+	private void storeEvent(String accountName, EventLogData ev) {
+		if (!accept(ev)) {
+			return;
+		}
+		if (null != sorter) {
+			sorter.add(ev);
+			return;
+		}
+		eventSet(accountName).add(ev);
+	}
+
+	/**
+	 * Event set of an account. It is looked up on every store, because the
+	 * sets and accounts are cleared by detectReceived() while a record of a
+	 * source may be split between detections.
+	 */
+	private LinkedHashSet<EventLogData> eventSet(String accountName) {
+		LinkedHashSet<EventLogData> evSet = log.get(accountName);
+		if (null == evSet) {
+			evSet = new LinkedHashSet<EventLogData>();
+			log.put(accountName, evSet);
+			// アカウント名の行より後に検知した場合も、次の検知の対象にする
+			accounts.add(accountName);
+		}
+		return evSet;
+	}
+
+	/**
+	 * Drop the event if it was already read from an overlapping export, and
+	 * update the summary with the event
+	 * 
+	 * @return false if the event is dropped
+	 */
+	private boolean accept(EventLogData ev) {
+		if (null != seenEvents && !seenEvents.add(ev)) {
+			return false;
+		}
+		if (null != summary) {
+			summary.add(ev);
+		}
+		return true;
+	}
 
+	/**
+	 * Summarize activity of accounts to summary.csv
+	 * 
+	 * @param topSize
+	 *            number of accounts and processes per account in the summary
+	 */
+	private void enableSummary(int topSize) {
+		summary = new ActivitySummary(topSize);
+	}
+
+	private void outputSummary() {
+		if (null != summary) {
+			summary.write(this.outputDirName + "/" + "summary.csv", adminAccounts);
+		}
+	}
+
+	/**
+	 * Drop events which are read twice from overlapping exports
+	 * 
+	 * @param maxSize
+	 *            number of fingerprints kept per generation
+	 */
+	public void enableDedup(int maxSize) {
+		seenEvents = new EventFingerprintSet(maxSize);
 	}
 
 	private String parseElement(String elem, String delimiter, int limit) {
@@ -231,270 +850,1142 @@ public class GoldenTicketDetector {
 
 	private void outputResults(Map map, String outputFileName) {
 		try {
-			// normal result
-			filewriter = new FileWriter(outputFileName, true);
-			bw = new BufferedWriter(filewriter);
-			pw = new PrintWriter(bw);
-			pw.println("date,eventID,account,ip,service,process,sharedname,target,alerttype,alertlevel");
-			
-			System.out.println("Infected accounts and computers:");
-
-			ArrayList<EventLogData> list = null;
+			Thread writer = null;
+			if (outputPartitions > 1) {
+				// アカウントごとに分割したファイルへ並行して出力する
+				partitionWriter = new PartitionedWriter<AccountLogs>(new File(outputFileName), headerLine(),
+						outputPartitions, DEFAULT_OUTPUT_QUEUE, new PartitionedWriter.Formatter<AccountLogs>() {
+							@Override
+							public void write(AccountLogs logs, PrintWriter out) {
+								writeLogs(logs, out);
+							}
+						});
+			} else {
+				// normal result
+				filewriter = new FileWriter(outputFileName, true);
+				bw = new BufferedWriter(filewriter);
+				pw = new PrintWriter(bw);
+				outputHeader();
+			}
+
+			System.out.println("Infected accounts and computers:");
+
+			if (null != outputQueue && null == partitionWriter) {
+				// 出力は別スレッドで行う
+				writer = StageQueue.start("output", new Runnable() {
+					@Override
+					public void run() {
+						AccountLogs logs;
+						while ((logs = outputQueue.take()) != null) {
+							outputLogs(logs.timeBasedlog, logs.accountName);
+						}
+					}
+				}, outputQueue);
+			}
+			if (null != sorter) {
+				// ソート済みのランをマージし、アカウントごとに処理する
+				for (List<EventLogData> events : sorter) {
+					String accountName = events.get(0).getAccountName();
+					if (accounts.contains(accountName)) {
+						detectAccount(accountName, new LinkedHashSet<EventLogData>(events));
+					}
+				}
+			} else {
+				// アカウントごとに処理する
+				for (String accountName : accounts) {
+					LinkedHashSet<EventLogData> evS = log.get(accountName);
+					if (null == evS) {
+						continue;
+					}
+					detectAccount(accountName, evS);
+				}
+			}
+			if (null != writer) {
+				outputQueue.close();
+				StageQueue.join(writer);
+			}
+			if (null != suppressor) {
+				suppressor.flush();
+			}
+			if (null != partitionWriter) {
+				partitionWriter.close();
+				if (concatOutput) {
+					partitionWriter.concat(new File(outputFileName));
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (RuntimeException e) {
+			abortOutput(e);
+			throw e;
+		} catch (Error e) {
+			abortOutput(e);
+			throw e;
+		} finally {
+			if (null != pw) {
+				pw.close();
+				try {
+					bw.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stop the output threads, which would otherwise wait for accounts
+	 * forever, because detection failed
+	 */
+	private void abortOutput(Throwable cause) {
+		if (null != outputQueue) {
+			outputQueue.abort(cause);
+		}
+		if (null != partitionWriter) {
+			partitionWriter.abort(cause);
+		}
+	}
+
+	/**
+	 * Detect Golden Ticket usage for one account and output the result
+	 * 
+	 * @param accountName
+	 * @param evS
+	 *            events of the account in the order of the event log
+	 */
+	private void detectAccount(String accountName, LinkedHashSet<EventLogData> evS) {
+		Object accountEvent = profiling ? ProfilingEvents.beginAccount() : null;
+		// ソース IPが出ないイベントに、ソースIPをセットする
+		setClientAddress(accountName, evS);
+
+		// クライアントアドレス毎にログを保持するためのリスト(キー：クライアントアドレス)
+		Map<String, LinkedHashSet> kerlog = new LinkedHashMap<String, LinkedHashSet>();
+
+		// 同じ時間帯毎にログを保持するためのリスト(キー：クライアントアドレス)
+		Map<Long, LinkedHashSet<EventLogData>> timeBasedlog = new LinkedHashMap<Long, LinkedHashSet<EventLogData>>();
+
+		// さらにクライアントアドレスごとに分類し、GTが使われている可能性があるかを判定する
+		for (EventLogData ev : evS) {
+			LinkedHashSet<EventLogData> evSet;
+			String clientAddress=ev.getClientAddress();
+			if (null != kerlog.get(clientAddress)) {
+				evSet = kerlog.get(clientAddress);
+			} else {
+				evSet = new LinkedHashSet<EventLogData>();
+			}
+			evSet.add(ev);
+			kerlog.put(ev.getClientAddress(), evSet);
+			this.logCnt++;
+		}
+		
+		for (Iterator it = kerlog.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<String, LinkedHashSet> entry = (Map.Entry<String, LinkedHashSet>) it.next();
+				String computer=entry.getKey();
+				if(!accountName.isEmpty() && !computer.isEmpty()) {
+					this.dataNum++;
+					//System.out.println("Account: "+accountName+", Computer: "+computer);
+				}
+		}
+		if (null != state) {
+			// 次回の実行のために4768の時刻を記録する
+			for (EventLogData ev : evS) {
+				if (EVENT_TGT == ev.getEventID()) {
+					state.addTGT(accountName, ev.getClientAddress(), getTime(ev));
+				}
+			}
+		}
+		// GTが使われているか判定
+		if(adminAccounts.contains(accountName)){
+			isGoldenUsed(kerlog,accountName);
+		}
+		if (null != alertIndex) {
+			// 検索用にアラートを登録する
+			for (EventLogData ev : evS) {
+				if (1 == ev.isGolden()) {
+					alertIndex.add(accountName, ev, getTime(ev));
+				}
+			}
+		}
+		if (null != alertListener) {
+			// 呼び出し元にアラートを通知する
+			for (EventLogData ev : evS) {
+				if (1 == ev.isGolden()) {
+					alertListener.onAlert(accountName, ev);
+				}
+			}
+		}
+		// 同じ時間帯のログごとに処理
+		List<EventLogData> list = new ArrayList<EventLogData>(evS);
+		Collections.reverse(list);
+		for (EventLogData ev : list) {
+			LinkedHashSet<EventLogData> evSet;
+			if (null != timeBasedlog.get(ev.getTimeCnt())) {
+				evSet = timeBasedlog.get(ev.getTimeCnt());
+			} else {
+				evSet = new LinkedHashSet<EventLogData>();
+			}
+			evSet.add(ev);
+			timeBasedlog.put(ev.getTimeCnt(), evSet);
+		}
+		if (null != accountEvent) {
+			ProfilingEvents.endAccount(accountEvent, accountName, evS.size(), kerlog.size());
+		}
+		// 結果をファイルに出力する
+		if (null != partitionWriter) {
+			if (null != suppressor) {
+				// まとめる処理は順序が結果に影響するので、このスレッドで行う
+				suppressAlerts(timeBasedlog, accountName);
+			}
+			partitionWriter.write(accountName, new AccountLogs(accountName, timeBasedlog));
+		} else if (null != outputQueue) {
+			outputQueue.put(new AccountLogs(accountName, timeBasedlog));
+		} else {
+			outputLogs(timeBasedlog, accountName);
+		}
+	}
+
+	private void isGoldenUsed(Map<String, LinkedHashSet> kerlog, String accountName) {
+		// 評価中にリストが再読み込みされても、同じ内容で判定する
+		ReloadableList.Snapshot admins = adminWhiteList.get();
+		ReloadableList.Snapshot cmds = suspiciousCmd.get();
+		// kerlogは端末毎に分類されたログ
+		for (Iterator it = kerlog.entrySet().iterator(); it.hasNext();) {
+			boolean isTGTEvent = false;
+			boolean isSTEvent = false;
+			short isGolden = 0;
+			Map.Entry<String, LinkedHashSet> entry = (Map.Entry<String, LinkedHashSet>) it.next();
+			String computer=entry.getKey();
+			LinkedHashSet<EventLogData> evS = (LinkedHashSet<EventLogData>) entry.getValue();
+			LinkedHashMap<Long,Alert> attackTimeCnt = new LinkedHashMap<Long,Alert>();
+			for (EventLogData ev : evS) {
+				// 同じアカウント・端末・時間帯のログに同じtimeCntを割り当てる
+				// アカウント・端末を連結させた文字列のハッシュコードとタイムカウントを加算する
+				long timeCnt = (ev.getAccountName() + ev.getClientAddress()).hashCode() + ev.getTimeCnt();
+				ev.settimeCnt(timeCnt);
+				int eventID = ev.getEventID();
+				// 4768/4769が記録されているかを調べる
+				if (eventID == 4768) {
+					isTGTEvent = true;
+				} else if (eventID == EVENT_ST) {
+					isSTEvent = true;
+				}
+			}
+			for (EventLogData ev : evS) {
+				int eventID = ev.getEventID();
+				// 4768/479が記録されているかを調べる
+				if (eventID == 4768) {
+					isTGTEvent = true;
+				} else if (eventID == EVENT_ST) {
+					isSTEvent = true;
+				}
+			}
+			if (!isTGTEvent && isSTEvent && null != state) {
+				// 前回までの実行で記録された4768が有効期限内か調べる
+				long firstSTTime = Long.MAX_VALUE;
+				for (EventLogData ev : evS) {
+					if (EVENT_ST == ev.getEventID()) {
+						firstSTTime = Math.min(firstSTTime, getTime(ev));
+					}
+				}
+				isTGTEvent = state.hasValidTGT(accountName, computer, firstSTTime);
+			}
+			if (!isTGTEvent && isSTEvent) {
+				// 4768が記録されていないのに、4769が記録されている
+				isGolden = 1;
+				System.out.println("Account: "+accountName+", Computer: "+computer);
+				for (EventLogData ev : evS) {
+					if (EVENT_ST == ev.getEventID()) {
+						ev.setIsGolden(isGolden);
+						ev.setAlertType(AlertType.NoTGT);
+						ev.setAlertLevel(Alert.SEVERE);
+					}
+				}
+			}
+			
+			Set<String> commands = new LinkedHashSet<String>();
+			for (EventLogData ev : evS) {
+				
+				if(ev.getEventID()==EVENT_PRIV &&!admins.contains(accountName) 
+						&& this.adminAccounts.contains(accountName)){
+					// 管理者リストに含まれていないのに、特権を使っている
+					isGolden = 1;
+					ev.setIsGolden(isGolden);
+					ev.setAlertType(AlertType.NoADMIN);
+					ev.setAlertLevel(Alert.SEVERE);
+				}
+				
+				if (5140 == ev.getEventID()) {
+					// 管理共有が使用されている
+					if (ev.getSharedName().contains("\\c$")) {
+						isGolden = 1;
+						ev.setIsGolden(isGolden);
+						ev.setAlertType(AlertType.ADMINSHARE);
+						ev.setAlertLevel(Alert.SEVERE);
+					}
+				}
+				if (EVENT_PROCESS == ev.getEventID()) {
+					// 攻撃者がよく実行するコマンドを実行している
+					if (processInfo.get(ev.getProcessName(), cmds).isSuspicious()) {
+						isGolden = 1;
+						ev.setIsGolden(isGolden);
+						ev.setAlertType(AlertType.MALCMD);
+						commands.add(ev.getProcessName());
+					}
+				}
+				
+			}
+			if (null != state) {
+				// 前回までの実行で記録された不審なコマンドを含める
+				for (EventLogData ev : evS) {
+					if (AlertType.MALCMD == ev.getAlertType()) {
+						state.addCommand(accountName, computer, ev.getProcessName(), getTime(ev));
+					}
+				}
+				commands.addAll(state.getCommands(accountName, computer));
+			}
+			// 実行された不審なコマンドの種類数
+			int detecctcmdCnt = commands.size();
+			double commandExecuterate = (double) detecctcmdCnt / cmds.size();
+			Alert alertLevel = Alert.NONE;
+			if (commandExecuterate >= AuthLogUtil.ALERT_SEVIRE) {
+				alertLevel = Alert.SEVERE;
+			} else if (commandExecuterate >= AuthLogUtil.ALERT_WARNING) {
+				alertLevel = Alert.WARNING;
+			} else if (commandExecuterate > 0) {
+				alertLevel = Alert.NOTICE;
+			}
+			for (EventLogData ev : evS) {
+				if(ev.getAlertType()==AlertType.MALCMD){
+					ev.setAlertLevel(alertLevel);
+				}
+				if(1==ev.isGolden()){
+					if(ev.getClientAddress().isEmpty() && ev.getEventID()!=EVENT_PRIV) {
+						ev.setIsGolden((short)0);
+						ev.setAlertLevel(Alert.NONE);
+						ev.setAlertType(AlertType.NONE);
+					} else{
+						this.detectedEventNum++;
+					}
+				}
+			}
+			//outlierと判定したログと同時刻のログをマークし、同じアラートレベルを設定する
+			for (EventLogData ev : evS) {
+				if (1 == ev.isGolden()) {
+					attackTimeCnt.put(ev.getTimeCnt(),ev.getAlertLevel());
+					if(ev.getAlertLevel()==Alert.NONE){
+						ev.setAlertLevel(alertLevel);
+					}
+				}
+			}
+			for (EventLogData ev : evS) {
+				if (null!=attackTimeCnt.get(ev.getTimeCnt())) {
+					if(0==ev.isGolden()){
+						isGolden = 1;
+						ev.setIsGolden(isGolden);
+					}
+					if(ev.getAlertLevel()==Alert.NONE){
+						ev.setAlertLevel(attackTimeCnt.get(ev.getTimeCnt()));
+					}
+				}
+			}
+			if (null != state) {
+				// 前回の実行の最後の時間帯に続くログは、同じ時間帯のログとしてマークする
+				DetectionState.Window window = state.getWindow(accountName, computer);
+				EventLogData latest = null;
+				long latestTime = Long.MIN_VALUE;
+				for (EventLogData ev : evS) {
+					long time = getTime(ev);
+					if (null != window && window.isGolden && time >= window.time
+							&& time - window.time <= DetectionState.WINDOW_MSEC) {
+						isGolden = 1;
+						ev.setIsGolden(isGolden);
+						if (ev.getAlertLevel() == Alert.NONE) {
+							ev.setAlertLevel(window.alertLevel);
+						}
+					}
+					if (time > latestTime) {
+						latestTime = time;
+						latest = ev;
+					}
+				}
+				if (null != latest) {
+					state.setWindow(accountName, computer,
+							new DetectionState.Window(latestTime, 1 == latest.isGolden(), latest.getAlertLevel()));
+				}
+			}
+			if(1==isGolden && !accountName.isEmpty() && !computer.isEmpty()){
+				infectedNum++;
+				System.out.println("Account: "+accountName+", Computer: "+computer);
+			}
+		}
+	}
+	
+	private long getTime(EventLogData ev) {
+		try {
+			return sdf.parse(ev.getDate()).getTime();
+		} catch (ParseException e) {
+			e.printStackTrace();
+			return 0;
+		}
+	}
+
+	private void outputLogs(Map<Long, LinkedHashSet<EventLogData>> kerlog, String accountName) {
+		for (LinkedHashSet<EventLogData> evS : kerlog.values()) {
+			for (EventLogData ev : evS) {
+				if (null == suppressor) {
+					pw.println(formatLog(ev, accountName));
+				} else if (1 == ev.isGolden()) {
+					// 同じアカウント・端末・アラート種別の繰り返しは1行にまとめる
+					suppressor.add(accountName, ev);
+				} else {
+					pw.println(formatLog(ev, accountName) + "," + ev.getDate() + "," + ev.getDate() + ",1");
+				}
+			}
+			
+		}
+
+	}
+
+	/**
+	 * Pass alerted events of an account to the suppressor
+	 */
+	private void suppressAlerts(Map<Long, LinkedHashSet<EventLogData>> kerlog, String accountName) {
+		for (LinkedHashSet<EventLogData> evS : kerlog.values()) {
+			for (EventLogData ev : evS) {
+				if (1 == ev.isGolden()) {
+					suppressor.add(accountName, ev);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write logs of an account to a partition file. Alerted events have been
+	 * passed to the suppressor by suppressAlerts() if suppression is enabled.
+	 */
+	private void writeLogs(AccountLogs logs, PrintWriter out) {
+		if (null != logs.row) {
+			out.println(logs.row);
+			return;
+		}
+		for (LinkedHashSet<EventLogData> evS : logs.timeBasedlog.values()) {
+			for (EventLogData ev : evS) {
+				if (null == suppressor) {
+					out.println(formatLog(ev, logs.accountName));
+				} else if (1 != ev.isGolden()) {
+					out.println(formatLog(ev, logs.accountName) + "," + ev.getDate() + "," + ev.getDate() + ",1");
+				}
+			}
+		}
+	}
+
+	private String formatLog(EventLogData ev, String accountName) {
+		return ev.getDate() + "," + ev.getEventID() + "," + accountName + "," + ev.getClientAddress() + ","
+				+ ev.getServiceName() + "," + ev.getProcessName() + "," 
+				+ ev.getSharedName() + "," + ev.isGolden() + "," + this.alert.get(ev.getAlertType()) + ","
+				+ ev.getAlertLevel();
+	}
+
+	private void outputHeader() {
+		pw.println(headerLine());
+	}
+
+	private String headerLine() {
+		String header = "date,eventID,account,ip,service,process,sharedname,target,alerttype,alertlevel";
+		if (null != suppressor) {
+			header += ",firstseen,lastseen,count";
+		}
+		return header;
+	}
+
+	/**
+	 * Collapse alerts of the same account, computer and alert type within TTL
+	 * into one row with first seen, last seen and count
+	 * 
+	 * @param ttl
+	 *            alerts within this time from the first alert are collapsed(msec)
+	 * @param maxSize
+	 *            maximum number of keys kept
+	 */
+	public void enableSuppression(long ttl, int maxSize) {
+		this.suppressor = new AlertSuppressor(ttl, maxSize, new AlertSuppressor.Sink() {
+			@Override
+			public void emit(String accountName, EventLogData first, String lastDate, int count) {
+				String row = formatLog(first, accountName) + "," + first.getDate() + "," + lastDate + "," + count;
+				if (null != partitionWriter) {
+					partitionWriter.write(accountName, new AccountLogs(accountName, row));
+				} else {
+					pw.println(row);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Parse CSV files exported from event log. Detect possibility of attacks
+	 * using Golden Ticket
+	 * 
+	 * @param inputDirname
+	 */
+	public void detectGolden(String inputDirname) {
+		File dir = new File(inputDirname);
+		final File[] files = dir.listFiles();
+		beginBatch();
+
+		if (null != rawQueue) {
+			// 読み込みと解析を並行して行う
+			Thread reader = StageQueue.start("read", new Runnable() {
+				@Override
+				public void run() {
+					readFiles(files);
+					rawQueue.close();
+				}
+			}, rawQueue);
+			Thread parser = StageQueue.start("parse", new Runnable() {
+				@Override
+				public void run() {
+					parseBatches();
+				}
+			}, rawQueue);
+			// どちらかが失敗したら結果を出力せずに例外を投げる
+			StageQueue.join(reader, parser);
+		} else {
+			readFiles(files);
+		}
+		endBatch();
+	}
+
+	/**
+	 * Start a batch run. Events of the checkpoint are restored when resumed.
+	 */
+	public void beginBatch() {
+		restoreCheckpoint();
+	}
+
+	/**
+	 * Detect events read in a batch run and output the result
+	 */
+	public void endBatch() {
+		if (null == rawQueue) {
+			endFile();
+		}
+		if (null != checkpoint) {
+			// 検知・出力で失敗しても読み込み直さずに済むようにする
+			saveCheckpoint();
+		}
+		outputResults(log, this.outputDirName + "/" + "result.csv");
+		if (null != checkpoint) {
+			// 完了したので、次の実行が途中から再開しないようにする
+			checkpointFile.delete();
+		}
+		if (null != sorter) {
+			try {
+				sorter.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Read an input file of a batch run. Files which are not event logs or
+	 * already processed are skipped. Without pipeline, this can be called
+	 * file by file between beginBatch() and endBatch().
+	 * 
+	 * @param file
+	 */
+	public void readInputFile(File file) {
+		String filename = file.getName();
+		if (filename.endsWith(".csv") && !isProcessed(file)) {
+			readingFile(file.getAbsolutePath(), file.length());
+			readCSV(file.getAbsolutePath());
+			setProcessed(file);
+			fileRead(file);
+		} else if (EventRecordReader.isSupported(filename) && !isProcessed(file)) {
+			readingFile(file.getAbsolutePath(), file.length());
+			readRecords(file);
+			setProcessed(file);
+			fileRead(file);
+		}
+	}
+
+	/**
+	 * Read input files
+	 * 
+	 * @param files
+	 */
+	private void readFiles(File[] files) {
+		if (mergeFiles) {
+			// 全ファイルのログを時刻順にマージして読み込む
+			List<File> csvFiles = new ArrayList<File>();
+			for (File file : files) {
+				if (file.getName().endsWith(".csv") && !isProcessed(file)) {
+					csvFiles.add(file);
+				}
+			}
+			// 同時刻のログはファイル名順に並べる
+			Collections.sort(csvFiles);
+			long bytes = 0;
+			for (File file : csvFiles) {
+				bytes += file.length();
+			}
+			// マージする場合は全ファイルで1つのイベントとする
+			readingFile(csvFiles.size() + " files merged", bytes);
+			try {
+				readCSV(new TimeOrderedEventReader(csvFiles));
+				for (File file : csvFiles) {
+					setProcessed(file);
+					fileRead(file);
+				}
+			} catch (IOException e) {
+				System.out.println(e);
+			}
+			// .evtx, XMLはマージ対象外のためファイルごとに読み込む
+			for (File file : files) {
+				if (EventRecordReader.isSupported(file.getName()) && !isProcessed(file)) {
+					readingFile(file.getAbsolutePath(), file.length());
+					readRecords(file);
+					setProcessed(file);
+					fileRead(file);
+				}
+			}
+		} else {
+			for (File file : files) {
+				readInputFile(file);
+			}
+		}
+	}
+
+	/**
+	 * Receive events from network and detect Golden Ticket usage at each
+	 * interval. Events of an interval are detected together, and detection
+	 * state(TGT, suspicious commands, time window) is carried over to the next
+	 * interval. Runs until the process is terminated.
+	 * 
+	 * @param port
+	 *            TCP and UDP port
+	 * @param queueSize
+	 *            number of received line batches waiting for detection
+	 * @param intervalMsec
+	 *            interval of detection(msec)
+	 * @param stateFile
+	 *            state is saved at each interval if not null
+	 */
+	public void listen(int port, int queueSize, long intervalMsec, final File stateFile) {
+		if (null == state) {
+			state = new DetectionState();
+		}
+		// 受信したログはこのスレッドで解析・出力する
+		this.rawQueue = null;
+		this.outputQueue = null;
+		StageQueue<EventListener.Lines> queue = new StageQueue<EventListener.Lines>(queueSize);
+		final EventListener listener = new EventListener(port, queue);
+		Thread listenerThread = StageQueue.start("listen", listener, queue);
+
+		final Thread detector = Thread.currentThread();
+		final AtomicBoolean running = new AtomicBoolean(true);
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				// 受信済みのログを処理してから終了する
+				running.set(false);
+				StageQueue.join(detector);
+			}
+		});
+
+		// 送信元ごとにパーサの状態を保持する
+		Map<String, ParseState> sources = new HashMap<String, ParseState>();
+		try {
+			filewriter = new FileWriter(this.outputDirName + "/" + "result.csv", true);
+			bw = new BufferedWriter(filewriter);
+			pw = new PrintWriter(bw);
+			outputHeader();
+
+			long start = System.currentTimeMillis();
+			long next = start + intervalMsec;
+			long lastCnt = 0;
+			while (running.get()) {
+				parseReceived(sources, queue.poll(100));
+				long now = System.currentTimeMillis();
+				if (now >= next) {
+					detectReceived();
+					long cnt = listener.getRecordCount();
+					System.out.println(String.format("Received %d events (%.1f events/s)", cnt - lastCnt,
+							(cnt - lastCnt) * 1000.0 / Math.max(1, now - next + intervalMsec)));
+					lastCnt = cnt;
+					next = now + intervalMsec;
+					if (null != stateFile) {
+						saveState(stateFile);
+					}
+				}
+			}
+
+			// リスナーが止まるまでに渡した行も解析する
+			listener.stop();
+			while (listenerThread.isAlive()) {
+				parseReceived(sources, queue.poll(100));
+			}
+			EventListener.Lines lines;
+			while ((lines = queue.poll(0)) != null) {
+				parseReceived(sources, lines);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (RuntimeException e) {
+			// 行を渡せずに待っているリスナーを止める
+			queue.abort(e);
+			throw e;
+		} catch (Error e) {
+			queue.abort(e);
+			throw e;
+		} finally {
+			listener.stop();
+			try {
+				StageQueue.join(listenerThread);
+			} finally {
+				if (null != pw) {
+					// 最後の間隔に受信したイベントも検知し、状態を保存する
+					detectReceived();
+					if (null != stateFile) {
+						saveState(stateFile);
+					}
+					if (null != suppressor) {
+						suppressor.flush();
+					}
+					pw.close();
+				}
+				outputDetectionRate();
+			}
+		}
+	}
+
+	/**
+	 * Parse lines received from a source
+	 * 
+	 * @param sources
+	 *            parser state of each source
+	 * @param lines
+	 *            received lines, or null if nothing was received
+	 */
+	private void parseReceived(Map<String, ParseState> sources, EventListener.Lines lines) {
+		if (null == lines) {
+			return;
+		}
+		ParseState st = sources.get(lines.source);
+		if (null == st) {
+			st = new ParseState();
+			sources.put(lines.source, st);
+		}
+		for (String line : lines.lines) {
+			parseLine(st, line);
+		}
+		if (lines.end) {
+			sources.remove(lines.source);
+		}
+	}
+
+	/**
+	 * Read input files in consecutive time partitions, oldest first, and
+	 * detect and output each partition before reading the next one. Only the
+	 * detection state(TGT, suspicious commands, time windows, admin accounts)
+	 * is carried over to the next partition, so memory is bounded by one
+	 * partition.
+	 * 
+	 * @param inputDirname
+	 * @param partitionMsec
+	 *            length of a partition(msec)
+	 * @param spoolDir
+	 *            directory for partition files
+	 */
+	public void detectPartitioned(String inputDirname, long partitionMsec, String spoolDir) {
+		if (null == state) {
+			state = new DetectionState();
+		}
+		// パーティションごとにこのスレッドで解析・出力する
+		this.rawQueue = null;
+		this.outputQueue = null;
+		List<File> csvFiles = new ArrayList<File>();
+		for (File file : new File(inputDirname).listFiles()) {
+			if (file.getName().endsWith(".csv") && !isProcessed(file)) {
+				csvFiles.add(file);
+			} else if (EventRecordReader.isSupported(file.getName())) {
+				System.out.println("Not supported with time partitions, skipped: " + file.getName());
+			}
+		}
+		// 同時刻のログはファイル名順に並べる
+		Collections.sort(csvFiles);
+		try {
+			List<File> partitions = new TimePartitioner(partitionMsec, new File(spoolDir)).split(csvFiles);
+			filewriter = new FileWriter(this.outputDirName + "/" + "result.csv", true);
+			bw = new BufferedWriter(filewriter);
+			pw = new PrintWriter(bw);
+			outputHeader();
+			System.out.println("Infected accounts and computers:");
+			for (File partition : partitions) {
+				readingFile(partition.getAbsolutePath(), partition.length());
+				readCSV(partition.getAbsolutePath());
+				endFile();
+				detectReceived();
+				Files.delete(partition.toPath());
+			}
+			for (File file : csvFiles) {
+				setProcessed(file);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			if (null != suppressor && null != pw) {
+				suppressor.flush();
+			}
+			if (null != pw) {
+				pw.close();
+			}
+		}
+	}
+
+	/**
+	 * Detect events read since the last detection(an interval of listen mode
+	 * or a time partition) and output the result
+	 */
+	private void detectReceived() {
+		for (String accountName : accounts) {
+			LinkedHashSet<EventLogData> evS = log.get(accountName);
+			if (null == evS) {
+				continue;
+			}
+			detectAccount(accountName, evS);
+		}
+		if (null != suppressor) {
+			suppressor.expire();
+		}
+		pw.flush();
+		outputSummary();
+		log.clear();
+		accounts.clear();
+	}
+
+	/**
+	 * Start detecting events accepted one at a time, as in listen mode, for
+	 * the embedded detector. Detection state is carried over between
+	 * detections.
+	 * 
+	 * @param out
+	 *            output of result rows
+	 * @param listener
+	 *            receiver of alerts, or null
+	 */
+	void openStream(Writer out, DetectorEngine.AlertListener listener) {
+		if (null == state) {
+			state = new DetectionState();
+		}
+		this.rawQueue = null;
+		this.outputQueue = null;
+		this.alertListener = listener;
+		this.streamState = new ParseState();
+		this.pw = new PrintWriter(out);
+		outputHeader();
+	}
+
+	/**
+	 * Parse a line of CSV exported from event log. Lines of an event are
+	 * passed in order, starting with the header line.
+	 */
+	void acceptLine(String line) {
+		parseLine(streamState, line);
+	}
+
+	/**
+	 * Start a new log. Events of a log are grouped by time stamp from its
+	 * first line, as readCSV does per file.
+	 */
+	void endLog() {
+		this.streamState = new ParseState();
+	}
+
+	/**
+	 * Parse an event read from event log which is not CSV
+	 */
+	void acceptRecord(EventRecord record) {
+		readRecord(streamState, record);
+	}
+
+	/**
+	 * Detect events accepted since the last detection and output the result
+	 */
+	void detectStream() {
+		detectReceived();
+	}
+
+	/**
+	 * Output the remaining collapsed alerts and close the output
+	 */
+	void closeStream() {
+		if (null != suppressor) {
+			suppressor.flush();
+		}
+		pw.close();
+	}
+
+	/**
+	 * Keep alerts in memory and serve queries by HTTP on localhost
+	 * 
+	 * @param port
+	 *            HTTP port
+	 * @param maxSize
+	 *            maximum number of alerts kept
+	 * @param retention
+	 *            alerts older than this from the newest alert are evicted(msec)
+	 */
+	public void serveAlerts(int port, int maxSize, long retention) {
+		this.alertIndex = new AlertIndex(maxSize, retention);
+		try {
+			new AlertServer(alertIndex).start(port);
+		} catch (IOException e) {
+			e.printStackTrace();
+			this.alertIndex = null;
+		}
+	}
+
+	/**
+	 * Tokenize a large CSV file on several threads
+	 * 
+	 * @param threads
+	 *            number of threads
+	 * @param rangeSize
+	 *            size of a range tokenized by one thread(byte)
+	 */
+	public void setParallelParse(int threads, long rangeSize) {
+		this.parseThreads = threads;
+		this.parseRangeSize = rangeSize;
+	}
+
+	/**
+	 * Run reading, parsing, detection and output on separate threads connected
+	 * by bounded queues
+	 * 
+	 * @param readQueueSize
+	 *            number of batches of lines or records waiting to be parsed
+	 * @param outputQueueSize
+	 *            number of accounts waiting to be output
+	 */
+	public void enablePipeline(int readQueueSize, int outputQueueSize) {
+		this.rawQueue = new StageQueue<RawBatch>(readQueueSize);
+		this.outputQueue = new StageQueue<AccountLogs>(outputQueueSize);
+	}
+
+	/**
+	 * Write output partitioned by account hash into N files concurrently
+	 * 
+	 * @param partitions
+	 *            number of files
+	 * @param concat
+	 *            join the files into one file at the end
+	 */
+	public void setOutputPartitions(int partitions, boolean concat) {
+		this.outputPartitions = partitions;
+		this.concatOutput = concat;
+	}
+
+	/**
+	 * Emit JDK Flight Recorder events per input file and per account. The
+	 * events are recorded only while a recording is running, and only on JDK 9
+	 * or later.
+	 */
+	public void enableProfiling() {
+		if (!ProfilingEvents.isAvailable()) {
+			System.out.println("--jfr requires Flight Recorder of JDK 9 or later, ignored");
+			return;
+		}
+		this.profiling = true;
+	}
+
+	/**
+	 * Read all input files as one stream ordered by time stamp
+	 * 
+	 * @param mergeFiles
+	 */
+	public void setMergeFiles(boolean mergeFiles) {
+		this.mergeFiles = mergeFiles;
+	}
+
+	/**
+	 * Drop records of non-target events from CSV files at byte level
+	 * 
+	 * @param prefilter
+	 */
+	public void setPrefilter(boolean prefilter) {
+		if (prefilter && !RecordPrefilter.canFilter(Charset.defaultCharset())) {
+			System.out.println("--prefilter is not supported for " + Charset.defaultCharset() + ", ignored");
+			return;
+		}
+		this.prefilter = prefilter;
+	}
+
+	/**
+	 * Drop events matching the rules of a noise filter file while parsing
+	 * 
+	 * @param filterFile
+	 */
+	public void loadNoiseFilter(File filterFile) {
+		try {
+			this.noiseFilter = NoiseFilter.load(filterFile);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Sort events on disk instead of keeping all accounts in memory
+	 * 
+	 * @param sortDir
+	 *            directory for sort runs
+	 * @param runSize
+	 *            number of events kept in memory before a run is written
+	 */
+	public void enableExternalSort(String sortDir, int runSize) {
+		try {
+			this.sorter = new ExternalEventSorter(sortDir, runSize);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
 
-			// アカウントごとに処理する
-			for (String accountName : accounts) {
-				LinkedHashSet<EventLogData> evS = log.get(accountName);
-				if (null == evS) {
-					continue;
-				}
-				// ソース IPが出ないイベントに、ソースIPをセットする
-				setClientAddress(evS);
+	private boolean isProcessed(File file) {
+		if (null != state && state.isProcessed(file)) {
+			System.out.println("Skip already processed file: " + file.getName());
+			return true;
+		}
+		if (null != checkpoint && checkpoint.isProcessed(file)) {
+			System.out.println("Skip file read before checkpoint: " + file.getName());
+			return true;
+		}
+		return false;
+	}
 
-				// クライアントアドレス毎にログを保持するためのリスト(キー：クライアントアドレス)
-				Map<String, LinkedHashSet> kerlog = new LinkedHashMap<String, LinkedHashSet>();
+	/**
+	 * Input file is fully read. With pipeline, it is checkpointed after
+	 * parsing stage parses its last batch.
+	 */
+	private void fileRead(File file) {
+		if (null == checkpoint) {
+			return;
+		}
+		if (null == rawQueue) {
+			fileParsed(file);
+			return;
+		}
+		RawBatch batch = new RawBatch(false);
+		batch.parsedFile = file;
+		rawQueue.put(batch);
+	}
 
-				// 同じ時間帯毎にログを保持するためのリスト(キー：クライアントアドレス)
-				Map<Long, LinkedHashSet> timeBasedlog = new LinkedHashMap<Long, LinkedHashSet>();
+	/**
+	 * Events of an input file are all stored. Save a checkpoint if the
+	 * interval has passed. Called by the thread which parses the file.
+	 */
+	private void fileParsed(File file) {
+		checkpoint.addProcessed(file);
+		if (System.currentTimeMillis() - lastCheckpoint >= checkpointInterval) {
+			saveCheckpoint();
+		}
+	}
 
-				// さらにクライアントアドレスごとに分類し、GTが使われている可能性があるかを判定する
-				for (EventLogData ev : evS) {
-					LinkedHashSet<EventLogData> evSet;
-					String clientAddress=ev.getClientAddress();
-					if (null != kerlog.get(clientAddress)) {
-						evSet = kerlog.get(clientAddress);
-					} else {
-						evSet = new LinkedHashSet<EventLogData>();
-					}
-					evSet.add(ev);
-					kerlog.put(ev.getClientAddress(), evSet);
-					this.logCnt++;
-				}
-				
-				for (Iterator it = kerlog.entrySet().iterator(); it.hasNext();) {
-						Map.Entry<String, LinkedHashSet> entry = (Map.Entry<String, LinkedHashSet>) it.next();
-						String computer=entry.getKey();
-						if(!accountName.isEmpty() && !computer.isEmpty()) {
-							this.dataNum++;
-							//System.out.println("Account: "+accountName+", Computer: "+computer);
-						}
-				}
-				// GTが使われているか判定
-				if(adminAccounts.contains(accountName)){
-					isGoldenUsed(kerlog,accountName);
-				}
-				// 同じ時間帯のログごとに処理
-				list = new ArrayList<EventLogData>(evS);
-				Collections.reverse(list);
-				for (EventLogData ev : list) {
-					LinkedHashSet<EventLogData> evSet;
-					if (null != timeBasedlog.get(ev.getTimeCnt())) {
-						evSet = timeBasedlog.get(ev.getTimeCnt());
-					} else {
-						evSet = new LinkedHashSet<EventLogData>();
-					}
-					evSet.add(ev);
-					timeBasedlog.put(ev.getTimeCnt(), evSet);
-				}
-				// 結果をファイルに出力する
-				outputLogs(timeBasedlog, accountName);
-			}
+	private void saveCheckpoint() {
+		try {
+			checkpoint.save(checkpointFile, log, accounts, adminAccounts);
+			System.out.println("Checkpoint: " + checkpoint.getProcessedCount() + " files");
 		} catch (IOException e) {
 			e.printStackTrace();
-		} finally {
-			pw.close();
-			try {
-				bw.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
 		}
+		lastCheckpoint = System.currentTimeMillis();
 	}
 
-	private void isGoldenUsed(Map<String, LinkedHashSet> kerlog, String accountName) {
-		// kerlogは端末毎に分類されたログ
-		for (Iterator it = kerlog.entrySet().iterator(); it.hasNext();) {
-			boolean isTGTEvent = false;
-			boolean isSTEvent = false;
-			short isGolden = 0;
-			Map.Entry<String, LinkedHashSet> entry = (Map.Entry<String, LinkedHashSet>) it.next();
-			String computer=entry.getKey();
-			LinkedHashSet<EventLogData> evS = (LinkedHashSet<EventLogData>) entry.getValue();
-			LinkedHashMap<Long,Alert> attackTimeCnt = new LinkedHashMap<Long,Alert>();
-			for (EventLogData ev : evS) {
-				// 同じアカウント・端末・時間帯のログに同じtimeCntを割り当てる
-				// アカウント・端末を連結させた文字列のハッシュコードとタイムカウントを加算する
-				long timeCnt = (ev.getAccountName() + ev.getClientAddress()).hashCode() + ev.getTimeCnt();
-				ev.settimeCnt(timeCnt);
-				int eventID = ev.getEventID();
-				// 4768/4769が記録されているかを調べる
-				if (eventID == 4768) {
-					isTGTEvent = true;
-				} else if (eventID == EVENT_ST) {
-					isSTEvent = true;
-				}
-			}
-			for (EventLogData ev : evS) {
-				int eventID = ev.getEventID();
-				// 4768/479が記録されているかを調べる
-				if (eventID == 4768) {
-					isTGTEvent = true;
-				} else if (eventID == EVENT_ST) {
-					isSTEvent = true;
-				}
-			}
-			if (!isTGTEvent && isSTEvent) {
-				// 4768が記録されていないのに、4769が記録されている
-				isGolden = 1;
-				System.out.println("Account: "+accountName+", Computer: "+computer);
-				for (EventLogData ev : evS) {
-					if (EVENT_ST == ev.getEventID()) {
-						ev.setIsGolden(isGolden);
-						ev.setAlertType(AlertType.NoTGT);
-						ev.setAlertLevel(Alert.SEVERE);
-					}
-				}
-			}
-			
-			Set<String> commands = new LinkedHashSet<String>();
-			for (EventLogData ev : evS) {
-				
-				if(ev.getEventID()==EVENT_PRIV &&!this.adminWhiteList.contains(accountName) 
-						&& this.adminAccounts.contains(accountName)){
-					// 管理者リストに含まれていないのに、特権を使っている
-					isGolden = 1;
-					ev.setIsGolden(isGolden);
-					ev.setAlertType(AlertType.NoADMIN);
-					ev.setAlertLevel(Alert.SEVERE);
-				}
-				
-				if (5140 == ev.getEventID()) {
-					// 管理共有が使用されている
-					if (ev.getSharedName().contains("\\c$")) {
-						isGolden = 1;
-						ev.setIsGolden(isGolden);
-						ev.setAlertType(AlertType.ADMINSHARE);
-						ev.setAlertLevel(Alert.SEVERE);
-					}
-				}
-				if (EVENT_PROCESS == ev.getEventID()) {
-					// 攻撃者がよく実行するコマンドを実行している
-					String command[] = ev.getProcessName().split("\\\\");
-					String commandName = "";
-					if (null != command) {
-						commandName = command[command.length - 1];
-					}
-					for (String cmd : suspiciousCmd) {
-						if (commandName.equals(cmd)) {
-							isGolden = 1;
-							ev.setIsGolden(isGolden);
-							ev.setAlertType(AlertType.MALCMD);
-							commands.add(ev.getProcessName());
-						}
-					}
-				}
-				
-			}
-			// 実行された不審なコマンドの種類数
-			int detecctcmdCnt = commands.size();
-			double commandExecuterate = (double) detecctcmdCnt / this.detecctTargetcmdCnt;
-			Alert alertLevel = Alert.NONE;
-			if (commandExecuterate >= AuthLogUtil.ALERT_SEVIRE) {
-				alertLevel = Alert.SEVERE;
-			} else if (commandExecuterate >= AuthLogUtil.ALERT_WARNING) {
-				alertLevel = Alert.WARNING;
-			} else if (commandExecuterate > 0) {
-				alertLevel = Alert.NOTICE;
-			}
-			for (EventLogData ev : evS) {
-				if(ev.getAlertType()==AlertType.MALCMD){
-					ev.setAlertLevel(alertLevel);
-				}
-				if(1==ev.isGolden()){
-					if(ev.getClientAddress().isEmpty() && ev.getEventID()!=EVENT_PRIV) {
-						ev.setIsGolden((short)0);
-						ev.setAlertLevel(Alert.NONE);
-						ev.setAlertType(AlertType.NONE);
-					} else{
-						this.detectedEventNum++;
-					}
-				}
-			}
-			//outlierと判定したログと同時刻のログをマークし、同じアラートレベルを設定する
-			for (EventLogData ev : evS) {
-				if (1 == ev.isGolden()) {
-					attackTimeCnt.put(ev.getTimeCnt(),ev.getAlertLevel());
-					if(ev.getAlertLevel()==Alert.NONE){
-						ev.setAlertLevel(alertLevel);
-					}
-				}
-			}
-			for (EventLogData ev : evS) {
-				if (null!=attackTimeCnt.get(ev.getTimeCnt())) {
-					if(0==ev.isGolden()){
-						isGolden = 1;
-						ev.setIsGolden(isGolden);
-					}
-					if(ev.getAlertLevel()==Alert.NONE){
-						ev.setAlertLevel(attackTimeCnt.get(ev.getTimeCnt()));
-					}
-				}
-			}
-			if(1==isGolden && !accountName.isEmpty() && !computer.isEmpty()){
-				infectedNum++;
-				System.out.println("Account: "+accountName+", Computer: "+computer);
-			}
+	/**
+	 * Save checkpoints while reading input files, and resume from the
+	 * checkpoint of a failed run. Call before the output directory is
+	 * cleared, as the checkpoint may be in it.
+	 * 
+	 * @param checkpointFile
+	 * @param intervalMsec
+	 *            interval of checkpoints(msec)
+	 * @param resume
+	 *            load the checkpoint and read only remaining files
+	 */
+	public void enableCheckpoint(File checkpointFile, long intervalMsec, boolean resume) {
+		this.checkpointFile = checkpointFile;
+		this.checkpointInterval = intervalMsec;
+		this.lastCheckpoint = System.currentTimeMillis();
+		this.checkpoint = new Checkpoint();
+		if (!resume) {
+			return;
+		}
+		try {
+			this.resumeFrom = Checkpoint.load(checkpointFile);
+			this.checkpoint = resumeFrom;
+			System.out.println("Resume from checkpoint: " + checkpoint.getProcessedCount() + " files");
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
 	}
-	
-	private void outputLogs(Map<Long, LinkedHashSet> kerlog, String accountName) {
-		for (Iterator it = kerlog.entrySet().iterator(); it.hasNext();) {
-			Map.Entry<Long, LinkedHashSet> entry = (Map.Entry<Long, LinkedHashSet>) it.next();
-			LinkedHashSet<EventLogData> evS = (LinkedHashSet<EventLogData>) entry.getValue();
-
-			long logTime = 0;
-			for (EventLogData ev : evS) {
-				try {
-					logTime = sdf.parse(ev.getDate()).getTime();
-				} catch (ParseException e1) {
-					e1.printStackTrace();
-				}
 
-				// UNIX Timeの計算
-				long time = 0;
-				try {
-					time = sdf.parse(ev.getDate()).getTime();
-				} catch (ParseException e) {
-					e.printStackTrace();
-				}
-				pw.println(ev.getDate() + "," + ev.getEventID() + "," + accountName + "," + ev.getClientAddress() + ","
-						+ ev.getServiceName() + "," + ev.getProcessName() + "," 
-						+ ev.getSharedName() + "," + ev.isGolden() + "," + this.alert.get(ev.getAlertType()) + ","
-						+ ev.getAlertLevel());
+	/**
+	 * Restore events and accounts of the checkpoint. Events are passed to
+	 * dedup and summary again, as they were when first read.
+	 */
+	private void restoreCheckpoint() {
+		if (null == resumeFrom) {
+			return;
+		}
+		for (Map.Entry<String, LinkedHashSet<EventLogData>> entry : resumeFrom.getLog().entrySet()) {
+			for (EventLogData ev : entry.getValue()) {
+				accept(ev);
 			}
-			
+			log.put(entry.getKey(), entry.getValue());
 		}
+		accounts.addAll(resumeFrom.getAccounts());
+		adminAccounts.addAll(resumeFrom.getAdminAccounts());
+		resumeFrom = null;
+	}
 
+	private void setProcessed(File file) {
+		if (null != state) {
+			state.addProcessed(file);
+		}
 	}
 
 	/**
-	 * Parse CSV files exported from event log. Detect possibility of attacks
-	 * using Golden Ticket
+	 * Load detection state of the previous run. Files already processed are
+	 * skipped.
 	 * 
-	 * @param inputDirname
+	 * @param stateFile
+	 * @param tgtLifetime
+	 *            time a TGT requested in the previous run is valid(msec)
 	 */
-	public void detectGolden(String inputDirname) {
-		File dir = new File(inputDirname);
-		File[] files = dir.listFiles();
+	public void loadState(File stateFile, long tgtLifetime) {
+		try {
+			this.state = DetectionState.load(stateFile);
+			this.state.setTgtLifetime(tgtLifetime);
+			this.adminAccounts.addAll(state.getAdminAccounts());
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
 
-		for (File file : files) {
-			String filename = file.getName();
-			if (filename.endsWith(".csv")) {
-				readCSV(file.getAbsolutePath());
-			} else {
-				continue;
-			}
+	/**
+	 * Save detection state for the next run
+	 * 
+	 * @param stateFile
+	 */
+	public void saveState(File stateFile) {
+		if (null == state) {
+			return;
+		}
+		state.getAdminAccounts().addAll(this.adminAccounts);
+		try {
+			state.save(stateFile);
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
-		outputResults(log, this.outputDirName + "/" + "result.csv");
 	}
 
 	private void detelePrevFiles(String outDirname) {
@@ -511,7 +2002,48 @@ public class GoldenTicketDetector {
 	private static void printUseage() {
 		System.out.println("Useage");
 		System.out.println(
-				"{iputdirpath} {outputdirpath} {suspicious command list file} ({admin list})");
+				"{iputdirpath} {outputdirpath} {suspicious command list file} ({admin list}) (options)");
+		System.out.println("Options:");
+		System.out.println("  --external-sort        sort events on disk and evaluate one account at a time");
+		System.out.println("  --sort-buffer=N        number of events kept in memory per sort run");
+		System.out.println("  --sort-dir=path        directory for sort runs and time partitions (default: output directory)");
+		System.out.println("  --merge-files          read all input files in time stamp order");
+		System.out.println("  --time-partition=H     detect and output H hours of logs at a time, oldest first (e.g. 24)");
+		System.out.println("  --prefilter            skip records of non-target events before decoding CSV files");
+		System.out.println("  --noise-filter=file    drop events of process, account and service rules in the file");
+		System.out.println("  --summary              write estimated account and computer activity to summary.csv");
+		System.out.println("  --summary-top=N        accounts and processes per account in summary.csv (default: "
+				+ ActivitySummary.DEFAULT_TOP + ")");
+		System.out.println("  --dedup                drop events read twice from overlapping exports");
+		System.out.println("  --dedup-size=N         number of event fingerprints kept for --dedup (default: "
+				+ EventFingerprintSet.DEFAULT_MAX_SIZE + ")");
+		System.out.println("  --state=file           load and save detection state to process only new files");
+		System.out.println("  --tgt-lifetime=H       hours a TGT of the previous run is valid (default: 10)");
+		System.out.println("  --checkpoint=file      save files read and their events periodically while reading");
+		System.out.println("  --checkpoint-interval=S seconds between checkpoints (default: " + Checkpoint.DEFAULT_INTERVAL + ")");
+		System.out.println("  --resume               continue a failed run from --checkpoint, reading only remaining files");
+		System.out.println("  --pipeline             read, parse, detect and output on separate threads");
+		System.out.println("  --read-queue=N         batches of " + BATCH_SIZE + " lines waiting to be parsed (default: 64)");
+		System.out.println("  --output-queue=N       accounts waiting to be output (default: 256)");
+		System.out.println("  --output-partitions=N  write result-0.csv .. result-(N-1).csv by account on N threads");
+		System.out.println("  --concat-output        join the partitions into result.csv at the end");
+		System.out.println("  --jfr                  emit Flight Recorder events per file and per account"
+				+ " (record with -XX:StartFlightRecording)");
+		System.out.println("  --listen=port          receive events by TCP/UDP instead of reading input directory");
+		System.out.println("  --listen-queue=N       received line batches waiting for detection (default: 1024)");
+		System.out.println("  --interval=S           seconds between detections in --listen mode (default: 60)");
+		System.out.println("  --reload-interval=S    seconds between checks for changed command and admin lists"
+				+ " (default: 10 in --listen mode, off otherwise)");
+		System.out.println("  --http=port            serve alert queries at http://localhost:port/alerts");
+		System.out.println("  --index-size=N         maximum number of alerts kept for queries (default: "
+				+ AlertIndex.DEFAULT_MAX_SIZE + ")");
+		System.out.println("  --index-hours=H        hours alerts are kept for queries (default: 168)");
+		System.out.println("  --suppress-ttl=M       collapse repeated alerts of an account, computer and type within M minutes");
+		System.out.println("  --suppress-size=N      maximum number of alert keys kept for --suppress-ttl (default: "
+				+ AlertSuppressor.DEFAULT_MAX_SIZE + ")");
+		System.out.println("  --parse-threads=N      threads which tokenize one large CSV file (default: 1)");
+		System.out.println("  --parse-range=KB       size of a range of a file tokenized by one thread (default: "
+				+ ParallelCSVReader.DEFAULT_RANGE_KB + ")");
 	}
 
 	/**
@@ -520,20 +2052,7 @@ public class GoldenTicketDetector {
 	 * @param inputfilename
 	 */
 	private void readSuspiciousCmd(String inputfilename) {
-
-		File f = new File(inputfilename);
-		suspiciousCmd = new ArrayList<String>();
-		try {
-			BufferedReader br = new BufferedReader(new FileReader(f));
-			String line;
-			while ((line = br.readLine()) != null) {
-				suspiciousCmd.add(line);
-			}
-			this.detecctTargetcmdCnt = this.suspiciousCmd.size();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
+		suspiciousCmd = new ReloadableList(inputfilename);
 	}
 	
 	/**
@@ -541,25 +2060,16 @@ public class GoldenTicketDetector {
 	 * @param inputfilename
 	 */
 	private void readAdminList(String inputfilename) {
+		adminWhiteList = new ReloadableList(inputfilename);
+	}
 
-		File f = new File(inputfilename);
-		adminWhiteList = new ArrayList<String>();
-		BufferedReader br = null;
-		try {
-			br = new BufferedReader(new FileReader(f));
-			String line;
-			while ((line = br.readLine()) != null) {
-				adminWhiteList.add(line);
-			}
-		} catch (IOException e) {
-			e.printStackTrace();
-		} finally {
-			try {
-				br.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		}
+	/**
+	 * Reload command list and admin list when they are changed on disk
+	 * 
+	 * @param intervalMsec
+	 */
+	private void watchLists(long intervalMsec) {
+		ReloadableList.watch(intervalMsec, suspiciousCmd, adminWhiteList);
 	}
 
 	private void setAlert() {
@@ -572,24 +2082,36 @@ public class GoldenTicketDetector {
 		alert.put(AlertType.NoADMIN, "Not in Admin list");
 	}
 
-	private void setClientAddress(LinkedHashSet<EventLogData> evS) {
+	private void setClientAddress(String accountName, LinkedHashSet<EventLogData> evS) {
 		List<EventLogData> list = new ArrayList<EventLogData>(evS);
 		// 時刻の昇順に並べる
 		Collections.reverse(list);
-		String clientAddress = "";
+		// 前回までの4769のアドレスを引き継ぐ
+		String clientAddress = null != state ? state.getLastAddress(accountName) : "";
+		EventLogData lastST = null;
 		for (EventLogData ev : list) {
 			if (ev.getEventID() == EVENT_ST) {
 				clientAddress = ev.getClientAddress();
+				lastST = ev;
 			} else if (ev.getEventID() == EVENT_PROCESS) {
 				if(!clientAddress.isEmpty()){
 					ev.setClientAddress(clientAddress);
 				}
 			}
 		}
+		if (null != state && null != lastST) {
+			state.setLastAddress(accountName, clientAddress, getTime(lastST));
+		}
 	}
 
 	private void outputDetectionRate() {
 		System.out.println();
+		if (null != noiseFilter) {
+			noiseFilter.printDrops();
+		}
+		if (null != seenEvents) {
+			System.out.println("Duplicated events dropped: " + seenEvents.getDuplicates());
+		}
 		System.out.println("Total amount of events: " + this.logCnt);
 		System.out.println("Total amount of accounts & computers: " + this.dataNum);
 		System.out.println("TP(event): " + this.detectedEventNum);
@@ -598,9 +2120,109 @@ public class GoldenTicketDetector {
 		System.out.println("TN(accounts & computers): " + (this.dataNum - this.infectedNum));
 	}
 
+	/**
+	 * Configure a detector for a batch run: lists, output directory and
+	 * options. The result files of the previous run in the output directory
+	 * are deleted.
+	 * 
+	 * @param outputDirName
+	 * @param commandFile
+	 *            suspicious command list
+	 * @param adminlist
+	 *            admin list
+	 * @param options
+	 *            options parsed by AuthLogUtil.parseOptions
+	 */
+	public void configure(String outputDirName, String commandFile, String adminlist, Map<String, String> options) {
+		this.outputDirName = outputDirName;
+		setLists(commandFile, adminlist);
+		if (options.containsKey("checkpoint") && !options.containsKey("external-sort")
+				&& !options.containsKey("time-partition")) {
+			// チェックポイントが出力ディレクトリにあっても消す前に読み込む
+			enableCheckpoint(new File(options.get("checkpoint")),
+					AuthLogUtil.getIntOption(options, "checkpoint-interval", Checkpoint.DEFAULT_INTERVAL) * 1000L,
+					options.containsKey("resume"));
+		} else if (options.containsKey("checkpoint")) {
+			System.out.println("--checkpoint is not supported with --external-sort or --time-partition, ignored");
+		} else if (options.containsKey("resume")) {
+			System.out.println("--resume requires --checkpoint, ignored");
+		}
+		if (options.containsKey("state")) {
+			// 状態ファイルが出力ディレクトリにあっても消す前に読み込む
+			stateFile = new File(options.get("state"));
+			loadState(stateFile, AuthLogUtil.getIntOption(options, "tgt-lifetime", 10) * 60 * 60 * 1000L);
+		}
+		detelePrevFiles(outputDirName);
+		setMergeFiles(options.containsKey("merge-files"));
+		setPrefilter(options.containsKey("prefilter"));
+		if (options.containsKey("noise-filter")) {
+			loadNoiseFilter(new File(options.get("noise-filter")));
+		}
+		if (options.containsKey("summary")) {
+			enableSummary(AuthLogUtil.getIntOption(options, "summary-top", ActivitySummary.DEFAULT_TOP));
+		}
+		if (options.containsKey("dedup")) {
+			enableDedup(AuthLogUtil.getIntOption(options, "dedup-size", EventFingerprintSet.DEFAULT_MAX_SIZE));
+		}
+		if (options.containsKey("pipeline")) {
+			enablePipeline(AuthLogUtil.getIntOption(options, "read-queue", 64),
+					AuthLogUtil.getIntOption(options, "output-queue", DEFAULT_OUTPUT_QUEUE));
+		}
+		if (options.containsKey("jfr")) {
+			enableProfiling();
+		}
+		setOutputPartitions(AuthLogUtil.getIntOption(options, "output-partitions", 1),
+				options.containsKey("concat-output"));
+		if (options.containsKey("external-sort") && options.containsKey("time-partition")) {
+			System.out.println("--external-sort is not used with --time-partition, ignored");
+		} else if (options.containsKey("external-sort")) {
+			String sortDir = options.containsKey("sort-dir") ? options.get("sort-dir") : outputDirName;
+			enableExternalSort(sortDir,
+					AuthLogUtil.getIntOption(options, "sort-buffer", ExternalEventSorter.DEFAULT_RUN_SIZE));
+		}
+		setParallelParse(AuthLogUtil.getIntOption(options, "parse-threads", 1),
+				AuthLogUtil.getIntOption(options, "parse-range", ParallelCSVReader.DEFAULT_RANGE_KB) * 1024L);
+		if (options.containsKey("suppress-ttl")) {
+			enableSuppression(AuthLogUtil.getIntOption(options, "suppress-ttl", 60) * 60 * 1000L,
+					AuthLogUtil.getIntOption(options, "suppress-size", AlertSuppressor.DEFAULT_MAX_SIZE));
+		}
+	}
+
+	/**
+	 * Read suspicious command list and admin list
+	 * 
+	 * @param commandFile
+	 * @param adminlist
+	 *            admin list, or null if not given
+	 */
+	void setLists(String commandFile, String adminlist) {
+		setAlert();
+		readSuspiciousCmd(commandFile);
+		if (null != adminlist) {
+			readAdminList(adminlist);
+		} else {
+			adminWhiteList = ReloadableList.empty();
+		}
+	}
+
+	/**
+	 * Output the summary and the detection rate after a batch run, and save
+	 * the detection state
+	 */
+	public void report() {
+		outputSummary();
+		if (null != stateFile) {
+			saveState(stateFile);
+		}
+		outputDetectionRate();
+	}
+
 	public static void main(String args[]) throws ParseException {
 		GoldenTicketDetector GoldenTicketDetector = new GoldenTicketDetector();
+		Map<String, String> options = AuthLogUtil.parseOptions(args);
+		args = AuthLogUtil.removeOptions(args);
 		String inputdirname = "";
+		String outputDirName = "";
 		String commandFile = "";
 		String adminlist = "";
 		if (args.length < 3) {
@@ -612,13 +2234,33 @@ public class GoldenTicketDetector {
 		if (args.length > 3) {
 			adminlist=args[3];
 		}
-		log = new LinkedHashMap<String, LinkedHashSet<EventLogData>>();
-		GoldenTicketDetector.setAlert();
-		GoldenTicketDetector.readSuspiciousCmd(commandFile);
-		GoldenTicketDetector.readAdminList(adminlist);
-		GoldenTicketDetector.detelePrevFiles(outputDirName);
-		GoldenTicketDetector.detectGolden(inputdirname);
-		GoldenTicketDetector.outputDetectionRate();
+		GoldenTicketDetector.configure(outputDirName, commandFile, adminlist, options);
+		if (options.containsKey("http")) {
+			GoldenTicketDetector.serveAlerts(AuthLogUtil.getIntOption(options, "http", 0),
+					AuthLogUtil.getIntOption(options, "index-size", AlertIndex.DEFAULT_MAX_SIZE),
+					AuthLogUtil.getIntOption(options, "index-hours", 168) * 60 * 60 * 1000L);
+		}
+		if (options.containsKey("reload-interval") || options.containsKey("listen")) {
+			GoldenTicketDetector.watchLists(AuthLogUtil.getIntOption(options, "reload-interval", 10) * 1000L);
+		}
+		if (options.containsKey("listen")) {
+			GoldenTicketDetector.listen(AuthLogUtil.getIntOption(options, "listen", 0),
+					AuthLogUtil.getIntOption(options, "listen-queue", 1024),
+					AuthLogUtil.getIntOption(options, "interval", 60) * 1000L, GoldenTicketDetector.stateFile);
+			return;
+		}
+		if (options.containsKey("time-partition")) {
+			String spoolDir = options.containsKey("sort-dir") ? options.get("sort-dir") : outputDirName;
+			GoldenTicketDetector.detectPartitioned(inputdirname,
+					AuthLogUtil.getIntOption(options, "time-partition", 24) * 60 * 60 * 1000L, spoolDir);
+		} else {
+			GoldenTicketDetector.detectGolden(inputdirname);
+		}
+		GoldenTicketDetector.report();
+		if (options.containsKey("http")) {
+			// 検索できるように、プロセスを終了させない
+			System.out.println("Serving alert queries. Press Ctrl+C to exit.");
+		}
 	}
 
 }
@@ -0,0 +1,94 @@
+package logparse;
+
+import java.util.Arrays;
+
+/**
+ * HyperLogLog: approximate number of distinct keys in fixed memory.
+ * While few registers are set, only those are kept(sparse), so that a
+ * HyperLogLog per account does not take 2^precision bytes for an account
+ * seen from a few computers. The estimate is the same in both forms.
+ *
+ * @version 1.0
+ */
+public class HyperLogLog {
+
+	private final int precision;
+	// 疎な間は値のあるレジスタを(index << 8 | rank)で持つ
+	private int sparse[] = new int[4];
+	private int sparseSize = 0;
+	private byte registers[] = null;
+
+	/**
+	 * @param precision
+	 *            2^precision registers are used. The standard error is about
+	 *            1.04 / sqrt(2^precision).
+	 */
+	public HyperLogLog(int precision) {
+		this.precision = Math.max(4, Math.min(16, precision));
+	}
+
+	public void add(String key) {
+		long h = AuthLogUtil.hash64(key);
+		int idx = (int) (h >>> (64 - precision));
+		// 残りのビットで最初の1の位置
+		int rank = Long.numberOfLeadingZeros((h << precision) | (1L << (precision - 1))) + 1;
+		if (null != registers) {
+			if (rank > registers[idx]) {
+				registers[idx] = (byte) rank;
+			}
+			return;
+		}
+		for (int i = 0; i < sparseSize; i++) {
+			if (sparse[i] >>> 8 == idx) {
+				if (rank > (sparse[i] & 0xff)) {
+					sparse[i] = idx << 8 | rank;
+				}
+				return;
+			}
+		}
+		if (sparseSize >= (1 << precision) / 8) {
+			// 密な形式の1/2を超える前に切り替える
+			registers = new byte[1 << precision];
+			for (int i = 0; i < sparseSize; i++) {
+				registers[sparse[i] >>> 8] = (byte) (sparse[i] & 0xff);
+			}
+			registers[idx] = (byte) rank;
+			sparse = null;
+			return;
+		}
+		if (sparseSize == sparse.length) {
+			sparse = Arrays.copyOf(sparse, sparseSize * 2);
+		}
+		sparse[sparseSize++] = idx << 8 | rank;
+	}
+
+	/**
+	 * @return estimated number of distinct keys
+	 */
+	public long cardinality() {
+		int m = 1 << precision;
+		double sum = 0;
+		int zeros = 0;
+		if (null != registers) {
+			for (byte r : registers) {
+				sum += 1.0 / (1L << r);
+				if (0 == r) {
+					zeros++;
+				}
+			}
+		} else {
+			zeros = m - sparseSize;
+			sum = zeros;
+			for (int i = 0; i < sparseSize; i++) {
+				sum += 1.0 / (1L << (sparse[i] & 0xff));
+			}
+		}
+		double alpha = 0.7213 / (1 + 1.079 / m);
+		double estimate = alpha * m * m / sum;
+		if (estimate <= 2.5 * m && zeros > 0) {
+			// 少ない場合はlinear countingで補正する
+			estimate = m * Math.log((double) m / zeros);
+		}
+		return Math.round(estimate);
+	}
+}
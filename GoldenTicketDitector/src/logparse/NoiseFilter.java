@@ -0,0 +1,257 @@
+package logparse;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.Pattern;
+
+import logparse.AuthLogUtil.Field;
+
+/**
+ * Rules to drop noisy events(EDR agents, backup jobs, SCCM...) while parsing,
+ * before the events are created and stored.
+ *
+ * A rule is a line of the filter file, "type:pattern", where type is
+ * "process", "account" or "service". Lines starting with '#' are comments.
+ * Patterns are compared ignoring case.
+ *
+ * <pre>
+ * process:c:\program files\sccm\*
+ * process:*\edr*.exe
+ * account:svc_backup
+ * service:backupsvc?
+ * </pre>
+ *
+ * A pattern without wildcards is matched exactly by a hash set, a pattern
+ * ending with the only '*' is matched as a prefix by a trie, and other
+ * patterns are matched as globs('*' and '?'). Each rule counts the events it
+ * dropped.
+ *
+ * @version 1.0
+ */
+public class NoiseFilter {
+
+	private static final String TYPES[] = { "process", "account", "service" };
+	private static final Field FIELDS[] = { Field.PROCESS, Field.ACCOUNT, Field.SERVICE };
+
+	/**
+	 * Rule of the filter file and the number of events it dropped
+	 */
+	public static class Rule {
+		private final String text;
+		private long drops = 0;
+
+		Rule(String text) {
+			this.text = text;
+		}
+
+		public String getText() {
+			return text;
+		}
+
+		public long getDrops() {
+			return drops;
+		}
+	}
+
+	// Node of the prefix trie
+	private static class Node {
+		final Map<Character, Node> children = new HashMap<Character, Node>();
+		// Rule whose prefix ends at this node
+		Rule rule = null;
+	}
+
+	// Compiled rules of a field
+	private static class Rules {
+		final Map<String, Rule> exact = new HashMap<String, Rule>();
+		final Node prefixes = new Node();
+		final List<Pattern> globs = new ArrayList<Pattern>();
+		final List<Rule> globRules = new ArrayList<Rule>();
+	}
+
+	private final Map<Field, Rules> rules = new EnumMap<Field, Rules>(Field.class);
+	private final List<Rule> allRules = new ArrayList<Rule>();
+
+	/**
+	 * Load a filter file
+	 *
+	 * @param filterFile
+	 * @return NoiseFilter
+	 * @throws IOException
+	 *             if the file cannot be read or has an unknown rule
+	 */
+	public static NoiseFilter load(File filterFile) throws IOException {
+		NoiseFilter filter = new NoiseFilter();
+		BufferedReader br = new BufferedReader(new FileReader(filterFile));
+		try {
+			String line;
+			int lineNo = 0;
+			while ((line = br.readLine()) != null) {
+				lineNo++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				if (!filter.addRule(line)) {
+					throw new IOException(filterFile + ":" + lineNo + ": unknown noise filter rule: " + line);
+				}
+			}
+		} finally {
+			br.close();
+		}
+		return filter;
+	}
+
+	/**
+	 * Compile a rule
+	 *
+	 * @param line
+	 *            "type:pattern"
+	 * @return false if the type is unknown or the pattern is empty
+	 */
+	private boolean addRule(String line) {
+		int idx = line.indexOf(':');
+		if (idx < 0) {
+			return false;
+		}
+		String type = line.substring(0, idx).trim().toLowerCase();
+		String pattern = line.substring(idx + 1).trim().toLowerCase();
+		Field field = null;
+		for (int i = 0; i < TYPES.length; i++) {
+			if (TYPES[i].equals(type)) {
+				field = FIELDS[i];
+			}
+		}
+		if (null == field || pattern.isEmpty()) {
+			return false;
+		}
+		Rules fieldRules = rules.get(field);
+		if (null == fieldRules) {
+			fieldRules = new Rules();
+			rules.put(field, fieldRules);
+		}
+		Rule rule = new Rule(type + ":" + pattern);
+		allRules.add(rule);
+
+		int star = pattern.indexOf('*');
+		if (star < 0 && pattern.indexOf('?') < 0) {
+			fieldRules.exact.put(pattern, rule);
+		} else if (star == pattern.length() - 1 && pattern.indexOf('?') < 0) {
+			Node node = fieldRules.prefixes;
+			for (int i = 0; i < star; i++) {
+				Node child = node.children.get(pattern.charAt(i));
+				if (null == child) {
+					child = new Node();
+					node.children.put(pattern.charAt(i), child);
+				}
+				node = child;
+			}
+			if (null == node.rule) {
+				node.rule = rule;
+			}
+		} else {
+			fieldRules.globs.add(Pattern.compile(toRegex(pattern)));
+			fieldRules.globRules.add(rule);
+		}
+		return true;
+	}
+
+	private static String toRegex(String glob) {
+		StringBuilder sb = new StringBuilder();
+		StringBuilder literal = new StringBuilder();
+		for (char c : glob.toCharArray()) {
+			if ('*' != c && '?' != c) {
+				literal.append(c);
+				continue;
+			}
+			if (literal.length() > 0) {
+				sb.append(Pattern.quote(literal.toString()));
+				literal.setLength(0);
+			}
+			sb.append('*' == c ? ".*" : ".");
+		}
+		if (literal.length() > 0) {
+			sb.append(Pattern.quote(literal.toString()));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Whether an event with the value is noise. The drop counter of the
+	 * matched rule is incremented.
+	 *
+	 * @param field
+	 *            PROCESS, ACCOUNT or SERVICE
+	 * @param value
+	 *            value of the field in lower case
+	 * @return true if the event should be dropped
+	 */
+	public boolean isNoise(Field field, String value) {
+		Rules fieldRules = rules.get(field);
+		if (null == fieldRules || value.isEmpty()) {
+			return false;
+		}
+		Rule rule = match(fieldRules, value);
+		if (null == rule) {
+			return false;
+		}
+		rule.drops++;
+		return true;
+	}
+
+	private static Rule match(Rules fieldRules, String value) {
+		Rule rule = fieldRules.exact.get(value);
+		if (null != rule) {
+			return rule;
+		}
+		// 最も短い一致するプレフィックス
+		Node node = fieldRules.prefixes;
+		for (int i = 0; ; i++) {
+			if (null != node.rule) {
+				return node.rule;
+			}
+			if (i == value.length()) {
+				break;
+			}
+			node = node.children.get(value.charAt(i));
+			if (null == node) {
+				break;
+			}
+		}
+		for (int i = 0; i < fieldRules.globs.size(); i++) {
+			if (fieldRules.globs.get(i).matcher(value).matches()) {
+				return fieldRules.globRules.get(i);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return rules in the order of the filter file
+	 */
+	public List<Rule> getRules() {
+		return allRules;
+	}
+
+	/**
+	 * Clear the drop counters, e.g. before a job of the daemon
+	 */
+	public void resetDrops() {
+		for (Rule rule : allRules) {
+			rule.drops = 0;
+		}
+	}
+
+	/**
+	 * Print the number of events each rule dropped
+	 */
+	public void printDrops() {
+		long total = 0;
+		for (Rule rule : allRules) {
+			total += rule.getDrops();
+		}
+		System.out.println("Noise events dropped: " + total);
+		for (Rule rule : allRules) {
+			System.out.println("  " + rule.getText() + ": " + rule.getDrops());
+		}
+	}
+}
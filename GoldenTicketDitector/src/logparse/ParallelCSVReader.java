@@ -0,0 +1,242 @@
+package logparse;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Tokenize one large CSV file exported from event log on several threads.
+ *
+ * The file is split into byte ranges. A range owns the records whose header
+ * line starts in the range: a worker skips lines up to the first record
+ * header, and reads past the end of the range up to the next record header.
+ * So every record is tokenized by exactly one worker, with all of its
+ * continuation lines.
+ *
+ * Tokens of each range are passed to the caller in file order on the calling
+ * thread. State which carries over lines (account name, timeCnt etc.) is
+ * applied there, so the result is the same as a serial parse.
+ *
+ * @version 1.0
+ */
+public class ParallelCSVReader<T> {
+
+	// Default size of a range(KB)
+	protected static final int DEFAULT_RANGE_KB = 64 * 1024;
+
+	/**
+	 * Tokenizer of lines in one range. Called on a worker thread.
+	 */
+	public interface Tokenizer<T> {
+		T tokenize(String line);
+	}
+
+	public interface TokenizerFactory<T> {
+		/**
+		 * @return tokenizer for a new range, which starts at a record header
+		 */
+		Tokenizer<T> newTokenizer();
+	}
+
+	public interface RangeConsumer<T> {
+		/**
+		 * Called on the thread of read() in file order
+		 *
+		 * @param tokens
+		 *            tokens of lines of one range
+		 */
+		void accept(List<T> tokens);
+	}
+
+	private final File file;
+	private final Charset charset;
+	private final int threads;
+	private final long rangeSize;
+
+	/**
+	 * @param file
+	 *            CSV file
+	 * @param charset
+	 *            charset of the file
+	 * @param threads
+	 *            number of worker threads
+	 * @param rangeSize
+	 *            size of a range(byte)
+	 */
+	public ParallelCSVReader(File file, Charset charset, int threads, long rangeSize) {
+		this.file = file;
+		this.charset = charset;
+		this.threads = threads;
+		this.rangeSize = Math.max(1, rangeSize);
+	}
+
+	/**
+	 * Whether a file in the charset can be split at '\n' bytes. Byte 0x0A
+	 * never appears in a multibyte character of UTF-8, Shift_JIS, EUC-JP etc.,
+	 * but it does in UTF-16 and UTF-32.
+	 *
+	 * @param charset
+	 * @return true if the file can be split
+	 */
+	public static boolean canSplit(Charset charset) {
+		String name = charset.name().toUpperCase();
+		return !name.startsWith("UTF-16") && !name.startsWith("UTF-32")
+				&& Arrays.equals(new byte[] { '\n' }, "\n".getBytes(charset));
+	}
+
+	/**
+	 * Tokenize all ranges
+	 *
+	 * @param factory
+	 * @param consumer
+	 * @throws IOException
+	 */
+	public void read(final TokenizerFactory<T> factory, RangeConsumer<T> consumer) throws IOException {
+		long length = file.length();
+		long rangeNum = (length + rangeSize - 1) / rangeSize;
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			// 先読みするレンジ数を制限し、メモリ使用量を抑える
+			Deque<Future<List<T>>> inFlight = new ArrayDeque<Future<List<T>>>();
+			long next = 0;
+			while (next < rangeNum || !inFlight.isEmpty()) {
+				while (next < rangeNum && inFlight.size() < threads * 2) {
+					final long start = next * rangeSize;
+					final long end = Math.min(length, start + rangeSize);
+					inFlight.add(pool.submit(new Callable<List<T>>() {
+						@Override
+						public List<T> call() throws IOException {
+							return readRange(start, end, factory.newTokenizer());
+						}
+					}));
+					next++;
+				}
+				consumer.accept(inFlight.poll().get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			} else if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private List<T> readRange(long start, long end, Tokenizer<T> tokenizer) throws IOException {
+		List<T> tokens = new ArrayList<T>();
+		FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			LineScanner scanner = new LineScanner(ch, start > 0 ? start - 1 : 0);
+			if (start > 0) {
+				// レンジの途中から始まる行は前のレンジで処理する
+				scanner.nextLine();
+			}
+			boolean started = (0 == start);
+			while (true) {
+				long lineStart = scanner.offset;
+				String line = scanner.nextLine();
+				if (null == line) {
+					break;
+				}
+				boolean isHeader = TimeOrderedEventReader.isHeader(line);
+				if (isHeader && lineStart >= end) {
+					// 次のレンジのレコード
+					break;
+				}
+				if (!started) {
+					if (!isHeader) {
+						// 前のレンジのレコードの続き
+						continue;
+					}
+					started = true;
+				}
+				// BufferedReader.readLine()と同様に、単独の'\r'でも行を分ける
+				if (line.indexOf('\r') >= 0) {
+					for (String subLine : line.split("\r", -1)) {
+						tokens.add(tokenizer.tokenize(subLine));
+					}
+				} else {
+					tokens.add(tokenizer.tokenize(line));
+				}
+			}
+		} finally {
+			ch.close();
+		}
+		return tokens;
+	}
+
+	/**
+	 * Read lines separated by '\n' from a position of a file
+	 */
+	private class LineScanner {
+		private final FileChannel ch;
+		private final ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+		private byte[] line = new byte[1024];
+
+		// Offset of the next line
+		long offset;
+
+		LineScanner(FileChannel ch, long offset) throws IOException {
+			this.ch = ch;
+			this.offset = offset;
+			ch.position(offset);
+			buf.flip();
+		}
+
+		/**
+		 * @return line without '\n' and trailing '\r', or null at the end of
+		 *         file
+		 */
+		String nextLine() throws IOException {
+			int len = 0;
+			boolean eof = false;
+			while (true) {
+				if (!buf.hasRemaining()) {
+					buf.clear();
+					int n = ch.read(buf);
+					buf.flip();
+					if (n < 0) {
+						eof = true;
+						break;
+					}
+					continue;
+				}
+				byte b = buf.get();
+				offset++;
+				if ('\n' == b) {
+					break;
+				}
+				if (len == line.length) {
+					line = Arrays.copyOf(line, len * 2);
+				}
+				line[len++] = b;
+			}
+			if (eof && 0 == len) {
+				return null;
+			}
+			if (len > 0 && '\r' == line[len - 1]) {
+				len--;
+			}
+			return new String(line, 0, len, charset);
+		}
+	}
+}
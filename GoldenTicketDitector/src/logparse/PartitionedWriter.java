@@ -0,0 +1,162 @@
+package logparse;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Output file split into partitions by account, each written by its own
+ * thread. Items of the same account always go to the same partition in the
+ * order they are written, so each partition file is deterministic.
+ *
+ * Partition i of "result.csv" is "result-i.csv", and each partition file has
+ * the header line. concat() joins the partitions into one file in partition
+ * order.
+ *
+ * @version 1.0
+ */
+public class PartitionedWriter<T> {
+
+	/**
+	 * Writes an item to a partition file. Called on the thread of the
+	 * partition.
+	 */
+	public interface Formatter<T> {
+		void write(T item, PrintWriter out);
+	}
+
+	private final List<File> files;
+	private final List<PrintWriter> writers;
+	private final List<StageQueue<T>> queues;
+	private final List<Thread> threads;
+	private final int headerLength;
+
+	/**
+	 * Open partition files and start a writer thread for each partition
+	 *
+	 * @param file
+	 *            output file, e.g. "result.csv"
+	 * @param header
+	 *            header line of the output
+	 * @param partitions
+	 *            number of partitions
+	 * @param queueSize
+	 *            items waiting to be written per partition
+	 * @param formatter
+	 * @throws IOException
+	 */
+	public PartitionedWriter(File file, String header, int partitions, int queueSize, final Formatter<T> formatter)
+			throws IOException {
+		int n = Math.max(1, partitions);
+		this.files = new ArrayList<File>(n);
+		this.writers = new ArrayList<PrintWriter>(n);
+		this.queues = new ArrayList<StageQueue<T>>(n);
+		this.threads = new ArrayList<Thread>(n);
+		this.headerLength = (header + System.lineSeparator()).getBytes(Charset.defaultCharset()).length;
+
+		String name = file.getName();
+		int dot = name.lastIndexOf('.');
+		String base = dot < 0 ? name : name.substring(0, dot);
+		String ext = dot < 0 ? "" : name.substring(dot);
+		for (int i = 0; i < n; i++) {
+			File partFile = new File(file.getParentFile(), base + "-" + i + ext);
+			PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(partFile)));
+			writer.println(header);
+			files.add(partFile);
+			writers.add(writer);
+			queues.add(new StageQueue<T>(queueSize));
+		}
+		for (int i = 0; i < n; i++) {
+			final StageQueue<T> queue = queues.get(i);
+			final PrintWriter out = writers.get(i);
+			threads.add(StageQueue.start("output-" + i, new Runnable() {
+				@Override
+				public void run() {
+					T item;
+					while ((item = queue.take()) != null) {
+						formatter.write(item, out);
+					}
+				}
+			}, queue));
+		}
+	}
+
+	/**
+	 * Write an item to the partition of the account
+	 *
+	 * @param accountName
+	 * @param item
+	 */
+	public void write(String accountName, T item) {
+		queues.get(partition(accountName)).put(item);
+	}
+
+	private int partition(String accountName) {
+		// String.hashCode()は仕様で決まっているので、実行ごとに同じ分割になる
+		return (accountName.hashCode() & Integer.MAX_VALUE) % queues.size();
+	}
+
+	/**
+	 * Wait for all items to be written, and close partition files
+	 */
+	public void close() {
+		try {
+			for (StageQueue<T> queue : queues) {
+				queue.close();
+			}
+			// 書き込みに失敗したパーティションがあれば例外を投げる
+			StageQueue.join(threads.toArray(new Thread[threads.size()]));
+		} finally {
+			for (PrintWriter writer : writers) {
+				writer.close();
+			}
+		}
+	}
+
+	/**
+	 * Stop the writer threads because the producer failed
+	 *
+	 * @param cause
+	 */
+	public void abort(Throwable cause) {
+		for (StageQueue<T> queue : queues) {
+			queue.abort(cause);
+		}
+	}
+
+	/**
+	 * Join partition files into one file, with one header line, and delete
+	 * the partition files. Call after close().
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public void concat(File file) throws IOException {
+		FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			for (int i = 0; i < files.size(); i++) {
+				FileChannel in = FileChannel.open(files.get(i).toPath(), StandardOpenOption.READ);
+				try {
+					// 2つ目以降のファイルはヘッダを飛ばす
+					long pos = 0 == i ? 0 : headerLength;
+					long size = in.size();
+					while (pos < size) {
+						pos += in.transferTo(pos, size - pos, out);
+					}
+				} finally {
+					in.close();
+				}
+			}
+		} finally {
+			out.close();
+		}
+		for (File f : files) {
+			Files.delete(f.toPath());
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package logparse;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache from a process path to the attributes the detection rules
+ * check, so that the path is split and searched once per distinct path
+ * instead of once per event.
+ *
+ * Whether the command is suspicious depends on the suspicious command list,
+ * so the cache is cleared when a new snapshot of the list is given. Not
+ * thread safe: used by the thread which evaluates accounts.
+ *
+ * @version 1.0
+ */
+public class ProcessInfoCache {
+
+	public static final int DEFAULT_MAX_SIZE = 4096;
+
+	private static final String SYSTEM_DIR = "c:\\windows";
+
+	/**
+	 * Attributes of a process path
+	 */
+	public static final class ProcessInfo {
+		private final String commandName;
+		private final boolean systemDir;
+		private final boolean suspicious;
+
+		private ProcessInfo(String commandName, boolean systemDir, boolean suspicious) {
+			this.commandName = commandName;
+			this.systemDir = systemDir;
+			this.suspicious = suspicious;
+		}
+
+		/**
+		 * @return file name of the command, e.g. "net.exe"
+		 */
+		public String getCommandName() {
+			return commandName;
+		}
+
+		/**
+		 * @return true if the path is in the system directory(c:\windows)
+		 */
+		public boolean isSystemDir() {
+			return systemDir;
+		}
+
+		/**
+		 * @return true if the command is in the suspicious command list
+		 */
+		public boolean isSuspicious() {
+			return suspicious;
+		}
+	}
+
+	private final Map<String, ProcessInfo> cache;
+
+	// Suspicious command list the cached entries were computed with
+	private ReloadableList.Snapshot cmds = null;
+
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * @param maxSize
+	 *            number of process paths kept
+	 */
+	public ProcessInfoCache(final int maxSize) {
+		this.cache = new LinkedHashMap<String, ProcessInfo>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, ProcessInfo> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Get attributes of a process path
+	 *
+	 * @param processName
+	 *            process path in lower case
+	 * @param cmds
+	 *            suspicious command list used for this evaluation
+	 * @return ProcessInfo
+	 */
+	public ProcessInfo get(String processName, ReloadableList.Snapshot cmds) {
+		if (cmds != this.cmds) {
+			// リストが再読み込みされたので、計算し直す
+			cache.clear();
+			this.cmds = cmds;
+		}
+		ProcessInfo info = cache.get(processName);
+		if (null != info) {
+			hits++;
+			return info;
+		}
+		misses++;
+		String command[] = processName.split("\\\\");
+		String commandName = "";
+		if (null != command) {
+			commandName = command[command.length - 1];
+		}
+		info = new ProcessInfo(commandName, processName.contains(SYSTEM_DIR), cmds.contains(commandName));
+		cache.put(processName, info);
+		return info;
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+}
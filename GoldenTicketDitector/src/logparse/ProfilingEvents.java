@@ -0,0 +1,170 @@
+package logparse;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * JDK Flight Recorder events of GoldenTicketDetector, to find the input file
+ * or the account which makes a run slow. Record a run with
+ * -XX:StartFlightRecording and open the recording in JDK Mission Control.
+ *
+ * The project is built for Java 8, which has no jdk.jfr, so the events are
+ * defined at run time by jdk.jfr.EventFactory(JDK 9 or later) through
+ * reflection. On a JRE without it, isAvailable() is false and no event is
+ * recorded. Events are passed as Object to keep jdk.jfr types out of the
+ * callers.
+ *
+ * @version 1.0
+ */
+public class ProfilingEvents {
+
+	private static final String CATEGORY = "Golden Ticket Detector";
+
+	// jdk.jfr.EventFactory of each event, null if JFR is not available
+	private static Object fileParse = null;
+	private static Object accountEvaluation = null;
+
+	private static Method newEvent;
+	private static Method begin;
+	private static Method end;
+	private static Method shouldCommit;
+	private static Method set;
+	private static Method commit;
+
+	static {
+		try {
+			Class<?> factory = Class.forName("jdk.jfr.EventFactory");
+			Class<?> event = Class.forName("jdk.jfr.Event");
+			newEvent = factory.getMethod("newEvent");
+			begin = event.getMethod("begin");
+			end = event.getMethod("end");
+			shouldCommit = event.getMethod("shouldCommit");
+			set = event.getMethod("set", int.class, Object.class);
+			commit = event.getMethod("commit");
+
+			// フィールドの順序はendFile()、endAccount()のset()の番号と合わせる
+			fileParse = create(factory, "logparse.FileParse", "File Parse", "Reading and parsing of one input file",
+					field(String.class, "path", "Path", null, false),
+					field(long.class, "bytes", "Bytes", null, true),
+					field(long.class, "records", "Records", null, false),
+					field(long.class, "targetRecords", "Target Records", "Records of event IDs used for detection",
+							false));
+			accountEvaluation = create(factory, "logparse.AccountEvaluation", "Account Evaluation",
+					"Detection of one account",
+					field(String.class, "account", "Account", null, false),
+					field(int.class, "events", "Events", null, false),
+					field(int.class, "computers", "Computers", null, false));
+		} catch (ClassNotFoundException e) {
+			// JFRのないJRE
+		} catch (ReflectiveOperationException e) {
+			e.printStackTrace();
+			fileParse = null;
+			accountEvaluation = null;
+		}
+	}
+
+	/**
+	 * @return true if the JRE can record the events
+	 */
+	public static boolean isAvailable() {
+		return null != fileParse && null != accountEvaluation;
+	}
+
+	private static Object annotation(String type, Object value) throws ReflectiveOperationException {
+		Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement");
+		Constructor<?> constructor = annotationElement.getConstructor(Class.class, Object.class);
+		return constructor.newInstance(Class.forName("jdk.jfr." + type), value);
+	}
+
+	/**
+	 * @return jdk.jfr.ValueDescriptor of a field of an event
+	 */
+	private static Object field(Class<?> type, String name, String label, String description, boolean dataAmount)
+			throws ReflectiveOperationException {
+		List<Object> annotations = new ArrayList<Object>();
+		annotations.add(annotation("Label", label));
+		if (null != description) {
+			annotations.add(annotation("Description", description));
+		}
+		if (dataAmount) {
+			annotations.add(annotation("DataAmount", "BYTES"));
+		}
+		Constructor<?> constructor = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class,
+				String.class, List.class);
+		return constructor.newInstance(type, name, annotations);
+	}
+
+	/**
+	 * @return jdk.jfr.EventFactory of an event
+	 */
+	private static Object create(Class<?> factory, String name, String label, String description, Object... fields)
+			throws ReflectiveOperationException {
+		List<Object> annotations = new ArrayList<Object>();
+		annotations.add(annotation("Name", name));
+		annotations.add(annotation("Label", label));
+		annotations.add(annotation("Description", description));
+		annotations.add(annotation("Category", new String[] { CATEGORY }));
+		annotations.add(annotation("StackTrace", false));
+		return factory.getMethod("create", List.class, List.class).invoke(null, annotations, Arrays.asList(fields));
+	}
+
+	private static Object beginEvent(Object eventFactory) {
+		if (null == eventFactory) {
+			return null;
+		}
+		try {
+			Object ev = newEvent.invoke(eventFactory);
+			begin.invoke(ev);
+			return ev;
+		} catch (ReflectiveOperationException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	private static void endEvent(Object ev, Object... values) {
+		if (null == ev) {
+			return;
+		}
+		try {
+			end.invoke(ev);
+			if ((Boolean) shouldCommit.invoke(ev)) {
+				for (int i = 0; i < values.length; i++) {
+					set.invoke(ev, i, values[i]);
+				}
+				commit.invoke(ev);
+			}
+		} catch (ReflectiveOperationException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Start timing a file
+	 *
+	 * @return event to pass to endFile(), or null if JFR is not available
+	 */
+	public static Object beginFile() {
+		return beginEvent(fileParse);
+	}
+
+	public static void endFile(Object event, String path, long bytes, long records, long targetRecords) {
+		endEvent(event, path, bytes, records, targetRecords);
+	}
+
+	/**
+	 * Start timing an account
+	 *
+	 * @return event to pass to endAccount(), or null if JFR is not available
+	 */
+	public static Object beginAccount() {
+		return beginEvent(accountEvaluation);
+	}
+
+	public static void endAccount(Object event, String account, int events, int computers) {
+		endEvent(event, account, events, computers);
+	}
+}
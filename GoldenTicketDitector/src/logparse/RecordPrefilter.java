@@ -0,0 +1,321 @@
+package logparse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Byte level filter of a CSV file exported from event log, which drops records
+ * of non-target event IDs before they are decoded into Strings.
+ *
+ * A line is a record header if it contains
+ * "Microsoft-Windows-Security-Auditing,"(tabs are ignored), the same rule as
+ * readCSV and parseLine use. A record is kept if its header contains one of
+ * the target event IDs, and the record's following lines are kept or dropped
+ * with it. Lines before the first header are dropped, as the parser skips
+ * them.
+ *
+ * Lines, tabs and the header are searched 8 bytes at a time in a long(SWAR).
+ * The filter works on the bytes of the file, so it can be used only for a
+ * charset in which '\n' and ',' never appear in a multibyte character(see
+ * {@link #canFilter(Charset)}). Digits are not trail bytes of Shift_JIS
+ * either, so the event ID check is also safe. 'M' can be a trail byte, so a
+ * Shift_JIS character ending with it and followed by
+ * "icrosoft-Windows-Security-Auditing," would be taken as a header, which the
+ * parser would not do.
+ *
+ * @version 1.0
+ */
+public class RecordPrefilter extends InputStream {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final Charset US_ASCII = Charset.forName("US-ASCII");
+	private static final byte HEADER[] = "Microsoft-Windows-Security-Auditing,".getBytes(US_ASCII);
+
+	private static final long ONES = 0x0101010101010101L;
+	private static final long HIGHS = 0x8080808080808080L;
+	private static final long NEWLINES = ONES * '\n';
+	private static final long HEADER_FIRSTS = ONES * HEADER[0];
+	private static final long TABS = ONES * '\t';
+
+	private final InputStream in;
+	// 4桁のイベントIDごとに対象かどうか
+	private final boolean targets[] = new boolean[10000];
+
+	// Bytes read and not filtered yet
+	private byte buf[] = new byte[BUFFER_SIZE];
+	private int start = 0;
+	private int end = 0;
+	private boolean eof = false;
+
+	// Bytes of kept lines
+	private byte out[] = new byte[BUFFER_SIZE];
+	private int outPos = 0;
+	private int outLen = 0;
+
+	// Lines without tabs, to find a header
+	private byte scratch[] = new byte[256];
+
+	// Whether lines of the current record are kept
+	private boolean keep = false;
+
+	private long bytesRead = 0;
+	private long records = 0;
+	private long targetRecords = 0;
+
+	/**
+	 * @param in
+	 *            CSV file
+	 * @param targetEventIDs
+	 *            event IDs to keep(0 - 9999)
+	 */
+	public RecordPrefilter(InputStream in, int... targetEventIDs) {
+		this.in = in;
+		for (int eventID : targetEventIDs) {
+			if (eventID < 0 || eventID >= targets.length) {
+				throw new IllegalArgumentException("Event ID must be 4 digits: " + eventID);
+			}
+			targets[eventID] = true;
+		}
+	}
+
+	/**
+	 * Whether files in the charset can be filtered
+	 *
+	 * @param charset
+	 * @return true if the header is encoded as ASCII, and '\n' and ',' never
+	 *         appear in a multibyte character
+	 */
+	public static boolean canFilter(Charset charset) {
+		return ParallelCSVReader.canSplit(charset)
+				&& Arrays.equals(HEADER, new String(HEADER, US_ASCII).getBytes(charset));
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (outPos == outLen && !fill()) {
+			return -1;
+		}
+		return out[outPos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte b[], int off, int len) throws IOException {
+		if (0 == len) {
+			return 0;
+		}
+		if (outPos == outLen && !fill()) {
+			return -1;
+		}
+		int n = Math.min(len, outLen - outPos);
+		System.arraycopy(out, outPos, b, off, n);
+		outPos += n;
+		return n;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * Filter lines until some bytes are kept or the input ends
+	 *
+	 * @return false at the end of the input
+	 */
+	private boolean fill() throws IOException {
+		outPos = 0;
+		outLen = 0;
+		while (0 == outLen) {
+			// 完全な行を処理する
+			int nl;
+			while ((nl = indexOf(buf, start, end, NEWLINES)) >= 0) {
+				filterLine(start, nl + 1);
+				start = nl + 1;
+			}
+			if (eof) {
+				if (start < end) {
+					// 改行のない最終行
+					filterLine(start, end);
+					start = end;
+				}
+				return outLen > 0;
+			}
+			// 残りを先頭に寄せて続きを読む
+			if (start > 0) {
+				System.arraycopy(buf, start, buf, 0, end - start);
+				end -= start;
+				start = 0;
+			}
+			if (end == buf.length) {
+				byte grown[] = new byte[buf.length * 2];
+				System.arraycopy(buf, 0, grown, 0, end);
+				buf = grown;
+			}
+			int n = in.read(buf, end, buf.length - end);
+			if (n < 0) {
+				eof = true;
+			} else {
+				end += n;
+				bytesRead += n;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Decide whether a line is kept and copy it to the output
+	 *
+	 * @param from
+	 *            start of the line
+	 * @param to
+	 *            end of the line, including the line terminator
+	 */
+	private void filterLine(int from, int to) {
+		boolean isHeader;
+		if (indexOf(buf, from, to, TABS) < 0) {
+			isHeader = isHeader(buf, from, to);
+			if (isHeader) {
+				keep = isTarget(buf, from, to);
+			}
+		} else {
+			// タブを取り除いてから判定する
+			int len = removeTabs(from, to);
+			isHeader = isHeader(scratch, 0, len);
+			if (isHeader) {
+				keep = isTarget(scratch, 0, len);
+			}
+		}
+		if (isHeader) {
+			records++;
+			if (keep) {
+				targetRecords++;
+			}
+		}
+		if (!keep) {
+			return;
+		}
+		int len = to - from;
+		if (outLen + len > out.length) {
+			byte grown[] = new byte[Math.max(out.length * 2, outLen + len)];
+			System.arraycopy(out, 0, grown, 0, outLen);
+			out = grown;
+		}
+		System.arraycopy(buf, from, out, outLen, len);
+		outLen += len;
+	}
+
+	private int removeTabs(int from, int to) {
+		if (scratch.length < to - from) {
+			scratch = new byte[to - from];
+		}
+		int len = 0;
+		for (int i = from; i < to; i++) {
+			if ('\t' != buf[i]) {
+				scratch[len++] = buf[i];
+			}
+		}
+		return len;
+	}
+
+	/**
+	 * Whether the line contains the header, as String.contains() does
+	 */
+	private static boolean isHeader(byte b[], int from, int to) {
+		int i = from;
+		// ヘッダの先頭の文字を探してから比較する
+		while ((i = indexOf(b, i, to - HEADER.length + 1, HEADER_FIRSTS)) >= 0) {
+			if (startsWith(b, i, to)) {
+				return true;
+			}
+			i++;
+		}
+		return false;
+	}
+
+	private static boolean startsWith(byte b[], int from, int to) {
+		if (to - from < HEADER.length) {
+			return false;
+		}
+		for (int i = 0; i < HEADER.length; i++) {
+			if (b[from + i] != HEADER[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Whether the line contains a target event ID, as String.contains() does
+	 */
+	private boolean isTarget(byte b[], int from, int to) {
+		int value = 0;
+		int digits = 0;
+		for (int i = from; i < to; i++) {
+			int d = b[i] - '0';
+			if (d < 0 || d > 9) {
+				digits = 0;
+				value = 0;
+				continue;
+			}
+			// 連続する数字の末尾4桁
+			value = (value * 10 + d) % 10000;
+			if (++digits >= 4 && targets[value]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Find a byte, 8 bytes at a time
+	 *
+	 * @param b
+	 * @param from
+	 * @param to
+	 * @param pattern
+	 *            the byte repeated 8 times
+	 * @return index, or -1 if not found
+	 */
+	private static int indexOf(byte b[], int from, int to, long pattern) {
+		int i = from;
+		for (; i + 8 <= to; i += 8) {
+			long word = (b[i] & 0xffL) | (b[i + 1] & 0xffL) << 8 | (b[i + 2] & 0xffL) << 16
+					| (b[i + 3] & 0xffL) << 24 | (b[i + 4] & 0xffL) << 32 | (b[i + 5] & 0xffL) << 40
+					| (b[i + 6] & 0xffL) << 48 | (b[i + 7] & 0xffL) << 56;
+			long x = word ^ pattern;
+			// 0になったバイトの最上位ビットが立つ(最初のもの以降は誤検出がありうる)
+			long found = (x - ONES) & ~x & HIGHS;
+			if (0 != found) {
+				return i + (Long.numberOfTrailingZeros(found) >>> 3);
+			}
+		}
+		byte target = (byte) pattern;
+		for (; i < to; i++) {
+			if (target == b[i]) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	/**
+	 * @return number of record headers seen
+	 */
+	public long getRecords() {
+		return records;
+	}
+
+	/**
+	 * @return number of records kept
+	 */
+	public long getTargetRecords() {
+		return targetRecords;
+	}
+}
@@ -0,0 +1,161 @@
+package logparse;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * List file(admin list, suspicious command list) held as an immutable hashed
+ * snapshot. When the file is changed on disk, a new snapshot is loaded and
+ * swapped in at once, so readers never see a half-loaded list and need no
+ * lock.
+ *
+ * A reader should get the snapshot once per evaluation and use it throughout.
+ *
+ * @version 1.0
+ */
+public class ReloadableList {
+
+	/**
+	 * Immutable content of a list file
+	 */
+	public static final class Snapshot {
+		private final Set<String> items;
+		private final int lineCount;
+
+		private Snapshot(Set<String> items, int lineCount) {
+			this.items = Collections.unmodifiableSet(items);
+			this.lineCount = lineCount;
+		}
+
+		public boolean contains(String item) {
+			return items.contains(item);
+		}
+
+		/**
+		 * @return number of lines of the file, including duplicates
+		 */
+		public int size() {
+			return lineCount;
+		}
+	}
+
+	private final File file;
+	private volatile Snapshot snapshot;
+
+	// File status of the current snapshot
+	private long lastModified;
+	private long length;
+
+	/**
+	 * Load a list file
+	 *
+	 * @param filename
+	 */
+	public ReloadableList(String filename) {
+		this.file = new File(filename);
+		this.snapshot = new Snapshot(new HashSet<String>(), 0);
+		reload();
+	}
+
+	/**
+	 * Empty list which is not read from a file, e.g. when no admin list is
+	 * given
+	 *
+	 * @return ReloadableList
+	 */
+	public static ReloadableList empty() {
+		return new ReloadableList(new File(""));
+	}
+
+	private ReloadableList(File file) {
+		this.file = file;
+		this.snapshot = new Snapshot(new HashSet<String>(), 0);
+	}
+
+	/**
+	 * @return current snapshot
+	 */
+	public Snapshot get() {
+		return snapshot;
+	}
+
+	/**
+	 * Load the file again if it is changed on disk
+	 *
+	 * @return true if reloaded
+	 */
+	public synchronized boolean reloadIfChanged() {
+		if (file.lastModified() == lastModified && file.length() == length) {
+			return false;
+		}
+		return reload();
+	}
+
+	private synchronized boolean reload() {
+		long modified = file.lastModified();
+		long len = file.length();
+		Set<String> items = new HashSet<String>();
+		int lineCount = 0;
+		BufferedReader br = null;
+		try {
+			br = new BufferedReader(new FileReader(file));
+			String line;
+			while ((line = br.readLine()) != null) {
+				items.add(line);
+				lineCount++;
+			}
+		} catch (IOException e) {
+			// 読み込めなかった場合は現在のリストを使い続ける
+			e.printStackTrace();
+			return false;
+		} finally {
+			if (null != br) {
+				try {
+					br.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		this.snapshot = new Snapshot(items, lineCount);
+		this.lastModified = modified;
+		this.length = len;
+		return true;
+	}
+
+	/**
+	 * Start a daemon thread which reloads changed lists
+	 *
+	 * @param intervalMsec
+	 *            interval to check the files
+	 * @param lists
+	 * @return started thread
+	 */
+	public static Thread watch(final long intervalMsec, final ReloadableList... lists) {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (true) {
+					try {
+						Thread.sleep(intervalMsec);
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (ReloadableList list : lists) {
+						if (list.reloadIfChanged()) {
+							System.out.println("Reloaded " + list.file + " (" + list.get().size() + " lines)");
+						}
+					}
+				}
+			}
+		}, "reload");
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+}
@@ -0,0 +1,223 @@
+package logparse;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded queue between two stages which run on different threads. A producer
+ * blocks while the queue is full, so a fast stage never gets ahead of a slow
+ * one by more than the capacity of the queue.
+ *
+ * The producer calls close() after the last item, and take() returns null
+ * after that. If either stage fails, abort() releases the other stage, and
+ * join() rethrows the failure to the thread which waits for the stages.
+ *
+ * @version 1.0
+ */
+public class StageQueue<T> {
+
+	private static final Object END = new Object();
+	private static final long POLL_MSEC = 100;
+
+	private final BlockingQueue<Object> queue;
+	private volatile boolean aborted = false;
+	// Failure of the stage which aborted the queue
+	private volatile Throwable cause = null;
+
+	/**
+	 * @param capacity
+	 *            number of items the queue holds
+	 */
+	public StageQueue(int capacity) {
+		this.queue = new ArrayBlockingQueue<Object>(Math.max(1, capacity));
+	}
+
+	/**
+	 * Add an item. Blocks while the queue is full.
+	 *
+	 * @param item
+	 */
+	public void put(T item) {
+		offer(item);
+	}
+
+	/**
+	 * Add an item if the queue has space. Does not block.
+	 *
+	 * @param item
+	 * @return false if the queue is full
+	 */
+	public boolean tryPut(T item) {
+		if (aborted) {
+			throw aborted();
+		}
+		return queue.offer(item);
+	}
+
+	/**
+	 * Notify the consumer that no more items are added
+	 */
+	public void close() {
+		offer(END);
+	}
+
+	private void offer(Object item) {
+		try {
+			while (!queue.offer(item, POLL_MSEC, TimeUnit.MILLISECONDS)) {
+				if (aborted) {
+					throw aborted();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Pipeline interrupted", e);
+		}
+	}
+
+	/**
+	 * Take an item. Blocks while the queue is empty.
+	 *
+	 * @return item, or null when the producer closed the queue
+	 */
+	@SuppressWarnings("unchecked")
+	public T take() {
+		try {
+			while (true) {
+				Object item = queue.poll(POLL_MSEC, TimeUnit.MILLISECONDS);
+				if (END == item) {
+					return null;
+				} else if (null != item) {
+					return (T) item;
+				} else if (aborted) {
+					throw aborted();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Pipeline interrupted", e);
+		}
+	}
+
+	/**
+	 * Take an item if one arrives within the time
+	 *
+	 * @param msec
+	 *            time to wait
+	 * @return item, or null when no item arrived or the producer closed the
+	 *         queue
+	 */
+	@SuppressWarnings("unchecked")
+	public T poll(long msec) {
+		if (aborted) {
+			throw aborted();
+		}
+		try {
+			Object item = queue.poll(msec, TimeUnit.MILLISECONDS);
+			return END == item ? null : (T) item;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Pipeline interrupted", e);
+		}
+	}
+
+	/**
+	 * Stop both stages because one of them failed
+	 *
+	 * @param cause
+	 *            failure of the stage
+	 */
+	public void abort(Throwable cause) {
+		if (null == this.cause) {
+			this.cause = cause;
+		}
+		aborted = true;
+		queue.clear();
+	}
+
+	private IllegalStateException aborted() {
+		return new IllegalStateException("Pipeline aborted", cause);
+	}
+
+	/**
+	 * Thread of a stage, which keeps the failure of the stage for join()
+	 */
+	private static class StageThread extends Thread {
+		private final Runnable stage;
+		private final StageQueue<?> queues[];
+		private volatile Throwable failure = null;
+
+		StageThread(String name, Runnable stage, StageQueue<?> queues[]) {
+			super(name);
+			this.stage = stage;
+			this.queues = queues;
+		}
+
+		@Override
+		public void run() {
+			try {
+				stage.run();
+			} catch (Throwable e) {
+				// Errorでも他のステージを止める。止められた側は元の失敗を持つ
+				Throwable cause = e;
+				for (StageQueue<?> queue : queues) {
+					if (null != queue.cause) {
+						cause = queue.cause;
+						break;
+					}
+				}
+				failure = cause;
+				for (StageQueue<?> queue : queues) {
+					queue.abort(cause);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Start a stage on a new thread. The queues are aborted if the stage
+	 * fails, and join() rethrows the failure.
+	 *
+	 * @param name
+	 *            thread name
+	 * @param stage
+	 * @param queues
+	 *            queues the stage reads or writes
+	 * @return started thread
+	 */
+	public static Thread start(String name, Runnable stage, StageQueue<?>... queues) {
+		Thread thread = new StageThread(name, stage, queues);
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Wait for stages to finish. If a stage failed, its failure is thrown
+	 * after all of them finished: an Error as it is, and other exceptions in
+	 * an IllegalStateException.
+	 *
+	 * @param threads
+	 */
+	public static void join(Thread... threads) {
+		Throwable failure = null;
+		for (Thread thread : threads) {
+			if (null == thread) {
+				continue;
+			}
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				e.printStackTrace();
+			}
+			if (null == failure && thread instanceof StageThread) {
+				failure = ((StageThread) thread).failure;
+			}
+		}
+		if (failure instanceof Error) {
+			throw (Error) failure;
+		} else if (null != failure) {
+			throw new IllegalStateException("Pipeline stage failed", failure);
+		}
+	}
+}
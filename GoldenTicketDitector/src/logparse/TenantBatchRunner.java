@@ -0,0 +1,316 @@
+package logparse;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Run GoldenTicketDetector for many domains(tenants) in one process, each
+ * with its own input directory, lists and options, on a shared pool of
+ * worker threads.
+ *
+ * A tenant is a line of the manifest file, "name,input dir,output dir,
+ * suspicious command list,admin list,options", where options are separated by
+ * spaces. Lines starting with '#' are comments.
+ *
+ * <pre>
+ * # name,input,output,command list,admin list,options
+ * tokyo,/logs/tokyo,/results/tokyo,command.txt,admin-tokyo.txt,--dedup --state=/state/tokyo.bin
+ * osaka,/logs/osaka,/results/osaka,command.txt,,
+ * </pre>
+ *
+ * Each tenant has its own detector, so no events or results are shared. A run
+ * of a tenant is split into steps(configure, read a file, detect and output),
+ * and at most one step of a tenant is queued at a time: when a step ends, the
+ * next step of the tenant is queued after the steps of the other tenants. A
+ * tenant with many large files does not hold the workers while the others
+ * wait.
+ *
+ * Messages of a tenant are written to "name.log" in the log directory.
+ *
+ * @version 1.0
+ */
+public class TenantBatchRunner {
+
+	/**
+	 * Tenant of the manifest and the progress of its run
+	 */
+	private static class Tenant {
+		final String name;
+		final String inputDir;
+		final String outputDir;
+		final String commandFile;
+		final String adminFile;
+		final Map<String, String> options;
+
+		final GoldenTicketDetector detector = new GoldenTicketDetector();
+		PrintStream out = null;
+		File files[] = null;
+		// Next file to read (-1: not configured)
+		int next = -1;
+		boolean failed = false;
+		long startTime = 0;
+		long elapsed = 0;
+
+		Tenant(String name, String inputDir, String outputDir, String commandFile, String adminFile,
+				Map<String, String> options) {
+			this.name = name;
+			this.inputDir = inputDir;
+			this.outputDir = outputDir;
+			this.commandFile = commandFile;
+			this.adminFile = adminFile;
+			this.options = options;
+		}
+
+		/**
+		 * Whether the tenant is read and detected in one step. Pipeline, merged
+		 * files and time partitions read all files together.
+		 */
+		boolean isSingleStep() {
+			return options.containsKey("pipeline") || options.containsKey("merge-files")
+					|| options.containsKey("time-partition");
+		}
+	}
+
+	/**
+	 * Output stream which writes to the log of the tenant whose step the
+	 * thread runs. Threads started by a step(pipeline stages) write to the
+	 * same log.
+	 */
+	private static class TenantOutput extends OutputStream {
+		private final PrintStream defaultOut;
+		private final InheritableThreadLocal<PrintStream> current = new InheritableThreadLocal<PrintStream>();
+
+		TenantOutput(PrintStream defaultOut) {
+			this.defaultOut = defaultOut;
+		}
+
+		void set(PrintStream out) {
+			current.set(out);
+		}
+
+		void remove() {
+			current.remove();
+		}
+
+		private PrintStream get() {
+			PrintStream out = current.get();
+			return null != out ? out : defaultOut;
+		}
+
+		@Override
+		public void write(int b) {
+			get().write(b);
+		}
+
+		@Override
+		public void write(byte b[], int off, int len) {
+			get().write(b, off, len);
+		}
+
+		@Override
+		public void flush() {
+			get().flush();
+		}
+	}
+
+	private final ExecutorService workers;
+	private final TenantOutput output;
+	private final PrintStream console;
+	private final File logDir;
+	private CountDownLatch remaining = null;
+
+	/**
+	 * @param threads
+	 *            number of worker threads
+	 * @param logDir
+	 *            directory for logs of tenants
+	 */
+	public TenantBatchRunner(int threads, File logDir) {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>());
+		// スレッドがテナントの出力先を引き継がないよう、先に作っておく
+		executor.prestartAllCoreThreads();
+		this.workers = executor;
+		this.console = System.out;
+		this.output = new TenantOutput(console);
+		this.logDir = logDir;
+	}
+
+	/**
+	 * Read a manifest file
+	 *
+	 * @param manifestFile
+	 * @return tenants in the order of the manifest
+	 * @throws IOException
+	 *             if the file cannot be read or has an invalid line
+	 */
+	private static List<Tenant> readManifest(File manifestFile) throws IOException {
+		List<Tenant> tenants = new ArrayList<Tenant>();
+		Set<String> names = new HashSet<String>();
+		BufferedReader br = new BufferedReader(new FileReader(manifestFile));
+		try {
+			String line;
+			int lineNo = 0;
+			while ((line = br.readLine()) != null) {
+				lineNo++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String elems[] = line.split(",", -1);
+				if (elems.length < 4 || elems[0].trim().isEmpty() || !names.add(elems[0].trim())) {
+					throw new IOException(manifestFile + ":" + lineNo + ": invalid tenant: " + line);
+				}
+				String adminFile = elems.length > 4 ? elems[4].trim() : "";
+				String options[] = elems.length > 5 ? elems[5].trim().split("\\s+") : new String[0];
+				tenants.add(new Tenant(elems[0].trim(), elems[1].trim(), elems[2].trim(), elems[3].trim(), adminFile,
+						AuthLogUtil.parseOptions(options)));
+			}
+		} finally {
+			br.close();
+		}
+		return tenants;
+	}
+
+	/**
+	 * Run all tenants and wait until they end
+	 *
+	 * @param tenants
+	 */
+	private void run(List<Tenant> tenants) throws InterruptedException {
+		remaining = new CountDownLatch(tenants.size());
+		PrintStream stream = new PrintStream(output, true);
+		System.setOut(stream);
+		System.setErr(stream);
+		try {
+			for (Tenant tenant : tenants) {
+				submit(tenant);
+			}
+			remaining.await();
+		} finally {
+			workers.shutdown();
+			System.setOut(console);
+			System.setErr(console);
+		}
+	}
+
+	private void submit(final Tenant tenant) {
+		workers.execute(new Runnable() {
+			@Override
+			public void run() {
+				boolean more = false;
+				output.set(tenant.out);
+				long start = System.currentTimeMillis();
+				try {
+					more = step(tenant);
+				} catch (Throwable e) {
+					e.printStackTrace();
+					tenant.failed = true;
+				} finally {
+					tenant.elapsed += System.currentTimeMillis() - start;
+					output.remove();
+				}
+				if (more) {
+					// 他のテナントの待っているステップの後に並べる
+					submit(tenant);
+				} else {
+					finish(tenant);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Run the next step of a tenant
+	 *
+	 * @param tenant
+	 * @return true if the tenant has more steps
+	 * @throws IOException
+	 */
+	private boolean step(Tenant tenant) throws IOException {
+		if (tenant.next < 0) {
+			tenant.startTime = System.currentTimeMillis();
+			tenant.out = new PrintStream(new FileOutputStream(new File(logDir, tenant.name + ".log")), true);
+			output.set(tenant.out);
+			console.println(tenant.name + ": started");
+			if (tenant.options.containsKey("listen") || tenant.options.containsKey("http")) {
+				System.out.println("--listen and --http are not supported in a manifest");
+				tenant.failed = true;
+				return false;
+			}
+			tenant.detector.configure(tenant.outputDir, tenant.commandFile, tenant.adminFile, tenant.options);
+			if (tenant.isSingleStep()) {
+				tenant.next = 0;
+				return true;
+			}
+			tenant.files = new File(tenant.inputDir).listFiles();
+			if (null == tenant.files) {
+				throw new IOException("Cannot read input directory: " + tenant.inputDir);
+			}
+			tenant.detector.beginBatch();
+			tenant.next = 0;
+			return true;
+		}
+		if (tenant.isSingleStep()) {
+			if (tenant.options.containsKey("time-partition")) {
+				String spoolDir = tenant.options.containsKey("sort-dir") ? tenant.options.get("sort-dir")
+						: tenant.outputDir;
+				tenant.detector.detectPartitioned(tenant.inputDir,
+						AuthLogUtil.getIntOption(tenant.options, "time-partition", 24) * 60 * 60 * 1000L, spoolDir);
+			} else {
+				tenant.detector.detectGolden(tenant.inputDir);
+			}
+			tenant.detector.report();
+			return false;
+		}
+		if (tenant.next < tenant.files.length) {
+			tenant.detector.readInputFile(tenant.files[tenant.next++]);
+			return true;
+		}
+		tenant.detector.endBatch();
+		tenant.detector.report();
+		return false;
+	}
+
+	private void finish(Tenant tenant) {
+		if (null != tenant.out) {
+			tenant.out.close();
+		}
+		console.println(tenant.name + ": " + (tenant.failed ? "failed" : "done") + " in "
+				+ (System.currentTimeMillis() - tenant.startTime) + " msec (" + tenant.elapsed + " msec running)");
+		remaining.countDown();
+	}
+
+	private static void printUseage() {
+		System.out.println("Useage");
+		System.out.println("{manifest file} (options)");
+		System.out.println("Options:");
+		System.out.println("  --threads=N            worker threads shared by tenants (default: number of processors)");
+		System.out.println("  --log-dir=path         directory for tenant logs (default: directory of the manifest)");
+	}
+
+	public static void main(String args[]) throws IOException, InterruptedException {
+		Map<String, String> options = AuthLogUtil.parseOptions(args);
+		args = AuthLogUtil.removeOptions(args);
+		if (args.length < 1) {
+			printUseage();
+			return;
+		}
+		File manifestFile = new File(args[0]).getAbsoluteFile();
+		List<Tenant> tenants = readManifest(manifestFile);
+		File logDir = options.containsKey("log-dir") ? new File(options.get("log-dir")) : manifestFile.getParentFile();
+		int threads = AuthLogUtil.getIntOption(options, "threads", Runtime.getRuntime().availableProcessors());
+		System.out.println("Tenants: " + tenants.size() + ", threads: " + threads);
+		long start = System.currentTimeMillis();
+		new TenantBatchRunner(Math.max(1, threads), logDir).run(tenants);
+		int failed = 0;
+		for (Tenant tenant : tenants) {
+			if (tenant.failed) {
+				failed++;
+			}
+		}
+		System.out.println("Done: " + (tenants.size() - failed) + " tenants, failed: " + failed + ", "
+				+ (System.currentTimeMillis() - start) + " msec");
+	}
+}
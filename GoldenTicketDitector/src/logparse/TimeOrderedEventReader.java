@@ -0,0 +1,171 @@
+package logparse;
+
+import java.io.*;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Merge CSV files exported from event log into one stream ordered by time
+ * stamp. Each file must be in the order of Event Viewer export (newest
+ * first), and the merged stream keeps that order across all files, so that
+ * time window assignment and client address inheritance work across files
+ * exported from different domain controllers.
+ *
+ * Only one record per file is kept in memory.
+ *
+ * @version 1.0
+ */
+public class TimeOrderedEventReader extends Reader {
+
+	// Header of a record
+	protected static final String RECORD_HEADER = "Microsoft-Windows-Security-Auditing,";
+
+	private final PriorityQueue<FileCursor> heap;
+
+	// Record which is currently read
+	private String current = "";
+	private int pos = 0;
+
+	/**
+	 * @param files
+	 *            CSV files exported from event log
+	 * @throws IOException
+	 */
+	public TimeOrderedEventReader(List<File> files) throws IOException {
+		heap = new PriorityQueue<FileCursor>(Math.max(1, files.size()), new Comparator<FileCursor>() {
+			@Override
+			public int compare(FileCursor a, FileCursor b) {
+				// 新しいログから順に出力する
+				int cmp = Long.compare(b.time, a.time);
+				if (0 != cmp) {
+					return cmp;
+				}
+				return Integer.compare(a.fileIdx, b.fileIdx);
+			}
+		});
+		for (int i = 0; i < files.size(); i++) {
+			FileCursor cursor = new FileCursor(files.get(i), i);
+			if (cursor.advance()) {
+				heap.add(cursor);
+			}
+		}
+	}
+
+	@Override
+	public int read(char[] cbuf, int off, int len) throws IOException {
+		if (0 == len) {
+			return 0;
+		}
+		while (pos >= current.length()) {
+			FileCursor cursor = heap.poll();
+			if (null == cursor) {
+				return -1;
+			}
+			current = cursor.record;
+			pos = 0;
+			if (cursor.advance()) {
+				heap.add(cursor);
+			}
+		}
+		int n = Math.min(len, current.length() - pos);
+		current.getChars(pos, pos + n, cbuf, off);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public void close() throws IOException {
+		for (FileCursor cursor : heap) {
+			cursor.br.close();
+		}
+		heap.clear();
+	}
+
+	/**
+	 * Read position in one file. A record is a header line and its
+	 * continuation lines.
+	 */
+	private static class FileCursor {
+		private final BufferedReader br;
+		private final int fileIdx;
+		private final SimpleDateFormat sdf = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
+
+		// Header line of the next record
+		private String nextHeader = null;
+
+		String record = null;
+		long time = Long.MAX_VALUE;
+
+		FileCursor(File file, int fileIdx) throws IOException {
+			this.br = new BufferedReader(new FileReader(file));
+			this.fileIdx = fileIdx;
+			// Skip column names etc. before the first record
+			String line;
+			while ((line = br.readLine()) != null) {
+				if (isHeader(line)) {
+					nextHeader = line;
+					break;
+				}
+			}
+		}
+
+		/**
+		 * Read next record
+		 *
+		 * @return false if no more records
+		 * @throws IOException
+		 */
+		boolean advance() throws IOException {
+			if (null == nextHeader) {
+				br.close();
+				record = null;
+				return false;
+			}
+			StringBuilder sb = new StringBuilder(nextHeader).append('\n');
+			long headerTime = parseTime(nextHeader);
+			if (headerTime >= 0) {
+				time = headerTime;
+			}
+			nextHeader = null;
+			String line;
+			while ((line = br.readLine()) != null) {
+				if (isHeader(line)) {
+					nextHeader = line;
+					break;
+				}
+				sb.append(line).append('\n');
+			}
+			record = sb.toString();
+			return true;
+		}
+
+		private long parseTime(String header) {
+			String data[] = header.replace("\t", "").split(",", 3);
+			if (data.length < 2) {
+				return -1;
+			}
+			try {
+				return sdf.parse(data[1]).getTime();
+			} catch (ParseException e) {
+				// Keep time of the previous record
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 * Whether the line is the header line of a record
+	 *
+	 * @param line
+	 * @return true if header
+	 */
+	protected static boolean isHeader(String line) {
+		if (line.indexOf('\t') >= 0) {
+			line = line.replace("\t", "");
+		}
+		return line.contains(RECORD_HEADER);
+	}
+}
@@ -0,0 +1,106 @@
+package logparse;
+
+import java.io.*;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/**
+ * Split CSV files exported from event log into files of consecutive time
+ * partitions(e.g. one day), so that a long range of logs can be detected one
+ * partition at a time.
+ *
+ * The input files are merged by TimeOrderedEventReader, so records arrive
+ * newest first and only one partition file is written at a time. Records in
+ * a partition file keep the order of the export. Partitions are aligned to
+ * local time, so a partition of 24 hours is a calendar day.
+ *
+ * @version 1.0
+ */
+public class TimePartitioner {
+
+	private final long partitionMsec;
+	private final File spoolDir;
+	private final SimpleDateFormat sdf = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
+
+	// partition index -> partition file
+	private final Map<Long, File> partitions = new HashMap<Long, File>();
+
+	/**
+	 * @param partitionMsec
+	 *            length of a partition(msec)
+	 * @param spoolDir
+	 *            directory for partition files
+	 */
+	public TimePartitioner(long partitionMsec, File spoolDir) {
+		this.partitionMsec = partitionMsec;
+		this.spoolDir = spoolDir;
+	}
+
+	/**
+	 * Split CSV files into partition files
+	 *
+	 * @param csvFiles
+	 * @return partition files, oldest first
+	 * @throws IOException
+	 */
+	public List<File> split(List<File> csvFiles) throws IOException {
+		BufferedReader br = new BufferedReader(new TimeOrderedEventReader(csvFiles));
+		PrintWriter out = null;
+		long current = Long.MIN_VALUE;
+		try {
+			String line;
+			while ((line = br.readLine()) != null) {
+				String noTab = line.replaceAll("\\t", "");
+				if (noTab.contains(TimeOrderedEventReader.RECORD_HEADER)) {
+					long partition = partitionOf(noTab.split(",", 0)[1]);
+					if (partition != current) {
+						if (null != out) {
+							out.close();
+						}
+						out = open(partition);
+						current = partition;
+					}
+				}
+				if (null != out) {
+					// 最初のレコードより前の行(列名)は捨てる
+					out.println(line);
+				}
+			}
+		} finally {
+			br.close();
+			if (null != out) {
+				out.close();
+			}
+		}
+		List<Long> keys = new ArrayList<Long>(partitions.keySet());
+		Collections.sort(keys);
+		List<File> files = new ArrayList<File>();
+		for (Long key : keys) {
+			files.add(partitions.get(key));
+		}
+		return files;
+	}
+
+	private long partitionOf(String date) throws IOException {
+		try {
+			long time = sdf.parse(date).getTime();
+			// ローカル時刻の区切りに合わせる
+			long local = time + sdf.getTimeZone().getOffset(time);
+			return Math.floorDiv(local, partitionMsec);
+		} catch (ParseException e) {
+			throw new IOException("Invalid date: " + date);
+		}
+	}
+
+	private PrintWriter open(long partition) throws IOException {
+		File file = partitions.get(partition);
+		boolean append = null != file;
+		if (!append) {
+			file = new File(spoolDir, "partition-" + partition + ".tmp");
+			file.deleteOnExit();
+			partitions.put(partition, file);
+		}
+		return new PrintWriter(new BufferedWriter(new FileWriter(file, append)));
+	}
+}
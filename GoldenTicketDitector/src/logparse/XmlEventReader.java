@@ -0,0 +1,242 @@
+package logparse;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Read event log exported as XML, such as "wevtutil qe Security /rd:true
+ * /f:xml" or events forwarded by Windows Event Forwarding.
+ *
+ * &lt;Event&gt; elements are read one by one with a pull parser, so memory
+ * does not grow with the size of the file. Output of wevtutil has no root
+ * element, so the whole file is wrapped in &lt;Events&gt; after the XML
+ * declaration is removed.
+ *
+ * Records are returned in the order of the file. The detectors expect newest
+ * first, so export with /rd:true.
+ *
+ * @version 1.0
+ */
+public class XmlEventReader implements EventRecordReader {
+
+	private static final String ROOT_START = "<Events>";
+	private static final String ROOT_END = "</Events>";
+
+	private final File file;
+	private final Reader in;
+	private final XMLStreamReader reader;
+
+	// Time of the previous record, to warn records in ascending order
+	private long lastTime = Long.MAX_VALUE;
+	private boolean warned = false;
+
+	/**
+	 * @param file
+	 *            XML file
+	 * @throws IOException
+	 */
+	public XmlEventReader(File file) throws IOException {
+		this.file = file;
+		this.in = open(file);
+		try {
+			XMLInputFactory factory = XMLInputFactory.newInstance();
+			factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+			factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+			this.reader = factory.createXMLStreamReader(in);
+		} catch (XMLStreamException e) {
+			in.close();
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Open file as characters without BOM and XML declaration, wrapped in root
+	 * element
+	 */
+	private static Reader open(File file) throws IOException {
+		PushbackInputStream is = new PushbackInputStream(new BufferedInputStream(new FileInputStream(file)), 3);
+		byte[] bom = new byte[3];
+		int n = is.read(bom, 0, bom.length);
+		Charset charset = StandardCharsets.UTF_8;
+		int skip = 0;
+		if (n >= 2 && (bom[0] & 0xff) == 0xff && (bom[1] & 0xff) == 0xfe) {
+			charset = StandardCharsets.UTF_16LE;
+			skip = 2;
+		} else if (n >= 2 && (bom[0] & 0xff) == 0xfe && (bom[1] & 0xff) == 0xff) {
+			charset = StandardCharsets.UTF_16BE;
+			skip = 2;
+		} else if (n >= 3 && (bom[0] & 0xff) == 0xef && (bom[1] & 0xff) == 0xbb && (bom[2] & 0xff) == 0xbf) {
+			skip = 3;
+		}
+		if (n > skip) {
+			is.unread(bom, skip, n - skip);
+		}
+		PushbackReader body = new PushbackReader(new BufferedReader(new InputStreamReader(is, charset)), 5);
+		skipDeclaration(body);
+		return new ConcatReader(new StringReader(ROOT_START), body, new StringReader(ROOT_END));
+	}
+
+	private static void skipDeclaration(PushbackReader body) throws IOException {
+		int c;
+		while ((c = body.read()) >= 0 && Character.isWhitespace(c)) {
+			// skip leading white spaces
+		}
+		if (c < 0) {
+			return;
+		}
+		char[] head = new char[5];
+		head[0] = (char) c;
+		int n = 1 + Math.max(0, body.read(head, 1, head.length - 1));
+		if (!"<?xml".equals(new String(head, 0, n))) {
+			body.unread(head, 0, n);
+			return;
+		}
+		int prev = 0;
+		while ((c = body.read()) >= 0) {
+			if ('?' == prev && '>' == c) {
+				return;
+			}
+			prev = c;
+		}
+	}
+
+	@Override
+	public EventRecord next() throws IOException {
+		try {
+			while (reader.hasNext()) {
+				if (XMLStreamConstants.START_ELEMENT == reader.next() && "Event".equals(reader.getLocalName())) {
+					EventRecord record = readEvent();
+					if (!warned && record.getTime() > lastTime) {
+						System.out.println(file + ": events are not newest first. Export with /rd:true.");
+						warned = true;
+					}
+					lastTime = record.getTime();
+					return record;
+				}
+			}
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+		return null;
+	}
+
+	/**
+	 * Read one &lt;Event&gt; element. The reader is at its start tag.
+	 */
+	private EventRecord readEvent() throws XMLStreamException {
+		EventRecord record = new EventRecord();
+		StringBuilder text = new StringBuilder();
+		// Name of the data whose value is the current text
+		String dataName = null;
+		boolean inData = false;
+		int depth = 1;
+		while (depth > 0 && reader.hasNext()) {
+			switch (reader.next()) {
+			case XMLStreamConstants.START_ELEMENT: {
+				depth++;
+				String name = reader.getLocalName();
+				text.setLength(0);
+				if ("Data".equals(name)) {
+					dataName = reader.getAttributeValue(null, "Name");
+				} else if ("EventData".equals(name) || "UserData".equals(name)) {
+					inData = true;
+				} else if (inData) {
+					// leaf element of UserData
+					dataName = name;
+				} else if ("TimeCreated".equals(name)) {
+					String systemTime = reader.getAttributeValue(null, "SystemTime");
+					long time = null == systemTime ? -1 : EventRecord.parseSystemTime(systemTime);
+					if (time >= 0) {
+						record.setTime(time);
+					}
+				}
+				break;
+			}
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.CDATA:
+			case XMLStreamConstants.SPACE:
+				text.append(reader.getText());
+				break;
+			case XMLStreamConstants.END_ELEMENT: {
+				depth--;
+				String name = reader.getLocalName();
+				if (null != dataName) {
+					record.putData(dataName, text.toString());
+					dataName = null;
+				} else if ("EventID".equals(name)) {
+					try {
+						record.setEventID(Integer.parseInt(text.toString().trim()));
+					} catch (NumberFormatException e) {
+						// nothing
+					}
+				} else if ("EventRecordID".equals(name)) {
+					try {
+						record.setRecordID(Long.parseLong(text.toString().trim()));
+					} catch (NumberFormatException e) {
+						// nothing
+					}
+				} else if ("EventData".equals(name) || "UserData".equals(name)) {
+					inData = false;
+				}
+				text.setLength(0);
+				break;
+			}
+			default:
+				break;
+			}
+		}
+		return record;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			reader.close();
+		} catch (XMLStreamException e) {
+			e.printStackTrace();
+		}
+		in.close();
+	}
+
+	/**
+	 * Readers read one after another
+	 */
+	private static class ConcatReader extends Reader {
+		private final Reader readers[];
+		private int idx = 0;
+
+		ConcatReader(Reader... readers) {
+			this.readers = readers;
+		}
+
+		@Override
+		public int read(char[] cbuf, int off, int len) throws IOException {
+			if (0 == len) {
+				return 0;
+			}
+			while (idx < readers.length) {
+				int n = readers[idx].read(cbuf, off, len);
+				if (n > 0) {
+					return n;
+				}
+				if (n < 0) {
+					idx++;
+				}
+			}
+			return -1;
+		}
+
+		@Override
+		public void close() throws IOException {
+			for (Reader r : readers) {
+				r.close();
+			}
+		}
+	}
+}